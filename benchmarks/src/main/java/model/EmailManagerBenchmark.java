@@ -0,0 +1,178 @@
+package model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.EmailUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the {@link EmailManager} operations behind every mailbox request: sending to
+ * several recipients, concurrent sending from many senders, listing, searching and reading with
+ * view marking.
+ * <p>
+ * Both states are rebuilt for every iteration. Sending keeps adding emails, so this bounds
+ * how far the mailboxes grow during a run; reads cycle through the inbox, so each iteration
+ * marks every email once and then measures reading emails that are already marked.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmailManagerBenchmark {
+    private static final String SENDER = "sender";
+    private static final String READER = "reader";
+    /** Nobody logs in here, so the stored hash is never checked. */
+    private static final String PASSWORD_HASH = "unused";
+    /** One in this many emails contains the search term. */
+    private static final int MATCH_EVERY = 10;
+    private static final String SEARCH_TERM = "quarterly";
+
+    /**
+     * A reader whose inbox holds {@code mailboxSize} emails.
+     */
+    @State(Scope.Benchmark)
+    public static class Mailbox {
+        @Param({"100", "10000"})
+        int mailboxSize;
+
+        EmailManager emailManager;
+        int[] inboxIds;
+        int next;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            UserManager userManager = new UserManager();
+            userManager.register(SENDER, PASSWORD_HASH);
+            userManager.register(READER, PASSWORD_HASH);
+            emailManager = new EmailManager(userManager);
+            for (int i = 0; i < mailboxSize; i++) {
+                String body = i % MATCH_EVERY == 0 ? "The " + SEARCH_TERM + " numbers, part " + i : "Message " + i;
+                emailManager.sendEmail(SENDER, READER, "Subject " + i, body);
+            }
+            inboxIds = emailManager.listInbox(READER).stream().mapToInt(Email::getId).toArray();
+            next = 0;
+        }
+    }
+
+    /**
+     * A sender and {@code recipients} users to send to.
+     */
+    @State(Scope.Benchmark)
+    public static class FanOut {
+        @Param({"1", "10", "100"})
+        int recipients;
+
+        EmailManager emailManager;
+        List<String> recipientNames;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            UserManager userManager = new UserManager();
+            userManager.register(SENDER, PASSWORD_HASH);
+            recipientNames = new ArrayList<>(recipients);
+            for (int i = 0; i < recipients; i++) {
+                String name = "recipient" + i;
+                userManager.register(name, PASSWORD_HASH);
+                recipientNames.add(name);
+            }
+            emailManager = new EmailManager(userManager);
+        }
+    }
+
+    /**
+     * {@code CONTENDED_USERS} users shared by all benchmark threads, with emails split into
+     * {@code shards} shards.
+     */
+    @State(Scope.Benchmark)
+    public static class Contended {
+        static final int CONTENDED_USERS = 16;
+
+        @Param({"1", "8"})
+        int shards;
+
+        EmailManager emailManager;
+        final AtomicInteger nextSender = new AtomicInteger();
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            UserManager userManager = new UserManager();
+            for (int i = 0; i < CONTENDED_USERS; i++) {
+                userManager.register("user" + i, PASSWORD_HASH);
+            }
+            emailManager = new EmailManager(userManager, MailJournal.NONE, BodyStore.HEAP, shards);
+        }
+    }
+
+    /**
+     * One user per benchmark thread, mailing the next two users, who usually sit in other shards.
+     */
+    @State(Scope.Thread)
+    public static class ContendedSender {
+        String name;
+        List<String> recipientNames;
+
+        @Setup(Level.Iteration)
+        public void setUp(Contended contended) {
+            int index = contended.nextSender.getAndIncrement() % Contended.CONTENDED_USERS;
+            name = "user" + index;
+            recipientNames = List.of("user" + (index + 1) % Contended.CONTENDED_USERS,
+                    "user" + (index + 2) % Contended.CONTENDED_USERS);
+        }
+    }
+
+    @Benchmark
+    public Email sendEmail(FanOut state) {
+        return state.emailManager.sendEmail(SENDER, state.recipientNames, "Fan-out", "Hello everyone");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Email sendEmailConcurrently(Contended state, ContendedSender sender) {
+        return state.emailManager.sendEmail(sender.name, sender.recipientNames, "Contended", "Hello neighbours");
+    }
+
+    @Benchmark
+    public List<Email> listInbox(Mailbox state) {
+        return state.emailManager.listInbox(READER);
+    }
+
+    @Benchmark
+    public Page<Email> listInboxPage(Mailbox state) {
+        return state.emailManager.listInbox(READER, null, EmailUtils.DEFAULT_PAGE_SIZE);
+    }
+
+    @Benchmark
+    public Map<Integer, Email> getEmailIdsForUser(Mailbox state) {
+        return state.emailManager.getEmailIdsForUser(READER);
+    }
+
+    @Benchmark
+    public List<Email> searchInbox(Mailbox state) {
+        return state.emailManager.searchInbox(READER, SEARCH_TERM);
+    }
+
+    @Benchmark
+    public Optional<Email> getEmailById(Mailbox state) {
+        int id = state.inboxIds[state.next];
+        state.next = (state.next + 1) % state.inboxIds.length;
+        return state.emailManager.getEmailById(id, READER);
+    }
+}
@@ -0,0 +1,51 @@
+package model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures hashing and verifying a password with each algorithm at its minimum cost, the
+ * floor that startup calibration never goes below. Higher costs scale from here: linearly with
+ * PBKDF2 iterations, doubling per bcrypt round.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordHasherBenchmark {
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Param({"PBKDF2", "BCRYPT"})
+    PasswordHasher.Algorithm algorithm;
+
+    private String storedHash;
+
+    @Setup
+    public void setUp() {
+        PasswordHasher.configure(algorithm, PasswordHasher.calibrate(algorithm, 0));
+        storedHash = PasswordHasher.hashPassword(PASSWORD);
+    }
+
+    @Benchmark
+    public String hashPassword() {
+        return PasswordHasher.hashPassword(PASSWORD);
+    }
+
+    @Benchmark
+    public boolean verifyPassword() {
+        return PasswordHasher.verifyPassword(PASSWORD, storedHash);
+    }
+}
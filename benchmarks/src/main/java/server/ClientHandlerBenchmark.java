@@ -0,0 +1,157 @@
+package server;
+
+import model.EmailManager;
+import model.PasswordHasher;
+import model.UserManager;
+import network.Framing;
+import network.MessageWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures a logged-in session's request path from the raw request line to the serialized
+ * response: parsing, dispatch, the {@link EmailManager} call, building the JSON and writing it
+ * with each {@link ResponseCodec}. The response goes into a reused buffer instead of a socket,
+ * so network time is left out.
+ * <p>
+ * Lives in the {@code server} package to drive {@link ClientHandler} through the same
+ * package-private entry point the NIO server uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClientHandlerBenchmark {
+    private static final String SENDER = "sender";
+    private static final String READER = "reader";
+    private static final String PASSWORD = "secret";
+
+    @Param({"10", "1000"})
+    int mailboxSize;
+
+    @Param({"TREE", "STREAMING"})
+    ServerOptions.Codec codec;
+
+    private AuthEngine authEngine;
+    private RequestLog requestLog;
+    private ClientHandler handler;
+    private final ResponseSink sink = new ResponseSink();
+    private String readRequest;
+
+    @Setup
+    public void setUp() {
+        // Keep per-request logging out of the measurement
+        Logger.getLogger("").setLevel(Level.WARNING);
+        PasswordHasher.configure(PasswordHasher.Algorithm.PBKDF2, PasswordHasher.calibrate(PasswordHasher.Algorithm.PBKDF2, 0));
+
+        UserManager userManager = new UserManager();
+        userManager.register(SENDER, PasswordHasher.hashPassword(PASSWORD));
+        userManager.register(READER, PasswordHasher.hashPassword(PASSWORD));
+        EmailManager emailManager = new EmailManager(userManager);
+        int lastId = 0;
+        for (int i = 0; i < mailboxSize; i++) {
+            lastId = emailManager.sendEmail(SENDER, READER, "Subject " + i, "Body of message " + i).getId();
+        }
+        readRequest = "{\"command\":\"READ\",\"id\":" + lastId + "}";
+
+        authEngine = new AuthEngine(1);
+        requestLog = new RequestLog(Integer.MAX_VALUE);
+        ResponseCodec responseCodec = codec == ServerOptions.Codec.TREE
+                ? new TreeResponseCodec() : new StreamingResponseCodec();
+        ServerContext context = new ServerContext(emailManager, userManager, new ConcurrentHashMap<>(),
+                responseCodec, authEngine, new SessionTokens(Duration.ofHours(1)), new LoginThrottle(),
+                requestLog, new ServerMetrics(), new AdmissionControl(Integer.MAX_VALUE, Integer.MAX_VALUE),
+                Collections.emptySet());
+        handler = new ClientHandler(sink, "127.0.0.1", context);
+        handler.handleMessage("{\"command\":\"LOGIN\",\"username\":\"" + READER + "\",\"password\":\"" + PASSWORD + "\"}");
+    }
+
+    @TearDown
+    public void tearDown() {
+        authEngine.shutdown();
+        requestLog.close();
+    }
+
+    @Benchmark
+    public int listInbox() {
+        handler.handleMessage("{\"command\":\"LIST_INBOX\"}");
+        return sink.length;
+    }
+
+    @Benchmark
+    public int listInboxPage() {
+        handler.handleMessage("{\"command\":\"LIST_INBOX\",\"limit\":50}");
+        return sink.length;
+    }
+
+    @Benchmark
+    public int searchInbox() {
+        handler.handleMessage("{\"command\":\"SEARCH_INBOX\",\"term\":\"message 1\"}");
+        return sink.length;
+    }
+
+    @Benchmark
+    public int readEmail() {
+        handler.handleMessage(readRequest);
+        return sink.length;
+    }
+
+    /**
+     * Takes the place of the connection and keeps only the length of the last response.
+     */
+    private static final class ResponseSink implements ResponseChannel {
+        private final CharArrayWriter buffer = new CharArrayWriter(64 * 1024);
+        private int length;
+
+        @Override
+        public void send(String message) {
+            length = message.length();
+        }
+
+        @Override
+        public void send(MessageWriter message) {
+            buffer.reset();
+            try {
+                message.writeTo(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            length = buffer.size();
+        }
+
+        @Override
+        public void push(String message) {
+        }
+
+        @Override
+        public void upgrade(String reply, Framing framing) {
+            send(reply);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package client;
 
 import com.google.gson.*;
+import network.Framing;
 import network.NetworkLayerJSON;
 import utils.EmailUtils;
 
@@ -12,12 +13,13 @@ public class EmailClient {
     private static final Scanner input = new Scanner(System.in);
     private static NetworkLayerJSON network;
     private static String loggedInUser = null;
+    private static String sessionToken = null;
 
     public static void main(String[] args) {
         try {
             // Establish connection to the server
             network = new NetworkLayerJSON(EmailUtils.HOSTNAME, EmailUtils.PORT);
-            network.connect();
+            network.connect(Framing.FRAMED);
             // Enter the main interactive menu loop
             showMainMenu();
         } catch (IOException e) {
@@ -67,6 +69,36 @@ public class EmailClient {
             }
         } catch (IOException e) {
             System.out.println("Network error: " + e.getMessage());
+            reconnect();
+        }
+    }
+
+    /**
+     * Opens a new connection after a network error and resumes the session with its token,
+     * so the user does not have to log in again.
+     */
+    private static void reconnect() {
+        try {
+            network = new NetworkLayerJSON(EmailUtils.HOSTNAME, EmailUtils.PORT);
+            network.connect(Framing.FRAMED);
+            if (sessionToken == null) {
+                return;
+            }
+
+            JsonObject request = new JsonObject();
+            request.addProperty(EmailUtils.FIELD_COMMAND, EmailUtils.RESUME);
+            request.addProperty(EmailUtils.FIELD_TOKEN, sessionToken);
+            sendAndHandleResponse(request, response -> {
+                if (EmailUtils.STATUS_RESUMED.equals(response.get(EmailUtils.FIELD_STATUS).getAsString())) {
+                    System.out.println("Reconnected as " + loggedInUser);
+                } else {
+                    loggedInUser = null;
+                    sessionToken = null;
+                    System.out.println("Session expired, please log in again");
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Reconnect failed: " + e.getMessage());
         }
     }
 
@@ -136,9 +168,14 @@ public class EmailClient {
                 String status = response.get(EmailUtils.FIELD_STATUS).getAsString();
                 if (status.equals(EmailUtils.STATUS_LOGIN_SUCCESS)) {
                     loggedInUser = username;
+                    sessionToken = response.has(EmailUtils.FIELD_TOKEN)
+                            ? response.get(EmailUtils.FIELD_TOKEN).getAsString() : null;
                     System.out.println("Login successful!");
                 } else if (status.equals(EmailUtils.STATUS_REGISTERED)) {
                     System.out.println("Registration successful!");
+                } else if (status.equals(EmailUtils.STATUS_THROTTLED)) {
+                    long seconds = (response.get(EmailUtils.FIELD_RETRY_AFTER).getAsLong() + 999) / 1000;
+                    System.out.println("Too many attempts. Try again in " + seconds + " seconds.");
                 } else if (response.has(EmailUtils.FIELD_ERROR)) {
                     System.out.println("Error: " + response.get(EmailUtils.FIELD_ERROR).getAsString());
                 } else {
@@ -211,7 +248,29 @@ public class EmailClient {
         }
 
         request.addProperty(EmailUtils.FIELD_COMMAND, command);
-        sendAndHandleResponse(request, EmailClient::handleEmailResponse);
+
+        // Lists come back a page at a time; offer the next page while there is one
+        Integer[] nextCursor = {null};
+        do {
+            if (nextCursor[0] != null) {
+                request.addProperty(EmailUtils.FIELD_CURSOR, nextCursor[0]);
+                nextCursor[0] = null;
+            }
+            sendAndHandleResponse(request, response -> {
+                handleEmailResponse(response);
+                if (response.has(EmailUtils.FIELD_NEXT_CURSOR)) {
+                    nextCursor[0] = response.get(EmailUtils.FIELD_NEXT_CURSOR).getAsInt();
+                }
+            });
+        } while (nextCursor[0] != null && askForMore());
+    }
+
+    /**
+     * Asks whether to show the next page of a list.
+     */
+    private static boolean askForMore() {
+        System.out.print("Show more? (y/n): ");
+        return input.nextLine().trim().equalsIgnoreCase("y");
     }
 
     /**
@@ -282,6 +341,7 @@ public class EmailClient {
         request.addProperty(EmailUtils.FIELD_COMMAND, EmailUtils.LOGOUT);
         sendAndHandleResponse(request, response -> {
             loggedInUser = null;
+            sessionToken = null;
             System.out.println("Logged out successfully");
         });
     }
@@ -306,6 +366,12 @@ public class EmailClient {
         network.send(jsonRequest);
         String responseStr = network.receive();
         JsonObject response = JsonParser.parseString(responseStr).getAsJsonObject();
+        if (response.has(EmailUtils.FIELD_STATUS)
+                && EmailUtils.STATUS_BUSY.equals(response.get(EmailUtils.FIELD_STATUS).getAsString())) {
+            long seconds = (response.get(EmailUtils.FIELD_RETRY_AFTER).getAsLong() + 999) / 1000;
+            System.out.println("Server is busy. Try again in " + seconds + " seconds.");
+            return;
+        }
         handler.handle(response);
     }
 
@@ -4,6 +4,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import network.Framing;
 import network.NetworkLayerJSON;
 import utils.EmailUtils;
 import javax.swing.*;
@@ -20,6 +21,8 @@ public class EmailClientGUI extends JFrame {
     private NetworkLayerJSON network;
     private JTextField userField;
     private JPasswordField passField;
+    /** Token from the last LOGIN or REGISTER, used to RESUME after a dropped connection. */
+    private String sessionToken;
 
     /**
      * Constructor: initialize frame and network, show login.
@@ -35,7 +38,7 @@ public class EmailClientGUI extends JFrame {
     private void connectNetwork() {
         try {
             network = new NetworkLayerJSON(EmailUtils.HOSTNAME, EmailUtils.PORT);
-            network.connect();
+            network.connect(Framing.FRAMED);
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this,
                     "Connection error: " + e.getMessage(),
@@ -45,6 +48,74 @@ public class EmailClientGUI extends JFrame {
         }
     }
 
+    /**
+     * Send a request and wait for its response. If the connection dropped, reconnects and
+     * resumes the session, then retries once unless the request was a SEND that may already
+     * have been delivered; shows an error and returns null otherwise. A BUSY answer is shown
+     * with its retry hint and also returns null.
+     */
+    private JsonObject exchange(JsonObject req) {
+        try {
+            JsonObject resp = send(req);
+            if (EmailUtils.STATUS_BUSY.equals(resp.get(EmailUtils.FIELD_STATUS).getAsString())) {
+                JOptionPane.showMessageDialog(this,
+                        "Server is busy. Try again in "
+                                + (resp.get(EmailUtils.FIELD_RETRY_AFTER).getAsLong() + 999) / 1000 + " seconds.",
+                        "Busy",
+                        JOptionPane.WARNING_MESSAGE);
+                return null;
+            }
+            return resp;
+        } catch (IOException e) {
+            boolean resumed = sessionToken != null && resumeSession();
+            if (resumed && !EmailUtils.SEND.equals(req.get(EmailUtils.FIELD_COMMAND).getAsString())) {
+                try {
+                    return send(req);
+                } catch (IOException retryFailure) {
+                    e = retryFailure;
+                }
+            }
+            JOptionPane.showMessageDialog(this,
+                    "Connection error: " + e.getMessage(),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+    }
+
+    private JsonObject send(JsonObject req) throws IOException {
+        network.send(req.toString());
+        return JsonParser.parseString(network.receive()).getAsJsonObject();
+    }
+
+    /** Open a new connection and resume the session with the stored token. */
+    private boolean resumeSession() {
+        try {
+            network = new NetworkLayerJSON(EmailUtils.HOSTNAME, EmailUtils.PORT);
+            network.connect(Framing.FRAMED);
+            JsonObject req = new JsonObject();
+            req.addProperty(EmailUtils.FIELD_COMMAND, EmailUtils.RESUME);
+            req.addProperty(EmailUtils.FIELD_TOKEN, sessionToken);
+            JsonObject resp = send(req);
+            if (EmailUtils.STATUS_RESUMED.equals(resp.get(EmailUtils.FIELD_STATUS).getAsString())) {
+                return true;
+            }
+            sessionToken = null;
+        } catch (IOException e) {
+            // Reported by the caller
+        }
+        return false;
+    }
+
+    /** Log out on the server, which also revokes the session token, then show the login UI. */
+    private void logout() {
+        JsonObject req = new JsonObject();
+        req.addProperty(EmailUtils.FIELD_COMMAND, EmailUtils.LOGOUT);
+        exchange(req);
+        sessionToken = null;
+        showLoginPanel();
+    }
+
     /** Show login/register UI. */
     private void showLoginPanel() {
         setTitle("Mailify - Login/Register");
@@ -79,19 +150,24 @@ public class EmailClientGUI extends JFrame {
         req.addProperty(EmailUtils.FIELD_COMMAND, cmd);
         req.addProperty(EmailUtils.FIELD_USERNAME, user);
         req.addProperty(EmailUtils.FIELD_PASSWORD, pass);
-        network.send(req.toString());
-        JsonObject resp = JsonParser.parseString(network.receive()).getAsJsonObject();
+        JsonObject resp = exchange(req);
+        if (resp == null) return;
         String status = resp.get(EmailUtils.FIELD_STATUS).getAsString();
         boolean success = (cmd.equals(EmailUtils.LOGIN) && EmailUtils.STATUS_LOGIN_SUCCESS.equals(status)) ||
                 (cmd.equals(EmailUtils.REGISTER) && EmailUtils.STATUS_REGISTERED.equals(status));
         if (success) {
+            sessionToken = resp.has(EmailUtils.FIELD_TOKEN)
+                    ? resp.get(EmailUtils.FIELD_TOKEN).getAsString() : null;
             JOptionPane.showMessageDialog(this,
                     cmd + " successful!",
                     "Success",
                     JOptionPane.INFORMATION_MESSAGE);
             showMainMenuPanel();
         } else {
-            String err = resp.has(EmailUtils.FIELD_ERROR)
+            String err = EmailUtils.STATUS_THROTTLED.equals(status)
+                    ? "Too many attempts. Try again in "
+                            + (resp.get(EmailUtils.FIELD_RETRY_AFTER).getAsLong() + 999) / 1000 + " seconds."
+                    : resp.has(EmailUtils.FIELD_ERROR)
                     ? resp.get(EmailUtils.FIELD_ERROR).getAsString()
                     : "Unknown error";
             JOptionPane.showMessageDialog(this,
@@ -118,7 +194,7 @@ public class EmailClientGUI extends JFrame {
         sendBtn.addActionListener(ev -> showSendEmailPanel());
         inboxBtn.addActionListener(ev -> showInboxPanel());
         sentBtn.addActionListener(ev -> showSentPanel());
-        logoutBtn.addActionListener(ev -> showLoginPanel());
+        logoutBtn.addActionListener(ev -> logout());
         panel.add(sendBtn);
         panel.add(Box.createRigidArea(new Dimension(0,10)));
         panel.add(inboxBtn);
@@ -174,8 +250,8 @@ public class EmailClientGUI extends JFrame {
         req.addProperty(EmailUtils.FIELD_RECIPIENT, recipient);
         req.addProperty(EmailUtils.FIELD_SUBJECT, subject);
         req.addProperty(EmailUtils.FIELD_BODY, body);
-        network.send(req.toString());
-        JsonObject resp = JsonParser.parseString(network.receive()).getAsJsonObject();
+        JsonObject resp = exchange(req);
+        if (resp == null) return;
         String status = resp.get(EmailUtils.FIELD_STATUS).getAsString();
         if (EmailUtils.STATUS_SENT.equals(status)) {
             JOptionPane.showMessageDialog(this,
@@ -194,49 +270,103 @@ public class EmailClientGUI extends JFrame {
         }
     }
 
-    /** Show inbox table with Read, Search, and Back buttons. */
+    /** Show inbox table with Read, Search, More, and Back buttons. */
     private void showInboxPanel() {
         setTitle("Mailify - Inbox");
         DefaultTableModel model = new DefaultTableModel(new Object[]{"ID","From","Subject","Date"}, 0);
         JTable table = new JTable(model);
-        loadInboxData(model, EmailUtils.LIST_INBOX, null);
         JButton readBtn = new JButton("Read");
         JButton searchBtn = new JButton("Search");
+        JButton moreBtn = new JButton("More");
         JButton backBtn = new JButton("Back");
+        MailboxPager pager = new MailboxPager(model, moreBtn, EmailUtils.LIST_INBOX, null);
+        pager.load();
         readBtn.addActionListener(e -> {
             int row = table.getSelectedRow(); if (row!=-1) readEmailById((int)model.getValueAt(row,0));
         });
         searchBtn.addActionListener(e -> {
             String term = JOptionPane.showInputDialog(this,"Enter search term:");
-            if(term!=null) loadInboxData(model, EmailUtils.SEARCH_INBOX, term.trim());
+            if(term!=null) pager.restart(EmailUtils.SEARCH_INBOX, term.trim());
         });
+        moreBtn.addActionListener(e -> pager.loadMore());
         backBtn.addActionListener(e -> showMainMenuPanel());
-        JPanel btnPanel = new JPanel(); btnPanel.add(readBtn); btnPanel.add(searchBtn); btnPanel.add(backBtn);
+        JPanel btnPanel = new JPanel(); btnPanel.add(readBtn); btnPanel.add(searchBtn); btnPanel.add(moreBtn); btnPanel.add(backBtn);
         JPanel panel = new JPanel(new BorderLayout()); panel.add(new JScrollPane(table),BorderLayout.CENTER); panel.add(btnPanel,BorderLayout.SOUTH);
         setContentPane(panel); pack(); setLocationRelativeTo(null);
     }
 
-    /** Show sent table with Back button. */
+    /** Show sent table with More and Back buttons. */
     private void showSentPanel() {
         setTitle("Mailify - Sent Items");
         DefaultTableModel model = new DefaultTableModel(new Object[]{"ID","To","Subject","Date"},0);
         JTable table = new JTable(model);
-        loadInboxData(model, EmailUtils.LIST_SENT, null); // reuse loader with LIST_SENT
+        JButton moreBtn = new JButton("More");
         JButton backBtn = new JButton("Back");
+        MailboxPager pager = new MailboxPager(model, moreBtn, EmailUtils.LIST_SENT, null);
+        pager.load();
+        moreBtn.addActionListener(e -> pager.loadMore());
         backBtn.addActionListener(e -> showMainMenuPanel());
-        JPanel btnPanel = new JPanel(); btnPanel.add(backBtn);
+        JPanel btnPanel = new JPanel(); btnPanel.add(moreBtn); btnPanel.add(backBtn);
         JPanel panel = new JPanel(new BorderLayout()); panel.add(new JScrollPane(table),BorderLayout.CENTER); panel.add(btnPanel,BorderLayout.SOUTH);
         setContentPane(panel); pack(); setLocationRelativeTo(null);
     }
 
-    /** Helper to load inbox or sent/search results into the table model. */
-    private void loadInboxData(DefaultTableModel model, String command, String term) {
-        model.setRowCount(0);
+    /**
+     * Loads a listing into a table one page at a time, newest first. The More button
+     * is only enabled while the server reports another page.
+     */
+    private class MailboxPager {
+        private final DefaultTableModel model;
+        private final JButton moreBtn;
+        private String command;
+        private String term;
+        private Integer nextCursor;
+
+        MailboxPager(DefaultTableModel model, JButton moreBtn, String command, String term) {
+            this.model = model;
+            this.moreBtn = moreBtn;
+            this.command = command;
+            this.term = term;
+        }
+
+        /** Clears the table and loads the first page. */
+        void load() {
+            model.setRowCount(0);
+            nextCursor = null;
+            loadPage(null);
+        }
+
+        /** Switches to another listing, e.g. search results, and loads its first page. */
+        void restart(String command, String term) {
+            this.command = command;
+            this.term = term;
+            load();
+        }
+
+        /** Appends the next page, if any. */
+        void loadMore() {
+            if (nextCursor != null) loadPage(nextCursor);
+        }
+
+        private void loadPage(Integer cursor) {
+            nextCursor = loadInboxData(model, command, term, cursor);
+            moreBtn.setEnabled(nextCursor != null);
+        }
+    }
+
+    /**
+     * Helper to append one page of inbox or sent/search results to the table model.
+     *
+     * @return the cursor for the next page, or null if there are no more pages
+     */
+    private Integer loadInboxData(DefaultTableModel model, String command, String term, Integer cursor) {
         JsonObject req = new JsonObject();
         req.addProperty(EmailUtils.FIELD_COMMAND, command);
-        if(term!=null) req.addProperty("term",term);
-        network.send(req.toString());
-        JsonObject resp = JsonParser.parseString(network.receive()).getAsJsonObject();
+        if(term!=null) req.addProperty(EmailUtils.FIELD_TERM,term);
+        req.addProperty(EmailUtils.FIELD_LIMIT, EmailUtils.DEFAULT_PAGE_SIZE);
+        if(cursor!=null) req.addProperty(EmailUtils.FIELD_CURSOR, cursor);
+        JsonObject resp = exchange(req);
+        if (resp == null) return null;
         String status = resp.get(EmailUtils.FIELD_STATUS).getAsString();
         if(status.equals(EmailUtils.STATUS_INBOX) || status.equals(EmailUtils.STATUS_SEARCH_RESULTS)
                 || status.equals(EmailUtils.STATUS_SENT_LIST) ) {
@@ -250,7 +380,9 @@ public class EmailClientGUI extends JFrame {
                         e.get(EmailUtils.FIELD_SUBJECT).getAsString(),
                         e.get(EmailUtils.FIELD_TIMESTAMP).getAsString()});
             }
+            return resp.has(EmailUtils.FIELD_NEXT_CURSOR) ? resp.get(EmailUtils.FIELD_NEXT_CURSOR).getAsInt() : null;
         }
+        return null;
     }
 
     /** Send READ command and show full content. */
@@ -258,8 +390,8 @@ public class EmailClientGUI extends JFrame {
         JsonObject req = new JsonObject();
         req.addProperty(EmailUtils.FIELD_COMMAND, EmailUtils.READ);
         req.addProperty(EmailUtils.FIELD_ID,id);
-        network.send(req.toString());
-        JsonObject resp = JsonParser.parseString(network.receive()).getAsJsonObject();
+        JsonObject resp = exchange(req);
+        if (resp == null) return;
         String status=resp.get(EmailUtils.FIELD_STATUS).getAsString();
         if(status.equals(EmailUtils.STATUS_EMAIL_CONTENT)){
             JsonObject em=resp.getAsJsonObject(EmailUtils.FIELD_EMAIL);
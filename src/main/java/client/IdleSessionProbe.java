@@ -0,0 +1,87 @@
+package client;
+
+import utils.EmailUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens many mostly-idle sessions against a running server and reports how many of them the
+ * server is actually serving. Used to compare the server's execution modes, e.g.
+ * <pre>
+ *   java server.EmailServer --executor=pool
+ *   java server.EmailServer --executor=virtual
+ *   java server.EmailServer --mode=nio
+ *   java client.IdleSessionProbe localhost 12345 10000 10
+ * </pre>
+ * Each session sends one cheap request and then stays silent; a session counts as served
+ * once its response has arrived within the settle time.
+ */
+public class IdleSessionProbe {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    /** Stop opening sessions once this many connects in a row have failed. */
+    private static final int MAX_CONSECUTIVE_FAILURES = 20;
+    private static final byte[] PROBE_REQUEST =
+            ("{\"" + EmailUtils.FIELD_COMMAND + "\":\"" + EmailUtils.LOGOUT + "\"}\n").getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = args.length > 0 ? args[0] : EmailUtils.HOSTNAME;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : EmailUtils.PORT;
+        int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        int settleSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        List<Socket> sockets = new ArrayList<>(sessions);
+        int connectFailures = 0;
+        int consecutiveFailures = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < sessions && consecutiveFailures < MAX_CONSECUTIVE_FAILURES; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                OutputStream out = socket.getOutputStream();
+                out.write(PROBE_REQUEST);
+                out.flush();
+                sockets.add(socket);
+                consecutiveFailures = 0;
+            } catch (IOException e) {
+                socket.close();
+                connectFailures++;
+                consecutiveFailures++;
+            }
+        }
+        long connectMillis = (System.nanoTime() - start) / 1_000_000;
+
+        Thread.sleep(settleSeconds * 1000L);
+
+        int served = 0;
+        for (Socket socket : sockets) {
+            try {
+                if (socket.getInputStream().available() > 0) {
+                    served++;
+                }
+            } catch (IOException ignored) {
+                // closed by the server, not served
+            }
+        }
+
+        System.out.println("sessions requested: " + sessions);
+        System.out.println("connected:          " + sockets.size() + " in " + connectMillis + " ms");
+        System.out.println("connect failures:   " + connectFailures
+                + (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES ? " (gave up)" : ""));
+        System.out.println("served after " + settleSeconds + "s:  " + served);
+
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // best effort
+            }
+        }
+    }
+}
@@ -0,0 +1,764 @@
+package client;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import network.NetworkLayerJSON;
+import server.EmailServer;
+import server.LatencyHistogram;
+import server.ServerOptions;
+import utils.EmailUtils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives a server with many simulated clients and reports throughput, error rates and latency
+ * percentiles per operation, e.g.
+ * <pre>
+ *   java client.LoadGenerator --clients=2000 --duration-s=60 --server-mode=nio
+ *   java client.LoadGenerator --clients=500 --rate=20000 --mix=send:1,list:4,read:4,search:1
+ *   java client.LoadGenerator --host=mail.test --port=12345 --clients=100 --think-ms=50
+ * </pre>
+ * Without {@code --host} a server is started in this JVM on a free loopback port; options
+ * starting with {@code --server-} are passed on to it without the prefix. Its password hashing
+ * runs at the minimum cost unless {@code --server-hash-target-ms} says otherwise, the first
+ * account is an operator so the report can include the server's STATS, and its INFO logging
+ * (which includes the request log) is turned off so it does not skew the numbers.
+ * <p>
+ * Every client has its own connection and account and runs one request at a time, picking the
+ * operation at random from the mix. In the default closed-loop mode each client sends its next
+ * request when the last one is answered, after an exponentially distributed think time. With
+ * {@code --rate} the run is open-loop: requests are scheduled at that total rate whatever the
+ * server does, idle clients pick them up, and latency counts from the scheduled time. A slow
+ * server then shows up as queueing delay instead of quietly lowering the request rate, which is
+ * what closed-loop numbers hide (coordinated omission).
+ * <p>
+ * Each client connects from its own loopback address where the OS allows it, so the server's
+ * per-address login throttle sees them as separate clients. LOGIN in the mix re-authenticates
+ * and is still limited per account, so THROTTLED answers are counted on their own, as are BUSY
+ * answers from an overloaded server. Throughput and latencies cover successful responses only;
+ * errors include broken connections. Results go to stdout and to a JSON file ({@code --out})
+ * meant to be compared between builds.
+ */
+public class LoadGenerator {
+    private static final String PASSWORD = "LoadTest123";
+    private static final String USER_PREFIX = "load";
+    /** Page size for LIST and SEARCH, so results do not grow with the mailboxes over a run. */
+    private static final int PAGE_SIZE = 50;
+    private static final int SOCKET_TIMEOUT_MS = 30_000;
+    private static final long SERVER_START_TIMEOUT_MS = 10_000;
+    private static final long RECONNECT_BACKOFF_MS = 100;
+    /** How long a client keeps retrying to log in while the server answers busy or throttled. */
+    private static final long AUTH_RETRY_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final String[] WORDS = {"invoice", "meeting", "report", "schedule", "budget",
+            "release", "holiday", "review", "quarterly", "deadline"};
+
+    /**
+     * The requests a simulated client can send.
+     */
+    enum Operation {
+        LOGIN, SEND, LIST, SEARCH, READ
+    }
+
+    private final Options options;
+    private final String[] users;
+    /** Accounts that exist on the server once setup is done; SEND only writes to these. */
+    private volatile String[] recipients = new String[0];
+    private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+    private final BlockingQueue<Long> schedule = new LinkedBlockingQueue<>();
+    /** Latencies only count for requests scheduled from here on; set when the warmup ends. */
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile boolean running = true;
+    private final AtomicLong missed = new AtomicLong();
+    private final List<SimulatedClient> clients = new ArrayList<>();
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        this.users = new String[options.users];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = USER_PREFIX + i;
+        }
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new OperationStats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+
+        EmailServer server = null;
+        Thread serverThread = null;
+        if (options.host == null) {
+            Logger.getLogger("").setLevel(Level.WARNING);
+            options.host = InetAddress.getLoopbackAddress().getHostAddress();
+            if (options.port == 0) {
+                options.port = freePort();
+            }
+            List<String> serverArgs = new ArrayList<>();
+            serverArgs.add("--port=" + options.port);
+            serverArgs.add("--hash-target-ms=0");
+            serverArgs.add("--operators=" + USER_PREFIX + 0);
+            serverArgs.addAll(options.serverArgs);
+            server = new EmailServer(ServerOptions.parse(serverArgs.toArray(new String[0])));
+            serverThread = new Thread(server::start, "load-server");
+            serverThread.start();
+            awaitServer(options.host, options.port);
+        }
+
+        try {
+            JsonObject results = new LoadGenerator(options).run();
+            try (Writer out = Files.newBufferedWriter(Paths.get(options.out), StandardCharsets.UTF_8)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(results, out);
+            }
+            System.out.println("results written to " + options.out);
+        } finally {
+            if (server != null) {
+                server.stop();
+                serverThread.join(TimeUnit.SECONDS.toMillis(15));
+            }
+        }
+    }
+
+    /**
+     * Connects and logs in every client, runs the warmup and the measured period and collects
+     * the results.
+     */
+    JsonObject run() throws InterruptedException {
+        CountDownLatch registered = new CountDownLatch(users.length);
+        CountDownLatch ready = new CountDownLatch(options.clients);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.clients; i++) {
+            SimulatedClient client = new SimulatedClient(i, registered, ready);
+            clients.add(client);
+            // Small stacks: thousands of these threads do little more than block on a socket
+            Thread thread = new Thread(null, client, "load-client-" + i, 256 * 1024);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        long connected = clients.stream().filter(c -> c.network != null).count();
+        System.out.println("clients connected: " + connected + " of " + options.clients);
+        recipients = clients.stream().filter(c -> c.loggedIn).map(c -> c.username).distinct().toArray(String[]::new);
+        if (recipients.length == 0) {
+            throw new IllegalStateException("No client could log in");
+        }
+
+        long start = System.nanoTime();
+        long warmupNanos = TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long measureNanos = TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        measureFrom = start + warmupNanos;
+        deadline = measureFrom + measureNanos;
+        for (SimulatedClient client : clients) {
+            client.go.countDown();
+        }
+
+        if (options.rate > 0) {
+            pace(start);
+        } else {
+            LockSupport.parkNanos(deadline - System.nanoTime());
+        }
+        running = false;
+        missed.addAndGet(schedule.size());
+        schedule.clear();
+
+        for (Thread thread : threads) {
+            thread.join(SOCKET_TIMEOUT_MS);
+        }
+        JsonObject serverStats = fetchServerStats();
+        for (SimulatedClient client : clients) {
+            client.disconnect();
+        }
+        return report(connected, serverStats);
+    }
+
+    /**
+     * Schedules requests at the configured rate until the deadline. Nothing here waits for the
+     * server; clients that fall behind leave the requests queued.
+     */
+    private void pace(long start) {
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / options.rate;
+        for (long n = 0; ; n++) {
+            long due = start + (long) (n * intervalNanos);
+            if (due >= deadline) {
+                return;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            schedule.add(due);
+        }
+    }
+
+    private JsonObject fetchServerStats() {
+        for (SimulatedClient client : clients) {
+            if (client.network == null) {
+                continue;
+            }
+            try {
+                JsonObject reply = client.call(request(EmailUtils.STATS));
+                if (EmailUtils.STATUS_STATS.equals(status(reply))) {
+                    return reply;
+                }
+            } catch (IOException | JsonParseException | IllegalStateException e) {
+                // try the next connection
+            }
+        }
+        return null;
+    }
+
+    private JsonObject report(long connected, JsonObject serverStats) {
+        double seconds = options.durationSeconds;
+        LatencyHistogram.Snapshot overall = LatencyHistogram.Snapshot.empty();
+        long requests = 0;
+        long errors = 0;
+        long throttled = 0;
+        long busy = 0;
+
+        JsonObject operations = new JsonObject();
+        System.out.printf("%-7s %9s %8s %9s %8s %9s %9s %9s %9s %9s%n",
+                "op", "count", "errors", "throttled", "busy", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        for (Map.Entry<Operation, OperationStats> entry : stats.entrySet()) {
+            OperationStats op = entry.getValue();
+            LatencyHistogram.Snapshot latency = op.latency.snapshot();
+            long answered = latency.getCount() + op.errors.sum() + op.throttled.sum() + op.busy.sum();
+            if (answered == 0) {
+                continue;
+            }
+            overall = overall.merge(latency);
+            requests += answered;
+            errors += op.errors.sum();
+            throttled += op.throttled.sum();
+            busy += op.busy.sum();
+
+            JsonObject node = new JsonObject();
+            node.addProperty("count", latency.getCount());
+            node.addProperty("errors", op.errors.sum());
+            node.addProperty("throttled", op.throttled.sum());
+            node.addProperty("busy", op.busy.sum());
+            node.addProperty("throughput", latency.getCount() / seconds);
+            node.add("latencyUs", latencyJson(latency));
+            operations.add(entry.getKey().name(), node);
+            printRow(entry.getKey().name(), latency, op.errors.sum(), op.throttled.sum(), op.busy.sum());
+        }
+        printRow("ALL", overall, errors, throttled, busy);
+
+        JsonObject results = new JsonObject();
+        results.add("config", options.toJson());
+        results.addProperty("clientsConnected", connected);
+        double errorRate = requests == 0 ? 0 : (double) errors / requests;
+        results.addProperty("requests", requests);
+        results.addProperty("errors", errors);
+        results.addProperty("throttled", throttled);
+        results.addProperty("busy", busy);
+        results.addProperty("errorRate", errorRate);
+        results.addProperty("throughput", overall.getCount() / seconds);
+        if (options.rate > 0) {
+            results.addProperty("missed", missed.get());
+        }
+        results.add("latencyUs", latencyJson(overall));
+        results.add("operations", operations);
+        if (serverStats != null) {
+            serverStats.remove(EmailUtils.FIELD_STATUS);
+            results.add("server", serverStats);
+        }
+
+        System.out.printf("throughput: %.1f req/s, error rate: %.4f%n", overall.getCount() / seconds, errorRate);
+        if (options.rate > 0) {
+            System.out.println("scheduled but never sent: " + missed.get());
+        }
+        return results;
+    }
+
+    private static void printRow(String name, LatencyHistogram.Snapshot latency, long errors, long throttled,
+                                 long busy) {
+        System.out.printf("%-7s %9d %8d %9d %8d %9d %9d %9d %9d %9d%n", name, latency.getCount(), errors, throttled, busy,
+                micros(latency.getPercentile(50)), micros(latency.getPercentile(90)),
+                micros(latency.getPercentile(99)), micros(latency.getPercentile(99.9)), micros(latency.getMax()));
+    }
+
+    private static JsonObject latencyJson(LatencyHistogram.Snapshot snapshot) {
+        JsonObject node = new JsonObject();
+        node.addProperty("mean", micros(snapshot.getMean()));
+        node.addProperty("p50", micros(snapshot.getPercentile(50)));
+        node.addProperty("p90", micros(snapshot.getPercentile(90)));
+        node.addProperty("p99", micros(snapshot.getPercentile(99)));
+        node.addProperty("p999", micros(snapshot.getPercentile(99.9)));
+        node.addProperty("max", micros(snapshot.getMax()));
+        return node;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static JsonObject request(String command) {
+        JsonObject request = new JsonObject();
+        request.addProperty(EmailUtils.FIELD_COMMAND, command);
+        return request;
+    }
+
+    private static String status(JsonObject reply) {
+        JsonElement status = reply.get(EmailUtils.FIELD_STATUS);
+        return status == null || status.isJsonNull() ? null : status.getAsString();
+    }
+
+    private static boolean isFailure(String status) {
+        return status == null || status.equals(EmailUtils.STATUS_ERROR) || status.endsWith("_FAILURE");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitServer(String host, int port) throws IOException, InterruptedException {
+        long giveUp = System.currentTimeMillis() + SERVER_START_TIMEOUT_MS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > giveUp) {
+                    throw new IOException("Server did not start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static final class OperationStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+        private final LongAdder busy = new LongAdder();
+    }
+
+    /**
+     * One connection and account, sending one request at a time.
+     */
+    private final class SimulatedClient implements Runnable {
+        private final int index;
+        private final String username;
+        private final CountDownLatch registered;
+        private final CountDownLatch ready;
+        private final CountDownLatch go = new CountDownLatch(1);
+        /** Inbox IDs from the last LIST, for READ to pick from. */
+        private int[] knownIds = new int[0];
+        private volatile NetworkLayerJSON network;
+        private volatile boolean loggedIn;
+
+        SimulatedClient(int index, CountDownLatch registered, CountDownLatch ready) {
+            this.index = index;
+            this.username = users[index % users.length];
+            this.registered = registered;
+            this.ready = ready;
+        }
+
+        @Override
+        public void run() {
+            try {
+                connectAndLogIn(index < users.length);
+            } catch (IOException | JsonParseException | IllegalStateException e) {
+                System.err.println(username + ": could not log in: " + e.getMessage());
+                disconnect();
+            } finally {
+                if (index < users.length) {
+                    registered.countDown();
+                }
+                ready.countDown();
+            }
+            try {
+                go.await();
+                if (network != null) {
+                    loop();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void loop() throws InterruptedException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (running) {
+                long scheduled;
+                if (options.rate > 0) {
+                    Long due = schedule.poll(100, TimeUnit.MILLISECONDS);
+                    if (due == null) {
+                        continue;
+                    }
+                    scheduled = due;
+                } else {
+                    scheduled = System.nanoTime();
+                }
+                if (scheduled >= deadline) {
+                    return;
+                }
+                execute(options.pick(random), scheduled);
+                if (options.rate <= 0 && options.thinkMillis > 0) {
+                    double think = -Math.log(1 - random.nextDouble()) * options.thinkMillis;
+                    Thread.sleep((long) think);
+                }
+            }
+        }
+
+        private void execute(Operation operation, long scheduled) {
+            OperationStats op = stats.get(operation);
+            String status;
+            try {
+                if (network == null) {
+                    connectAndLogIn(false);
+                }
+                status = perform(operation);
+            } catch (IOException | JsonParseException | IllegalStateException e) {
+                status = null;
+                disconnect();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RECONNECT_BACKOFF_MS));
+            }
+            if (scheduled < measureFrom) {
+                return;
+            }
+            if (EmailUtils.STATUS_THROTTLED.equals(status)) {
+                op.throttled.increment();
+                return;
+            }
+            if (EmailUtils.STATUS_BUSY.equals(status)) {
+                op.busy.increment();
+                return;
+            }
+            if (isFailure(status)) {
+                op.errors.increment();
+                return;
+            }
+            op.latency.record(System.nanoTime() - scheduled);
+        }
+
+        /**
+         * Sends one request and waits for its response.
+         *
+         * @return the response's status
+         */
+        private String perform(Operation operation) throws IOException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            JsonObject request;
+            switch (operation) {
+                case LOGIN:
+                    request = request(EmailUtils.LOGIN);
+                    request.addProperty(EmailUtils.FIELD_USERNAME, username);
+                    request.addProperty(EmailUtils.FIELD_PASSWORD, PASSWORD);
+                    break;
+                case SEND:
+                    request = request(EmailUtils.SEND);
+                    request.addProperty(EmailUtils.FIELD_RECIPIENT, recipients[random.nextInt(recipients.length)]);
+                    request.addProperty(EmailUtils.FIELD_SUBJECT, "Load test " + WORDS[random.nextInt(WORDS.length)]);
+                    request.addProperty(EmailUtils.FIELD_BODY, body(random));
+                    break;
+                case LIST:
+                    request = request(EmailUtils.LIST_INBOX);
+                    request.addProperty(EmailUtils.FIELD_LIMIT, PAGE_SIZE);
+                    break;
+                case SEARCH:
+                    request = request(EmailUtils.SEARCH_INBOX);
+                    request.addProperty(EmailUtils.FIELD_TERM, WORDS[random.nextInt(WORDS.length)]);
+                    request.addProperty(EmailUtils.FIELD_LIMIT, PAGE_SIZE);
+                    break;
+                case READ:
+                    if (knownIds.length == 0) {
+                        // Nothing listed yet; a READ of a made-up ID would only measure the miss
+                        return perform(Operation.LIST);
+                    }
+                    request = request(EmailUtils.READ);
+                    request.addProperty(EmailUtils.FIELD_ID, knownIds[random.nextInt(knownIds.length)]);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation: " + operation);
+            }
+
+            JsonObject reply = call(request);
+            if (operation == Operation.LIST && reply.has(EmailUtils.FIELD_EMAILS)) {
+                JsonArray emails = reply.getAsJsonArray(EmailUtils.FIELD_EMAILS);
+                int[] ids = new int[emails.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = emails.get(i).getAsJsonObject().get(EmailUtils.FIELD_ID).getAsInt();
+                }
+                knownIds = ids;
+            }
+            return status(reply);
+        }
+
+        private String body(ThreadLocalRandom random) {
+            StringBuilder body = new StringBuilder();
+            int words = 20 + random.nextInt(60);
+            for (int i = 0; i < words; i++) {
+                body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            return body.toString();
+        }
+
+        JsonObject call(JsonObject request) throws IOException {
+            network.send(request.toString());
+            return JsonParser.parseString(network.receive()).getAsJsonObject();
+        }
+
+        /**
+         * Connects and authenticates. The first client of each account registers it; the rest
+         * wait for that and log in. Busy or throttled answers are retried after a pause, since
+         * thousands of clients starting at once easily fill the server's authentication queue.
+         */
+        private void connectAndLogIn(boolean register) throws IOException {
+            if (!register) {
+                try {
+                    registered.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for registration", e);
+                }
+            }
+            String command = register ? EmailUtils.REGISTER : EmailUtils.LOGIN;
+            long giveUp = System.nanoTime() + AUTH_RETRY_NANOS;
+            for (int attempt = 1; ; attempt++) {
+                if (network == null) {
+                    network = new NetworkLayerJSON(connectSocket());
+                }
+                JsonObject request = request(command);
+                request.addProperty(EmailUtils.FIELD_USERNAME, username);
+                request.addProperty(EmailUtils.FIELD_PASSWORD, PASSWORD);
+                JsonObject reply = call(request);
+                String status = status(reply);
+                if (EmailUtils.STATUS_REGISTERED.equals(status) || EmailUtils.STATUS_LOGIN_SUCCESS.equals(status)) {
+                    loggedIn = true;
+                    return;
+                }
+                if (EmailUtils.STATUS_REGISTER_FAILURE.equals(status)) {
+                    // Left over from an earlier run against the same server
+                    command = EmailUtils.LOGIN;
+                    continue;
+                }
+                boolean retry = EmailUtils.STATUS_BUSY.equals(status) || EmailUtils.STATUS_THROTTLED.equals(status)
+                        || EmailUtils.STATUS_ERROR.equals(status);
+                if (!retry || !running || System.nanoTime() > giveUp) {
+                    throw new IOException(command + " answered " + status);
+                }
+                if (EmailUtils.STATUS_BUSY.equals(status)) {
+                    // A client turned away at connect has lost its connection; start over on a new one
+                    disconnect();
+                }
+                long pause = reply.has(EmailUtils.FIELD_RETRY_AFTER)
+                        ? reply.get(EmailUtils.FIELD_RETRY_AFTER).getAsLong()
+                        : RECONNECT_BACKOFF_MS * Math.min(attempt, 10);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(pause));
+            }
+        }
+
+        /**
+         * Connects from a loopback address of this client's own when the target is loopback and
+         * the OS accepts it (Linux routes all of 127/8), otherwise from the default address.
+         */
+        private Socket connectSocket() throws IOException {
+            InetSocketAddress target = new InetSocketAddress(options.host, options.port);
+            if (target.getAddress() != null && target.getAddress().isLoopbackAddress() && options.spreadSources) {
+                Socket socket = new Socket();
+                try {
+                    int block = index / 254;
+                    byte[] source = {127, (byte) (block >> 8), (byte) block, (byte) (index % 254 + 1)};
+                    socket.bind(new InetSocketAddress(InetAddress.getByAddress(source), 0));
+                    socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+                    socket.connect(target, SOCKET_TIMEOUT_MS);
+                    return socket;
+                } catch (IOException e) {
+                    socket.close();
+                    options.spreadSources = false;
+                }
+            }
+            Socket socket = new Socket();
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            socket.connect(target, SOCKET_TIMEOUT_MS);
+            return socket;
+        }
+
+        void disconnect() {
+            NetworkLayerJSON current = network;
+            network = null;
+            if (current != null) {
+                try {
+                    current.disconnect();
+                } catch (IOException ignored) {
+                    // best effort
+                }
+            }
+        }
+    }
+
+    /**
+     * Command line options, all of the form {@code --name=value}.
+     */
+    static final class Options {
+        String host;
+        int port;
+        int clients = 100;
+        int users;
+        int warmupSeconds = 5;
+        int durationSeconds = 30;
+        /** Total requests per second in open-loop mode; 0 runs closed-loop. */
+        double rate;
+        /** Mean think time between a client's requests in closed-loop mode. */
+        long thinkMillis;
+        String mix = "login:1,send:20,list:40,search:19,read:20";
+        String out = "loadgen-results.json";
+        volatile boolean spreadSources = true;
+        final List<String> serverArgs = new ArrayList<>();
+        /** Cumulative weights in {@link Operation} order, for {@link #pick}. */
+        private int[] cumulative;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+                }
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                if (name.startsWith("server-")) {
+                    options.serverArgs.add("--" + name.substring("server-".length()) + "=" + value);
+                    continue;
+                }
+                switch (name) {
+                    case "host":
+                        options.host = value;
+                        break;
+                    case "port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "clients":
+                        options.clients = positive(name, Integer.parseInt(value));
+                        break;
+                    case "users":
+                        options.users = positive(name, Integer.parseInt(value));
+                        break;
+                    case "warmup-s":
+                        options.warmupSeconds = Integer.parseInt(value);
+                        break;
+                    case "duration-s":
+                        options.durationSeconds = positive(name, Integer.parseInt(value));
+                        break;
+                    case "rate":
+                        options.rate = Double.parseDouble(value);
+                        break;
+                    case "think-ms":
+                        options.thinkMillis = Long.parseLong(value);
+                        break;
+                    case "mix":
+                        options.mix = value;
+                        break;
+                    case "out":
+                        options.out = value;
+                        break;
+                    case "spread-sources":
+                        options.spreadSources = Boolean.parseBoolean(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: --" + name);
+                }
+            }
+            if (options.host != null && options.port == 0) {
+                options.port = EmailUtils.PORT;
+            }
+            if (options.users == 0 || options.users > options.clients) {
+                options.users = options.clients;
+            }
+            options.cumulative = parseMix(options.mix);
+            return options;
+        }
+
+        /**
+         * Parses a mix such as {@code send:1,list:4}; operations left out are never sent.
+         */
+        static int[] parseMix(String mix) {
+            int[] weights = new int[Operation.values().length];
+            for (String part : mix.split(",")) {
+                String[] pair = part.trim().split(":");
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Expected operation:weight but got: " + part);
+                }
+                Operation operation = Operation.valueOf(pair[0].trim().toUpperCase());
+                int weight = Integer.parseInt(pair[1].trim());
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Weight must not be negative: " + part);
+                }
+                weights[operation.ordinal()] = weight;
+            }
+            int total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                total += weights[i];
+                weights[i] = total;
+            }
+            if (total == 0) {
+                throw new IllegalArgumentException("Mix has no operations: " + mix);
+            }
+            return weights;
+        }
+
+        Operation pick(ThreadLocalRandom random) {
+            int ticket = random.nextInt(cumulative[cumulative.length - 1]);
+            for (int i = 0; i < cumulative.length; i++) {
+                if (ticket < cumulative[i]) {
+                    return Operation.values()[i];
+                }
+            }
+            throw new IllegalStateException("Unreachable");
+        }
+
+        JsonObject toJson() {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("host", host);
+            values.put("port", port);
+            values.put("clients", clients);
+            values.put("users", users);
+            values.put("warmupSeconds", warmupSeconds);
+            values.put("durationSeconds", durationSeconds);
+            values.put("mode", rate > 0 ? "open" : "closed");
+            values.put("rate", rate);
+            values.put("thinkMillis", thinkMillis);
+            values.put("mix", mix);
+            values.put("serverArgs", String.join(" ", serverArgs));
+            return new GsonBuilder().create().toJsonTree(values).getAsJsonObject();
+        }
+
+        private static int positive(String name, int value) {
+            if (value <= 0) {
+                throw new IllegalArgumentException("--" + name + " must be positive");
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package model;
+
+/**
+ * Decides where {@link EmailManager} keeps the bodies of new emails.
+ */
+public interface BodyStore {
+    /**
+     * Keeps bodies as ordinary strings on the heap.
+     */
+    BodyStore HEAP = MessageBody::of;
+
+    /**
+     * Stores a body and returns the handle to keep in the {@link Email}.
+     *
+     * @param text the body text
+     * @return a handle that returns the text
+     */
+    MessageBody store(String text);
+}
@@ -0,0 +1,30 @@
+package model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * One entry in a user's {@link ChangeLog}.
+ */
+@Data
+@AllArgsConstructor
+public class Change {
+    /**
+     * What changed in the user's view of their mail.
+     */
+    public enum Kind {
+        /** An email arrived in the inbox. */
+        INBOX,
+        /** An email was added to the sent folder. */
+        SENT,
+        /** Someone read an email the user sent or received; see {@link #getReader()}. */
+        READ
+    }
+
+    /** Position in the log, starting at 1; the log's version once this change is applied. */
+    private long version;
+    private Kind kind;
+    private Email email;
+    /** Who read the email, for {@link Kind#READ}; null otherwise. */
+    private String reader;
+}
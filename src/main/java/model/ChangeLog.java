@@ -0,0 +1,66 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sequence of changes to one user's mail, so a client can fetch only what happened since its
+ * last refresh instead of listing whole mailboxes. Each change gets the next version number;
+ * a client remembers the version it has seen and asks for the changes after it, which is an
+ * index lookup into the log.
+ * <p>
+ * Versions are only meaningful within one {@link #getEpoch() epoch}. The log is rebuilt when the
+ * server restarts, possibly in a different order, so each log gets a fresh random epoch and a
+ * client holding another epoch has to start over from version 0.
+ * <p>
+ * Like {@link Mailbox}, writers must be serialized per user, and readers need no lock.
+ */
+public class ChangeLog {
+    /** Kept below 2^53 so clients that parse JSON numbers as doubles round-trip it exactly. */
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, 1L << 53);
+    private final ChunkedAppendList<Change> changes = new ChunkedAppendList<>();
+
+    /**
+     * Appends a change. Callers hold the owner's {@link User#getDeliveryLock()}.
+     *
+     * @param kind   what changed
+     * @param email  the email concerned
+     * @param reader who read it, for {@link Change.Kind#READ}
+     */
+    void add(Change.Kind kind, Email email, String reader) {
+        changes.add(new Change(changes.size() + 1L, kind, email, reader));
+    }
+
+    /**
+     * @return identifies this log; versions from a log with another epoch do not apply
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the version of the latest change, 0 if there is none
+     */
+    public long getVersion() {
+        return changes.size();
+    }
+
+    /**
+     * Returns the changes after a version, oldest first.
+     *
+     * @param version the last version the client has seen
+     * @param limit   maximum number of changes to return
+     * @return up to {@code limit} changes; empty if the client is up to date
+     */
+    public List<Change> since(long version, int limit) {
+        int size = changes.size();
+        int from = (int) Math.max(0, Math.min(version, size));
+        int to = (int) Math.min(size, (long) from + limit);
+        List<Change> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            result.add(changes.get(i));
+        }
+        return result;
+    }
+}
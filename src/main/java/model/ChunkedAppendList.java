@@ -0,0 +1,94 @@
+package model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only list stored as a directory of fixed-size chunks. Appending never copies earlier
+ * chunks, so it costs O(1) however long the list is; only the tiny directory (one reference per
+ * {@value #CHUNK_SIZE} items) is occasionally copied. A chunk starts small and doubles until it is
+ * full, so short lists stay small.
+ * <p>
+ * There must be a single writer at a time (callers serialize {@link #add}); any number of readers
+ * may run concurrently without locks. The volatile {@code size} is written last, so a reader that
+ * reads the size sees every item below it. A grown chunk replaces the old one in the directory
+ * while readers may be looking, so directory slots are written and read as volatiles: a reader
+ * that finds the new chunk also sees everything copied into it.
+ */
+final class ChunkedAppendList<T> {
+    private static final int CHUNK_SHIFT = 10;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_CHUNK_CAPACITY = 8;
+
+    private volatile AtomicReferenceArray<Object[]> chunks = new AtomicReferenceArray<>(1);
+    private volatile int size;
+
+    /**
+     * Appends an item. Must not be called concurrently with another {@code add}.
+     *
+     * @param item the item to append
+     */
+    void add(T item) {
+        int index = size;
+        int chunkIndex = index >>> CHUNK_SHIFT;
+        int slot = index & CHUNK_MASK;
+
+        AtomicReferenceArray<Object[]> directory = chunks;
+        if (chunkIndex == directory.length()) {
+            AtomicReferenceArray<Object[]> grown = new AtomicReferenceArray<>(directory.length() * 2);
+            for (int i = 0; i < directory.length(); i++) {
+                grown.set(i, directory.get(i));
+            }
+            directory = grown;
+            chunks = directory;
+        }
+        Object[] chunk = directory.get(chunkIndex);
+        if (chunk == null) {
+            chunk = new Object[INITIAL_CHUNK_CAPACITY];
+            directory.set(chunkIndex, chunk);
+        } else if (slot == chunk.length) {
+            // Readers still holding the old array only look at slots it already contains
+            chunk = Arrays.copyOf(chunk, Math.min(chunk.length * 2, CHUNK_SIZE));
+            directory.set(chunkIndex, chunk);
+        }
+        chunk[slot] = item;
+        size = index + 1;
+    }
+
+    /**
+     * Returns the item at an index below a size previously read from {@link #size()}.
+     */
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        return (T) chunks.get(index >>> CHUNK_SHIFT)[index & CHUNK_MASK];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns a read-only view of the items present now. Later appends do not show up in it,
+     * and taking it copies nothing.
+     */
+    List<T> snapshot() {
+        int snapshotSize = size;
+        return new AbstractList<T>() {
+            @Override
+            public T get(int index) {
+                if (index < 0 || index >= snapshotSize) {
+                    throw new IndexOutOfBoundsException("Index " + index + ", size " + snapshotSize);
+                }
+                return ChunkedAppendList.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return snapshotSize;
+            }
+        };
+    }
+}
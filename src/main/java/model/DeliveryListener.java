@@ -0,0 +1,20 @@
+package model;
+
+/**
+ * Told about every email {@link EmailManager} delivers, after it is in the recipients' inboxes
+ * and recorded in the journal. Emails restored during recovery are not reported.
+ */
+public interface DeliveryListener {
+    /**
+     * A listener that ignores every delivery.
+     */
+    DeliveryListener NONE = email -> {
+    };
+
+    /**
+     * Called on the sender's thread once an email has been delivered; must not block.
+     *
+     * @param email the delivered email
+     */
+    void delivered(Email email);
+}
@@ -2,18 +2,43 @@ package model;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
+
 import java.time.LocalDateTime;
 import java.util.List;
 
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
 public class Email {
+    /** Emails are identified by their ID, so comparing or hashing one never touches the body. */
+    @EqualsAndHashCode.Include
+    private int id;
     private String sender;
     private List<String> recipients;
     private String subject;
-    private String body;
+    @ToString.Exclude
+    private MessageBody body;
     private LocalDateTime timestamp;
     private boolean viewed;
+
+    /**
+     * Returns the body text. For bodies kept outside the heap this decodes the text on each call.
+     *
+     * @return the body text
+     */
+    public String getBody() {
+        return body == null ? null : body.text();
+    }
+
+    public void setBody(String text) {
+        this.body = text == null ? null : MessageBody.of(text);
+    }
+
+    public void setBody(MessageBody body) {
+        this.body = body;
+    }
 }
@@ -4,22 +4,25 @@ import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 /**
  * Manages email creation, storage, retrieval, and search operations in memory.
- * Uses a thread-safe map for email storage and an atomic counter for unique IDs.
+ * <p>
+ * Emails are split into {@link Shard shards} by sender, each with its own ID map and its own range
+ * of IDs, so concurrent senders do not all contend on one counter and one map. A delivery locks
+ * the mailboxes of everyone involved, whichever shards they belong to, and adds the email to all
+ * of them before any lock is released.
  */
 public class EmailManager implements IEmailManager {
     /**
-     * Thread-safe map of email IDs to Email objects.
+     * Shards used when none are specified: one per core, since sends are CPU-bound.
      */
-    private final Map<Integer, Email> emailsById = new ConcurrentHashMap<>();
+    public static final int DEFAULT_SHARDS = Runtime.getRuntime().availableProcessors();
 
     /**
-     * Generates unique email IDs in a thread-safe manner.
+     * The shards; an email belongs to the shard of its sender.
      */
-    private final AtomicInteger nextEmailId = new AtomicInteger(1);
+    private final Shard[] shards;
 
     /**
      * Reference to the user manager for validating users and updating inbox/sent lists.
@@ -27,19 +30,87 @@ public class EmailManager implements IEmailManager {
     private final UserManager userManager;
 
     /**
-     * Constructs an EmailManager with the given UserManager and bootstraps sample emails.
+     * Records sent emails and read receipts so they survive a restart.
+     */
+    private final MailJournal journal;
+
+    /**
+     * Where the bodies of new emails are kept.
+     */
+    private final BodyStore bodyStore;
+
+    /**
+     * Notified of each new delivery, e.g. to push it to connected recipients.
+     */
+    private volatile DeliveryListener deliveryListener = DeliveryListener.NONE;
+
+    /**
+     * Constructs an in-memory EmailManager with the given UserManager and bootstraps sample emails.
      *
      * @param userManager the UserManager for validating senders/recipients and updating user mailboxes
      */
     public EmailManager(UserManager userManager) {
-        this.userManager = userManager;
+        this(userManager, MailJournal.NONE);
         bootstrapEmails();
     }
 
+    /**
+     * Constructs an empty EmailManager that records changes in the given journal.
+     * Existing emails are restored with {@link #restoreEmail(Email)}.
+     *
+     * @param userManager the UserManager for validating senders/recipients and updating user mailboxes
+     * @param journal     the journal to record sent emails and read receipts in
+     */
+    public EmailManager(UserManager userManager, MailJournal journal) {
+        this(userManager, journal, BodyStore.HEAP);
+    }
+
+    /**
+     * Constructs an empty EmailManager that records changes in the given journal and keeps
+     * message bodies in the given store.
+     *
+     * @param userManager the UserManager for validating senders/recipients and updating user mailboxes
+     * @param journal     the journal to record sent emails and read receipts in
+     * @param bodyStore   where to keep message bodies
+     */
+    public EmailManager(UserManager userManager, MailJournal journal, BodyStore bodyStore) {
+        this(userManager, journal, bodyStore, DEFAULT_SHARDS);
+    }
+
+    /**
+     * Constructs an empty EmailManager with the given number of shards.
+     *
+     * @param userManager the UserManager for validating senders/recipients and updating user mailboxes
+     * @param journal     the journal to record sent emails and read receipts in
+     * @param bodyStore   where to keep message bodies
+     * @param shardCount  how many shards to split emails into; at least 1
+     */
+    public EmailManager(UserManager userManager, MailJournal journal, BodyStore bodyStore, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be at least 1");
+        }
+        this.userManager = userManager;
+        this.journal = journal;
+        this.bodyStore = bodyStore;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, shardCount);
+        }
+    }
+
+    /**
+     * Sets the listener told about every email delivered from now on.
+     *
+     * @param deliveryListener the listener, or {@link DeliveryListener#NONE}
+     */
+    public void setDeliveryListener(DeliveryListener deliveryListener) {
+        this.deliveryListener = deliveryListener;
+    }
+
     /**
      * Populates the system with sample emails for testing between bootstrap users.
      */
-    private void bootstrapEmails() {
+    public void bootstrapEmails() {
         sendEmail("testUser1", "testUser2", "Welcome to the email system",
                 "Hello testUser2, Email 1 cool email");
 
@@ -76,24 +147,243 @@ public class EmailManager implements IEmailManager {
         email.setSender(sender);
         email.setRecipients(new ArrayList<>(recipients));
         email.setSubject(subject);
-        email.setBody(body);
+        email.setBody(bodyStore.store(body));
         email.setTimestamp(LocalDateTime.now());
         email.setViewed(false);
 
-        int emailId = nextEmailId.getAndIncrement();
-        emailsById.put(emailId, email);
+        deliver(Collections.singletonList(email)).await();
 
-        // Add to sender's sent list
-        User senderUser = userManager.getUserByUsername(sender);
-        senderUser.getSent().add(email);
+        deliveryListener.delivered(email);
+        return email;
+    }
 
-        // Add to each recipient's inbox
-        for (String recipient : recipients) {
+    /**
+     * Sends several emails from one sender at once. Each draft is validated like
+     * {@link #sendEmail}; the valid ones are delivered together, taking every involved user's
+     * delivery lock once for the whole batch, and journaled together.
+     *
+     * @param sender username of the email sender
+     * @param drafts emails with recipients, subject and body set
+     * @return for each draft, in order, the sent email or null if a user validation failed
+     */
+    @Override
+    public List<Email> sendEmails(String sender, List<Email> drafts) {
+        List<Email> results = new ArrayList<>(drafts.size());
+        List<Email> sent = new ArrayList<>(drafts.size());
+        boolean senderExists = userManager.userExists(sender);
+        for (Email draft : drafts) {
+            boolean valid = senderExists;
+            for (String recipient : draft.getRecipients()) {
+                valid = valid && userManager.userExists(recipient);
+            }
+            if (!valid) {
+                results.add(null);
+                continue;
+            }
+
+            Email email = new Email();
+            email.setSender(sender);
+            email.setRecipients(new ArrayList<>(draft.getRecipients()));
+            email.setSubject(draft.getSubject());
+            email.setBody(bodyStore.store(draft.getBody()));
+            email.setTimestamp(LocalDateTime.now());
+            email.setViewed(false);
+            results.add(email);
+            sent.add(email);
+        }
+        if (sent.isEmpty()) {
+            return results;
+        }
+
+        deliver(sent).await();
+
+        for (Email email : sent) {
+            deliveryListener.delivered(email);
+        }
+        return results;
+    }
+
+    /**
+     * Assigns each email its ID and adds it to the sender's sent folder and each recipient's inbox.
+     * The delivery locks of everyone involved are taken in username order, so concurrent deliveries
+     * cannot deadlock, and held until every mailbox has the email, so no reader of a mailbox
+     * delivered to later can miss it in another.
+     * <p>
+     * The IDs come from the sender's shard but must be higher than any ID already in the involved
+     * mailboxes, which may have received mail from other shards. Every mailbox therefore still
+     * receives its emails in ascending ID order and only ever appends.
+     * <p>
+     * The emails are handed to the journal before they reach any mailbox, so a read receipt can
+     * never be journaled ahead of the email it refers to. They are added to the ID map before
+     * that, so a snapshot that starts after the hand-off captures them.
+     *
+     * @return waits until the journal has made the emails durable; call it after the locks are released
+     */
+    private MailJournal.Commit deliver(List<Email> emails) {
+        TreeMap<String, User> involved = new TreeMap<>();
+        for (Email email : emails) {
+            involved.computeIfAbsent(email.getSender(), userManager::getUserByUsername);
+            for (String recipient : email.getRecipients()) {
+                involved.computeIfAbsent(recipient, userManager::getUserByUsername);
+            }
+        }
+
+        for (User user : involved.values()) {
+            user.getDeliveryLock().lock();
+        }
+        try {
+            int newest = 0;
+            for (User user : involved.values()) {
+                newest = Math.max(newest, Math.max(user.getInbox().lastId(), user.getSent().lastId()));
+            }
+            for (Email email : emails) {
+                Shard shard = shardForSender(email.getSender());
+                email.setId(shard.nextId(newest));
+                newest = email.getId();
+                shard.emailsById.put(email.getId(), email);
+            }
+            MailJournal.Commit commit;
+            try {
+                commit = journal.emailsSending(emails);
+            } catch (RuntimeException e) {
+                for (Email email : emails) {
+                    shardForId(email.getId()).emailsById.remove(email.getId());
+                }
+                throw e;
+            }
+
+            for (Email email : emails) {
+                involved.get(email.getSender()).getSent().add(email);
+                for (String recipient : email.getRecipients()) {
+                    involved.get(recipient).getInbox().add(email);
+                }
+                recordDelivery(email, involved.values());
+            }
+            return commit;
+        } finally {
+            for (User user : involved.descendingMap().values()) {
+                user.getDeliveryLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Re-creates a sent email during recovery without recording it in the journal, and makes
+     * sure later emails get higher IDs. Does nothing if an email with the same ID exists.
+     *
+     * @param email the email, with its original ID
+     */
+    public void restoreEmail(Email email) {
+        Shard shard = shardForId(email.getId());
+        if (shard.emailsById.containsKey(email.getId())) {
+            return;
+        }
+        email.setBody(bodyStore.store(email.getBody()));
+        if (shard.emailsById.putIfAbsent(email.getId(), email) != null) {
+            return;
+        }
+        shard.restored(email.getId());
+
+        TreeMap<String, User> involved = new TreeMap<>();
+        User senderUser = userManager.getUserByUsername(email.getSender());
+        if (senderUser != null) {
+            senderUser.getSent().add(email);
+            involved.put(senderUser.getUsername(), senderUser);
+        }
+        for (String recipient : email.getRecipients()) {
             User recipientUser = userManager.getUserByUsername(recipient);
-            recipientUser.getInbox().add(email);
+            if (recipientUser != null) {
+                recipientUser.getInbox().add(email);
+                involved.put(recipientUser.getUsername(), recipientUser);
+            }
         }
+        recordDelivery(email, involved.values());
+    }
 
-        return email;
+    /**
+     * Adds the new email to the change log of each user involved, once per user and folder.
+     * Callers hold the delivery locks of all these users.
+     */
+    private static void recordDelivery(Email email, Collection<User> involved) {
+        for (User user : involved) {
+            if (email.getSender().equals(user.getUsername())) {
+                user.getChanges().add(Change.Kind.SENT, email, null);
+            }
+            if (email.getRecipients().contains(user.getUsername())) {
+                user.getChanges().add(Change.Kind.INBOX, email, null);
+            }
+        }
+    }
+
+    /**
+     * Records that a recipient read an email, in the reader's log (their inbox read state) and
+     * in the sender's log (the sent folder's view status). Each log is locked on its own.
+     */
+    private void recordRead(User reader, Email email) {
+        appendChange(reader, Change.Kind.READ, email, reader.getUsername());
+        User senderUser = userManager.getUserByUsername(email.getSender());
+        if (senderUser != null && senderUser != reader) {
+            appendChange(senderUser, Change.Kind.READ, email, reader.getUsername());
+        }
+    }
+
+    private static void appendChange(User user, Change.Kind kind, Email email, String reader) {
+        user.getDeliveryLock().lock();
+        try {
+            user.getChanges().add(kind, email, reader);
+        } finally {
+            user.getDeliveryLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the change log of a user, for incremental refreshes.
+     *
+     * @param username the user
+     * @return the log, or null if the user does not exist
+     */
+    @Override
+    public ChangeLog getChangeLog(String username) {
+        User user = userManager.getUserByUsername(username);
+        return user == null ? null : user.getChanges();
+    }
+
+    /**
+     * Re-applies a read receipt during recovery without recording it in the journal.
+     * Unknown users or emails are ignored.
+     *
+     * @param username the recipient who read the email
+     * @param emailId  the email ID
+     */
+    public void restoreView(String username, int emailId) {
+        Email email = shardForId(emailId).emailsById.get(emailId);
+        User user = userManager.getUserByUsername(username);
+        if (email != null && user != null && user.markEmailAsViewed(email)) {
+            recordRead(user, email);
+        }
+    }
+
+    /**
+     * Returns a live, read-only view of every email on the server.
+     *
+     * @return all emails, in no particular order
+     */
+    public Collection<Email> getAllEmails() {
+        return new AbstractCollection<Email>() {
+            @Override
+            public Iterator<Email> iterator() {
+                return Arrays.stream(shards).flatMap(shard -> shard.emailsById.values().stream()).iterator();
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                for (Shard shard : shards) {
+                    size += shard.emailsById.size();
+                }
+                return size;
+            }
+        };
     }
 
     /**
@@ -114,20 +404,36 @@ public class EmailManager implements IEmailManager {
      * Lists all received emails for the given user.
      *
      * @param username the username whose inbox to list
-     * @return a List of Email objects in the user's inbox, or empty list if user not found
+     * @return a List of Email objects in the user's inbox in ascending ID order, or empty list if user not found
      */
     @Override
     public List<Email> listInbox(String username) {
         User user = userManager.getUserByUsername(username);
-        return (user == null) ? Collections.emptyList() : new ArrayList<>(user.getInbox());
+        return (user == null) ? Collections.emptyList() : user.getInbox().toList();
+    }
+
+    /**
+     * Lists one page of a user's inbox, newest first.
+     *
+     * @param username the username whose inbox to list
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param limit    the maximum number of emails to return
+     * @return the page, empty if user not found
+     */
+    @Override
+    public Page<Email> listInbox(String username, Integer cursor, int limit) {
+        User user = userManager.getUserByUsername(username);
+        return (user == null) ? emptyPage() : user.getInbox().page(cursor, limit);
     }
 
     /**
-     * Searches for emails in a user's inbox matching the search term in sender, subject, or body.
+     * Searches a user's inbox by sender, subject, or body using the inbox's word index.
+     * A single word matches words starting with it, several words must all match, and a
+     * quoted query matches the words as a phrase.
      *
      * @param username the username whose inbox to search
-     * @param term     the search keyword
-     * @return a List of matching Email objects, or empty list if user not found
+     * @param term     the search query
+     * @return a List of matching Email objects in ascending ID order, or empty list if user not found
      */
     @Override
     public List<Email> searchInbox(String username, String term) {
@@ -135,32 +441,57 @@ public class EmailManager implements IEmailManager {
         if (user == null) {
             return Collections.emptyList();
         }
-        String lowercaseTerm = term.toLowerCase();
-        return user.getInbox().stream()
-                .filter(email -> email.getSender().toLowerCase().contains(lowercaseTerm)
-                        || email.getSubject().toLowerCase().contains(lowercaseTerm)
-                        || email.getBody().toLowerCase().contains(lowercaseTerm))
-                .collect(Collectors.toList());
+        return user.getInbox().search(term);
+    }
+
+    /**
+     * Searches a user's inbox and returns one page of the results, newest first.
+     *
+     * @param username the username whose inbox to search
+     * @param term     the search query
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param limit    the maximum number of emails to return
+     * @return the page, empty if user not found
+     */
+    @Override
+    public Page<Email> searchInbox(String username, String term, Integer cursor, int limit) {
+        User user = userManager.getUserByUsername(username);
+        return (user == null) ? emptyPage() : user.getInbox().searchPage(term, cursor, limit);
     }
 
     /**
      * Lists all sent emails for the given user.
      *
      * @param username the username whose sent mailbox to list
-     * @return a List of Email objects in the user's sent folder, or empty list if user not found
+     * @return a List of Email objects in the user's sent folder in ascending ID order, or empty list if user not found
      */
     @Override
     public List<Email> listSent(String username) {
         User user = userManager.getUserByUsername(username);
-        return (user == null) ? Collections.emptyList() : new ArrayList<>(user.getSent());
+        return (user == null) ? Collections.emptyList() : user.getSent().toList();
     }
 
     /**
-     * Searches for emails in a user's sent folder matching the search term in recipient, subject, or body.
+     * Lists one page of a user's sent folder, newest first.
+     *
+     * @param username the username whose sent folder to list
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param limit    the maximum number of emails to return
+     * @return the page, empty if user not found
+     */
+    @Override
+    public Page<Email> listSent(String username, Integer cursor, int limit) {
+        User user = userManager.getUserByUsername(username);
+        return (user == null) ? emptyPage() : user.getSent().page(cursor, limit);
+    }
+
+    /**
+     * Searches a user's sent folder by recipient, subject, or body using the folder's word index.
+     * Accepts the same queries as {@link #searchInbox(String, String)}.
      *
      * @param username the username whose sent folder to search
-     * @param term     the search keyword
-     * @return a List of matching Email objects, or empty list if user not found
+     * @param term     the search query
+     * @return a List of matching Email objects in ascending ID order, or empty list if user not found
      */
     @Override
     public List<Email> searchSent(String username, String term) {
@@ -168,18 +499,32 @@ public class EmailManager implements IEmailManager {
         if (user == null) {
             return Collections.emptyList();
         }
-        String lowercaseTerm = term.toLowerCase();
-        return user.getSent().stream()
-                .filter(email -> email.getRecipients().stream()
-                        .anyMatch(r -> r.toLowerCase().contains(lowercaseTerm))
-                        || email.getSubject().toLowerCase().contains(lowercaseTerm)
-                        || email.getBody().toLowerCase().contains(lowercaseTerm))
-                .collect(Collectors.toList());
+        return user.getSent().search(term);
+    }
+
+    /**
+     * Searches a user's sent folder and returns one page of the results, newest first.
+     *
+     * @param username the username whose sent folder to search
+     * @param term     the search query
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param limit    the maximum number of emails to return
+     * @return the page, empty if user not found
+     */
+    @Override
+    public Page<Email> searchSent(String username, String term, Integer cursor, int limit) {
+        User user = userManager.getUserByUsername(username);
+        return (user == null) ? emptyPage() : user.getSent().searchPage(term, cursor, limit);
+    }
+
+    private static Page<Email> emptyPage() {
+        return new Page<>(Collections.emptyList(), null);
     }
 
     /**
      * Retrieves an email by ID if the specified user is the sender or a recipient.
-     * Marks the email as viewed for recipients.
+     * Marks the email as viewed for recipients. The email is looked up in the user's own
+     * mailboxes, which only receive it once it has been handed to the journal.
      *
      * @param id       the unique email ID
      * @param username the username requesting the email
@@ -187,22 +532,19 @@ public class EmailManager implements IEmailManager {
      */
     @Override
     public Optional<Email> getEmailById(int id, String username) {
-        Email email = emailsById.get(id);
-        if (email == null) {
+        User user = userManager.getUserByUsername(username);
+        if (user == null) {
             return Optional.empty();
         }
-        boolean isSender = email.getSender().equals(username);
-        boolean isRecipient = email.getRecipients().contains(username);
-        if (isSender || isRecipient) {
-            if (isRecipient) {
-                User user = userManager.getUserByUsername(username);
-                user.markEmailAsViewed(email);
+        Email email = user.getInbox().get(id);
+        if (email != null) {
+            if (user.markEmailAsViewed(email)) {
+                recordRead(user, email);
+                journal.emailViewed(username, id);
             }
-
             return Optional.of(email);
         }
-
-        return Optional.empty();
+        return Optional.ofNullable(user.getSent().get(id));
     }
 
     /**
@@ -233,21 +575,84 @@ public class EmailManager implements IEmailManager {
 
     /**
      * Retrieves a map of email IDs to Email objects for all messages where the
-     * specified user is either sender or recipient.
+     * specified user is either sender or recipient. Built from the user's own mailboxes,
+     * so the cost depends on the size of those mailboxes rather than on all mail on the server.
      *
      * @param username the username whose emails to retrieve
-     * @return a map of email IDs to Email objects
+     * @return a map of email IDs to Email objects in ascending ID order
      */
     public Map<Integer, Email> getEmailIdsForUser(String username) {
-        Map<Integer, Email> userEmails = new HashMap<>();
+        Map<Integer, Email> userEmails = new TreeMap<>();
+        User user = userManager.getUserByUsername(username);
+        if (user == null) {
+            return userEmails;
+        }
 
-        for (Map.Entry<Integer, Email> entry : emailsById.entrySet()) {
-            Email email = entry.getValue();
-            if (email.getSender().equals(username) || email.getRecipients().contains(username)) {
-                userEmails.put(entry.getKey(), email);
-            }
+        for (Email email : user.getInbox().emails()) {
+            userEmails.put(email.getId(), email);
+        }
+        for (Email email : user.getSent().emails()) {
+            userEmails.put(email.getId(), email);
         }
 
         return userEmails;
     }
-}
\ No newline at end of file
+
+    private Shard shardForSender(String sender) {
+        int hash = sender.hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    private Shard shardForId(int emailId) {
+        return shards[Math.floorMod(emailId - 1, shards.length)];
+    }
+
+    /**
+     * The emails sent by one group of users. Shard {@code i} of {@code n} hands out the IDs
+     * {@code i + 1}, {@code i + 1 + n}, {@code i + 1 + 2n} and so on, so the shard holding an email
+     * follows from its ID alone and no two shards ever hand out the same ID.
+     */
+    private static final class Shard {
+        private final Map<Integer, Email> emailsById = new ConcurrentHashMap<>();
+        /** Lowest ID this shard may hand out next; always within its range. */
+        private final AtomicInteger nextId;
+        private final int index;
+        private final int stride;
+
+        Shard(int index, int stride) {
+            this.index = index;
+            this.stride = stride;
+            this.nextId = new AtomicInteger(index + 1);
+        }
+
+        /**
+         * Takes the next ID of this shard's range that is also higher than {@code after}.
+         *
+         * @param after the highest ID the new one must exceed
+         * @return the new ID
+         */
+        int nextId(int after) {
+            while (true) {
+                int current = nextId.get();
+                int id = current > after ? current : alignUp(after + 1);
+                if (nextId.compareAndSet(current, id + stride)) {
+                    return id;
+                }
+            }
+        }
+
+        /**
+         * Makes sure IDs handed out from now on are higher than a restored one.
+         */
+        void restored(int id) {
+            nextId.accumulateAndGet(alignUp(id + 1), Math::max);
+        }
+
+        /**
+         * @return the lowest ID in this shard's range that is at least {@code id}
+         */
+        private int alignUp(int id) {
+            return id + Math.floorMod(index - (id - 1), stride);
+        }
+    }
+}
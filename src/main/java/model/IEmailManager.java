@@ -7,12 +7,18 @@ import java.util.Optional;
 public interface IEmailManager {
     Email sendEmail(String sender, List<String> recipients, String subject, String body);
     Email sendEmail(String sender, String recipient, String subject, String body);
+    List<Email> sendEmails(String sender, List<Email> drafts);
     List<Email> listInbox(String username);
+    Page<Email> listInbox(String username, Integer cursor, int limit);
     List<Email> searchInbox(String username, String term);
+    Page<Email> searchInbox(String username, String term, Integer cursor, int limit);
     List<Email> listSent(String username);
+    Page<Email> listSent(String username, Integer cursor, int limit);
     List<Email> searchSent(String username, String term);
+    Page<Email> searchSent(String username, String term, Integer cursor, int limit);
     Optional<Email> getEmailById(int id, String username);
     boolean hasRecipientViewedEmail(Email email, String recipient);
     Map<String, Boolean> getViewStatusForAllRecipients(Email email);
     Map<Integer, Email> getEmailIdsForUser(String username);
+    ChangeLog getChangeLog(String username);
 }
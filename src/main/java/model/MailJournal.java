@@ -0,0 +1,85 @@
+package model;
+
+import java.util.List;
+
+/**
+ * Receives every state change made through {@link UserManager} and {@link EmailManager} so it
+ * can be made durable. Each method is called after the change is applied in memory and returns
+ * once the change is as durable as the journal's policy promises, except
+ * {@link #userRegistered(String, String)} and {@link #emailsSending(List)}, which are called
+ * before the user or emails become visible.
+ */
+public interface MailJournal {
+    /**
+     * A journal that records nothing; used when the server runs purely in memory.
+     */
+    MailJournal NONE = new MailJournal() {
+        @Override
+        public void userRegistered(String username, String passwordHash) {
+        }
+
+        @Override
+        public void passwordChanged(String username, String passwordHash) {
+        }
+
+        @Override
+        public void emailSent(Email email) {
+        }
+
+        @Override
+        public void emailViewed(String username, int emailId) {
+        }
+    };
+
+    /**
+     * Records a new user before it becomes visible, so later records that name the user follow
+     * it in the journal. If this throws, the registration does not happen.
+     *
+     * @param username     the new user
+     * @param passwordHash the user's password hash
+     */
+    void userRegistered(String username, String passwordHash);
+
+    void passwordChanged(String username, String passwordHash);
+
+    void emailSent(Email email);
+
+    /**
+     * Records several emails sent together. Journals that can make them durable in one step
+     * should override this; by default each is recorded on its own.
+     *
+     * @param emails the emails, in ID order
+     */
+    default void emailsSent(List<Email> emails) {
+        for (Email email : emails) {
+            emailSent(email);
+        }
+    }
+
+    /**
+     * Hands emails about to be delivered to the journal, so they are recorded ahead of anything
+     * that can only happen once they are visible, such as their read receipts. Called while the
+     * delivery locks are held, so journals should only queue the records here and wait in the
+     * returned {@link Commit}, which the caller runs after releasing the locks. By default the
+     * emails are recorded with {@link #emailsSent(List)} right away.
+     *
+     * @param emails the emails, in ID order
+     * @return waits until the emails are as durable as the journal's policy promises
+     */
+    default Commit emailsSending(List<Email> emails) {
+        emailsSent(emails);
+        return Commit.DONE;
+    }
+
+    void emailViewed(String username, int emailId);
+
+    /**
+     * Waits for records handed to a journal to become durable.
+     */
+    interface Commit {
+        Commit DONE = () -> {
+        };
+
+        void await();
+    }
+}
@@ -0,0 +1,239 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * One folder of a user's mail (inbox or sent), ordered by email ID.
+ * Lookups and listings touch only this user's mail, and iteration is always in ascending ID order,
+ * which is also the order the emails were delivered to this mailbox. Each mailbox keeps a {@link SearchIndex}
+ * over the fields its owner searches by.
+ * <p>
+ * Emails are kept in a {@link ChunkedAppendList}: delivering costs O(1), and listings read a
+ * snapshot without locking or copying. IDs are found by binary search. Writers must be serialized
+ * per mailbox; {@link EmailManager} does this with the owner's {@link User#getDeliveryLock()}.
+ */
+public class Mailbox {
+    private volatile ChunkedAppendList<Email> emails = new ChunkedAppendList<>();
+    private final Function<Email, List<String>> searchableFields;
+    private final SearchIndex searchIndex;
+
+    private Mailbox(Function<Email, List<String>> searchableFields) {
+        this.searchableFields = searchableFields;
+        this.searchIndex = new SearchIndex(searchableFields);
+    }
+
+    /**
+     * Creates an inbox, searchable by sender, subject and body.
+     */
+    public static Mailbox inbox() {
+        return new Mailbox(email -> Arrays.asList(email.getSender(), email.getSubject(), email.getBody()));
+    }
+
+    /**
+     * Creates a sent folder, searchable by recipients, subject and body.
+     */
+    public static Mailbox sent() {
+        return new Mailbox(email -> {
+            List<String> fields = new ArrayList<>(email.getRecipients());
+            fields.add(email.getSubject());
+            fields.add(email.getBody());
+            return fields;
+        });
+    }
+
+    /**
+     * Adds an email to this mailbox and indexes it for search. Emails normally arrive in ascending
+     * ID order and are appended; an older email (e.g. replayed out of order during recovery) is
+     * inserted by copying the mailbox once. Adding an ID that is already present does nothing.
+     *
+     * @param email the email to add; its ID must already be assigned
+     */
+    public void add(Email email) {
+        ChunkedAppendList<Email> current = emails;
+        int size = current.size();
+        if (size == 0 || current.get(size - 1).getId() < email.getId()) {
+            current.add(email);
+        } else {
+            int position = lowerBound(current, size, email.getId());
+            if (position < size && current.get(position).getId() == email.getId()) {
+                return;
+            }
+            ChunkedAppendList<Email> rebuilt = new ChunkedAppendList<>();
+            for (int i = 0; i < size; i++) {
+                if (i == position) {
+                    rebuilt.add(email);
+                }
+                rebuilt.add(current.get(i));
+            }
+            emails = rebuilt;
+        }
+        searchIndex.add(email);
+    }
+
+    /**
+     * Searches this mailbox; see {@link SearchIndex} for the query syntax. A query without any
+     * letters or digits falls back to a substring scan of the searchable fields.
+     *
+     * @param query the search query
+     * @return the matching emails in ascending ID order
+     */
+    public List<Email> search(String query) {
+        NavigableSet<Integer> ids = matchingIds(query);
+        List<Email> results = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            Email email = get(id);
+            if (email != null) {
+                results.add(email);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns one page of this mailbox, newest first.
+     *
+     * @param cursor the cursor from the previous page, or null for the first page
+     * @param limit  the maximum number of emails on the page
+     * @return the page
+     */
+    public Page<Email> page(Integer cursor, int limit) {
+        ChunkedAppendList<Email> current = emails;
+        int size = current.size();
+        int index = (cursor == null ? size : lowerBound(current, size, cursor)) - 1;
+
+        List<Email> items = new ArrayList<>(Math.min(limit, 64));
+        while (items.size() < limit && index >= 0) {
+            items.add(current.get(index--));
+        }
+        Integer nextCursor = index >= 0 && !items.isEmpty() ? items.get(items.size() - 1).getId() : null;
+        return new Page<>(items, nextCursor);
+    }
+
+    /**
+     * Returns one page of the search results for a query, newest first.
+     *
+     * @param query  the search query
+     * @param cursor the cursor from the previous page, or null for the first page
+     * @param limit  the maximum number of emails on the page
+     * @return the page
+     */
+    public Page<Email> searchPage(String query, Integer cursor, int limit) {
+        NavigableSet<Integer> ids = matchingIds(query);
+        NavigableSet<Integer> older = cursor == null ? ids : ids.headSet(cursor, false);
+
+        List<Email> items = new ArrayList<>(Math.min(limit, 64));
+        Iterator<Integer> newestFirst = older.descendingIterator();
+        while (items.size() < limit && newestFirst.hasNext()) {
+            Email email = get(newestFirst.next());
+            if (email != null) {
+                items.add(email);
+            }
+        }
+        Integer nextCursor = newestFirst.hasNext() && !items.isEmpty() ? items.get(items.size() - 1).getId() : null;
+        return new Page<>(items, nextCursor);
+    }
+
+    private NavigableSet<Integer> matchingIds(String query) {
+        NavigableSet<Integer> ids = searchIndex.search(query, this);
+        if (ids == null) {
+            String lowercaseQuery = query.toLowerCase(Locale.ROOT);
+            ids = new TreeSet<>();
+            for (Email email : emails()) {
+                if (searchableFields.apply(email).stream()
+                        .anyMatch(field -> field != null && field.toLowerCase(Locale.ROOT).contains(lowercaseQuery))) {
+                    ids.add(email.getId());
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the email with the given ID if it is in this mailbox.
+     *
+     * @param id the email ID
+     * @return the email, or null if this mailbox does not hold it
+     */
+    public Email get(int id) {
+        ChunkedAppendList<Email> current = emails;
+        int size = current.size();
+        int position = lowerBound(current, size, id);
+        if (position < size) {
+            Email email = current.get(position);
+            if (email.getId() == id) {
+                return email;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether this mailbox holds the email with the given ID.
+     *
+     * @param id the email ID
+     * @return true if the email is in this mailbox
+     */
+    public boolean contains(int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Returns a read-only snapshot of the emails in ascending ID order. Taking it copies nothing,
+     * and emails delivered afterwards are not part of it.
+     *
+     * @return the emails in this mailbox
+     */
+    public List<Email> emails() {
+        return emails.snapshot();
+    }
+
+    /**
+     * Returns a copy of the emails in ascending ID order.
+     *
+     * @return a new list holding the emails in this mailbox
+     */
+    public List<Email> toList() {
+        return new ArrayList<>(emails());
+    }
+
+    /**
+     * @return the highest email ID in this mailbox, or 0 if it is empty
+     */
+    public int lastId() {
+        ChunkedAppendList<Email> current = emails;
+        int size = current.size();
+        return size == 0 ? 0 : current.get(size - 1).getId();
+    }
+
+    public int size() {
+        return emails.size();
+    }
+
+    public boolean isEmpty() {
+        return emails.size() == 0;
+    }
+
+    /**
+     * Returns the index of the first email whose ID is at least {@code id}, or {@code size} if none.
+     */
+    private static int lowerBound(ChunkedAppendList<Email> list, int size, int id) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (list.get(mid).getId() < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,24 @@
+package model;
+
+/**
+ * The text of an email body, wherever it is kept. Implementations may keep the text outside
+ * the heap and decode it only when {@link #text()} is called.
+ */
+public interface MessageBody {
+    /**
+     * Returns the body text, decoding it if necessary.
+     *
+     * @return the body text
+     */
+    String text();
+
+    /**
+     * Wraps text that already lives on the heap.
+     *
+     * @param text the body text
+     * @return a body returning the given text
+     */
+    static MessageBody of(String text) {
+        return () -> text;
+    }
+}
@@ -0,0 +1,18 @@
+package model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * One page of a newest-first listing. {@code nextCursor} is the value to pass as the cursor
+ * for the following page, or null when this is the last page. Cursors are email IDs, so a
+ * continuation stays valid while new mail arrives.
+ */
+@Data
+@AllArgsConstructor
+public class Page<T> {
+    private List<T> items;
+    private Integer nextCursor;
+}
@@ -1,110 +1,297 @@
 package model;
 
+import org.mindrot.jbcrypt.BCrypt;
+
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
+import java.util.logging.Logger;
 
+/**
+ * Hashes and verifies passwords. Every stored hash records its algorithm and cost:
+ * <ul>
+ *     <li>{@code $pbkdf2-sha256$<iterations>$<salt>$<hash>} for PBKDF2 with HmacSHA256</li>
+ *     <li>{@code $2a$<log rounds>$...} for bcrypt, in its native format</li>
+ *     <li>{@code <salt>:<hash>} for hashes from before the format was versioned
+ *     (PBKDF2 with {@value #LEGACY_ITERATIONS} iterations)</li>
+ * </ul>
+ * New hashes use the current algorithm and cost, which can be changed at any time with
+ * {@link #configure}. Existing hashes keep verifying under the settings they were made with;
+ * {@link #needsRehash} tells the caller when one should be replaced after a successful login.
+ */
 public class PasswordHasher {
-    private static final int ITERATIONS = 10000;
+    private static final Logger LOGGER = Logger.getLogger(PasswordHasher.class.getName());
+
+    /**
+     * Supported hashing schemes.
+     */
+    public enum Algorithm {
+        /** PBKDF2 with HmacSHA256; the cost is the iteration count. */
+        PBKDF2,
+        /** bcrypt; the cost is the base-2 logarithm of the number of rounds. */
+        BCRYPT
+    }
+
+    static final int LEGACY_ITERATIONS = 10000;
+    static final int MIN_ITERATIONS = 10000;
+    private static final int MAX_ITERATIONS = 10_000_000;
+    static final int MIN_LOG_ROUNDS = 10;
+    private static final int MAX_LOG_ROUNDS = 30;
+
     private static final int KEY_LENGTH = 256;
     private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
     private static final int SALT_LENGTH = 16;
 
+    private static final String LEGACY_SEPARATOR = ":";
+    private static final String PBKDF2_PREFIX = "$pbkdf2-sha256$";
+    private static final String BCRYPT_PREFIX = "$2";
 
-    private static final String SEPARATOR = ":";
-
+    /** Derivations timed per probe during calibration; the fastest one counts. */
+    private static final int CALIBRATION_RUNS = 3;
 
     /**
-     * Hashes a password using PBKDF2 with HmacSHA256.
-     *
-     * @param password the password to hash
-     * @return the hashed password as a Base64 encoded string
+     * Looking up a provider on every derivation is costly and factories are not thread-safe,
+     * so each thread keeps its own. The server runs hashing on a few dedicated threads, so
+     * there are only a handful of these.
      */
-    public static String hashPassword(String password) {
+    private static final ThreadLocal<SecretKeyFactory> FACTORIES = ThreadLocal.withInitial(() -> {
         try {
-            // Generate a random salt
-            byte[] salt = generateSalt();
+            return SecretKeyFactory.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    });
 
-            char[] chars = password.toCharArray();
+    /** SecureRandom is thread-safe; seeding a new one per salt is wasted work. */
+    private static final SecureRandom RANDOM = new SecureRandom();
 
-            // Create the hash using the same algorithm and parameters
-            PBEKeySpec spec = new PBEKeySpec(chars, salt, ITERATIONS, KEY_LENGTH);
+    /** Algorithm and cost for new hashes, swapped as a pair so readers never see a mix. */
+    private static volatile Setting current = new Setting(Algorithm.PBKDF2, MIN_ITERATIONS);
 
-            SecretKeyFactory skf = SecretKeyFactory.getInstance(ALGORITHM);
+    /**
+     * Sets the algorithm and cost used for new hashes.
+     *
+     * @param algorithm the algorithm
+     * @param cost      iterations for PBKDF2, log rounds for bcrypt
+     * @throws IllegalArgumentException if the cost is out of range for the algorithm
+     */
+    public static void configure(Algorithm algorithm, int cost) {
+        if (algorithm == Algorithm.BCRYPT ? cost < 4 || cost > MAX_LOG_ROUNDS : cost < 1) {
+            throw new IllegalArgumentException("Invalid " + algorithm + " cost: " + cost);
+        }
+        current = new Setting(algorithm, cost);
+        LOGGER.info("Hashing new passwords with " + algorithm + " at cost " + cost);
+    }
 
-            byte[] hash = skf.generateSecret(spec).getEncoded();
+    public static Algorithm getAlgorithm() {
+        return current.algorithm;
+    }
 
-            // Clear the password array for security
-            java.util.Arrays.fill(chars, '\u0000');
+    public static int getCost() {
+        return current.cost;
+    }
 
-            // Encode the salt and hash to Base64
-            String saltString = Base64.getEncoder().encodeToString(salt);
-            String hashString = Base64.getEncoder().encodeToString(hash);
+    /**
+     * Measures this machine and returns the highest cost whose verification still takes about
+     * the target time, but never less than the minimum for the algorithm.
+     *
+     * @param algorithm    the algorithm to calibrate
+     * @param targetMillis the verification time to aim for; 0 returns the minimum without measuring
+     * @return iterations for PBKDF2, log rounds for bcrypt
+     */
+    public static int calibrate(Algorithm algorithm, long targetMillis) {
+        if (targetMillis <= 0) {
+            return algorithm == Algorithm.BCRYPT ? MIN_LOG_ROUNDS : MIN_ITERATIONS;
+        }
+        long targetNanos = targetMillis * 1_000_000L;
+        if (algorithm == Algorithm.BCRYPT) {
+            // Each extra round doubles the work, so time a cheap setting and extrapolate
+            int probeRounds = 6;
+            String salt = BCrypt.gensalt(probeRounds);
+            long nanos = fastest(() -> BCrypt.hashpw("calibration", salt));
+            int rounds = probeRounds;
+            while (rounds < MAX_LOG_ROUNDS && nanos * 2 <= targetNanos) {
+                nanos *= 2;
+                rounds++;
+            }
+            return Math.max(MIN_LOG_ROUNDS, rounds);
+        }
 
-            // Combine the salt and hash into a single string with the seperator
-            return saltString + SEPARATOR + hashString;
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            e.printStackTrace();
+        byte[] salt = generateSalt();
+        char[] chars = "calibration".toCharArray();
+        long nanos = Math.max(1, fastest(() -> derive(chars, salt, MIN_ITERATIONS)));
+        long iterations = MIN_ITERATIONS * targetNanos / nanos;
+        // Round down to a multiple of 1000 so the stored cost reads well
+        iterations = iterations / 1000 * 1000;
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+    }
 
-            return String.valueOf(password.hashCode());
+    /**
+     * Times a task a few times, after one untimed warm-up run.
+     *
+     * @return the fastest run in nanoseconds
+     */
+    private static long fastest(Runnable task) {
+        task.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < CALIBRATION_RUNS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
         }
+        return best;
     }
 
+    /**
+     * Hashes a password with the current algorithm and cost.
+     *
+     * @param password the password to hash
+     * @return the hash, tagged with its algorithm and cost
+     */
+    public static String hashPassword(String password) {
+        Setting setting = current;
+        if (setting.algorithm == Algorithm.BCRYPT) {
+            return BCrypt.hashpw(password, BCrypt.gensalt(setting.cost, RANDOM));
+        }
+
+        // Generate a random salt
+        byte[] salt = generateSalt();
+
+        char[] chars = password.toCharArray();
+
+        byte[] hash = derive(chars, salt, setting.cost);
+
+        // Clear the password array for security
+        java.util.Arrays.fill(chars, '\u0000');
+
+        // Encode the salt and hash to Base64
+        String saltString = Base64.getEncoder().encodeToString(salt);
+        String hashString = Base64.getEncoder().encodeToString(hash);
+
+        return PBKDF2_PREFIX + setting.cost + "$" + saltString + "$" + hashString;
+    }
 
-    /** Verifies a password against a stored hash.
+
+    /** Verifies a password against a stored hash in any supported format.
      *
      * @param password    the password to verify
-     * @param storedValue the stored hash (salt:hash)
+     * @param storedValue the stored hash
      * @return true if the password matches the hash, false otherwise
      */
     public static boolean verifyPassword(String password, String storedValue) {
         try {
-            // Split the stored value into salt and hash
-            String[] parts = storedValue.split(SEPARATOR);
-            if (parts.length != 2) {
-                return false;
+            if (storedValue.startsWith(BCRYPT_PREFIX)) {
+                return BCrypt.checkpw(password, storedValue);
             }
 
-            String saltString = parts[0];
-            String storedHash = parts[1];
+            // Split the stored value into cost, salt and hash
+            int iterations;
+            String saltString;
+            String storedHash;
+            if (storedValue.startsWith(PBKDF2_PREFIX)) {
+                String[] parts = storedValue.substring(PBKDF2_PREFIX.length()).split("\\$");
+                if (parts.length != 3) {
+                    return false;
+                }
+                iterations = Integer.parseInt(parts[0]);
+                saltString = parts[1];
+                storedHash = parts[2];
+            } else {
+                String[] parts = storedValue.split(LEGACY_SEPARATOR);
+                if (parts.length != 2) {
+                    return false;
+                }
+                iterations = LEGACY_ITERATIONS;
+                saltString = parts[0];
+                storedHash = parts[1];
+            }
             // Decode the salt and hash
             byte[] salt = Base64.getDecoder().decode(saltString);
+            byte[] expected = Base64.getDecoder().decode(storedHash);
 
             char[] chars = password.toCharArray();
 
-            // Create the hash using the same algorithm and parameters
-            PBEKeySpec spec = new PBEKeySpec(chars, salt, ITERATIONS, KEY_LENGTH);
-
-            SecretKeyFactory skf = SecretKeyFactory.getInstance(ALGORITHM);
-
-            // Generate the hash
-            byte[] hash = skf.generateSecret(spec).getEncoded();
+            // Generate the hash using the same algorithm and parameters
+            byte[] hash = derive(chars, salt, iterations);
 
             java.util.Arrays.fill(chars, '\u0000');
 
-            // Encode the hash to Base64
-            String hashString = Base64.getEncoder().encodeToString(hash);
-
-            // Compare the generated hash with the stored hash
-            return hashString.equals(storedHash);
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | IllegalArgumentException e) {
+            // Compare in constant time so the response time reveals nothing about the hash
+            return MessageDigest.isEqual(hash, expected);
+        } catch (IllegalArgumentException | IllegalStateException e) {
             e.printStackTrace();
             return false;
         }
     }
 
+    /**
+     * Checks whether a stored hash was made with a different algorithm or cost than new hashes
+     * get now, so it should be replaced once the password is known again.
+     *
+     * @param storedValue the stored hash
+     * @return true if the hash is outdated
+     */
+    public static boolean needsRehash(String storedValue) {
+        Setting setting = current;
+        try {
+            if (storedValue.startsWith(BCRYPT_PREFIX)) {
+                // $2a$10$...: the log rounds are the two digits after the second '$'
+                int start = storedValue.indexOf('$', 1) + 1;
+                int rounds = Integer.parseInt(storedValue.substring(start, start + 2));
+                return setting.algorithm != Algorithm.BCRYPT || setting.cost != rounds;
+            }
+            if (storedValue.startsWith(PBKDF2_PREFIX)) {
+                int end = storedValue.indexOf('$', PBKDF2_PREFIX.length());
+                int iterations = Integer.parseInt(storedValue.substring(PBKDF2_PREFIX.length(), end));
+                return setting.algorithm != Algorithm.PBKDF2 || setting.cost != iterations;
+            }
+            return true;
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the PBKDF2 derivation with this thread's cached factory.
+     *
+     * @param chars      the password characters
+     * @param salt       the salt
+     * @param iterations the iteration count
+     * @return the derived key bytes
+     */
+    private static byte[] derive(char[] chars, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, KEY_LENGTH);
+        try {
+            return FACTORIES.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException("Cannot derive key", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
     /**
      * Generates a random salt.
      *
      * @return a byte array containing the salt
      */
     private static byte[] generateSalt() {
-        SecureRandom random = new SecureRandom();
         byte[] salt = new byte[SALT_LENGTH];
-        random.nextBytes(salt);
+        RANDOM.nextBytes(salt);
         return salt;
     }
-}
\ No newline at end of file
+
+    private static final class Setting {
+        private final Algorithm algorithm;
+        private final int cost;
+
+        Setting(Algorithm algorithm, int cost) {
+            this.algorithm = algorithm;
+            this.cost = cost;
+        }
+    }
+}
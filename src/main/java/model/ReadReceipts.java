@@ -0,0 +1,100 @@
+package model;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+
+/**
+ * The set of email IDs a user has read, kept as a bitmap indexed by ID. Checking or marking an
+ * email is O(1) and never looks at the email itself.
+ * <p>
+ * The bitmap is split into pages of {@value #IDS_PER_PAGE} IDs that are only allocated once an
+ * ID in their range is marked, so a user who has read a few recent emails does not pay for the
+ * whole ID space. Bits are set with CAS and can be read without locking.
+ */
+public class ReadReceipts {
+    private static final int WORDS_PER_PAGE = 64;
+    static final int IDS_PER_PAGE = WORDS_PER_PAGE * Long.SIZE;
+
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    /**
+     * Marks an email ID as read.
+     *
+     * @param id the email ID, not negative
+     * @return true if the ID was not marked before
+     */
+    public boolean add(int id) {
+        AtomicLongArray page = pageFor(id, true);
+        int word = (id % IDS_PER_PAGE) >>> 6;
+        long bit = 1L << id;
+        while (true) {
+            long current = page.get(word);
+            if ((current & bit) != 0) {
+                return false;
+            }
+            if (page.compareAndSet(word, current, current | bit)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Checks whether an email ID has been marked as read.
+     *
+     * @param id the email ID
+     * @return true if the ID is marked
+     */
+    public boolean contains(int id) {
+        AtomicLongArray page = id < 0 ? null : pageFor(id, false);
+        return page != null && (page.get((id % IDS_PER_PAGE) >>> 6) & (1L << id)) != 0;
+    }
+
+    /**
+     * Passes every marked ID to the consumer in ascending order.
+     *
+     * @param consumer receives the IDs
+     */
+    public void forEach(IntConsumer consumer) {
+        AtomicLongArray[] current = pages;
+        for (int p = 0; p < current.length; p++) {
+            AtomicLongArray page = current[p];
+            if (page == null) {
+                continue;
+            }
+            for (int w = 0; w < WORDS_PER_PAGE; w++) {
+                long bits = page.get(w);
+                while (bits != 0) {
+                    int bit = Long.numberOfTrailingZeros(bits);
+                    consumer.accept(p * IDS_PER_PAGE + w * Long.SIZE + bit);
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+
+    private AtomicLongArray pageFor(int id, boolean create) {
+        int index = id / IDS_PER_PAGE;
+        AtomicLongArray[] current = pages;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        if (!create) {
+            return null;
+        }
+        synchronized (this) {
+            current = pages;
+            if (index >= current.length) {
+                current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+            } else if (current[index] != null) {
+                return current[index];
+            } else {
+                current = current.clone();
+            }
+            AtomicLongArray page = new AtomicLongArray(WORDS_PER_PAGE);
+            current[index] = page;
+            pages = current;
+            return page;
+        }
+    }
+}
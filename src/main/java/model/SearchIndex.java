@@ -0,0 +1,148 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * Inverted index over the searchable text of one mailbox, updated as emails are added.
+ * Maps every lowercase word to the IDs of the emails containing it, so a query only
+ * touches the postings of its words and the emails that actually match.
+ * <p>
+ * Query syntax:
+ * <ul>
+ *   <li>{@code alpha} &ndash; emails with a word starting with "alpha"</li>
+ *   <li>{@code team meeting} &ndash; emails matching every word</li>
+ *   <li>{@code "team meeting"} &ndash; emails where the words appear next to each other in one field,
+ *       the last word matching as a prefix</li>
+ * </ul>
+ */
+class SearchIndex {
+    private final ConcurrentNavigableMap<String, Set<Integer>> postings = new ConcurrentSkipListMap<>();
+    private final Function<Email, List<String>> searchableFields;
+
+    /**
+     * @param searchableFields extracts the text fields to index from an email
+     */
+    SearchIndex(Function<Email, List<String>> searchableFields) {
+        this.searchableFields = searchableFields;
+    }
+
+    /**
+     * Indexes the searchable fields of an email under its ID.
+     *
+     * @param email the email to index
+     */
+    void add(Email email) {
+        Set<String> words = new TreeSet<>();
+        for (String field : searchableFields.apply(email)) {
+            words.addAll(tokenize(field));
+        }
+        for (String word : words) {
+            postings.computeIfAbsent(word, w -> new ConcurrentSkipListSet<>()).add(email.getId());
+        }
+    }
+
+    /**
+     * Finds the IDs of the emails matching a query. Emails that are being added concurrently may
+     * or may not be included.
+     *
+     * @param query   the search query
+     * @param mailbox resolves candidate IDs to emails for phrase checks
+     * @return the matching IDs in ascending order, or null if the query has no words to look up
+     */
+    NavigableSet<Integer> search(String query, Mailbox mailbox) {
+        String trimmed = query.trim();
+        boolean phrase = trimmed.length() > 1 && trimmed.startsWith("\"") && trimmed.endsWith("\"");
+        List<String> words = tokenize(trimmed);
+        if (words.isEmpty()) {
+            return null;
+        }
+
+        NavigableSet<Integer> matches = null;
+        for (String word : words) {
+            NavigableSet<Integer> wordMatches = idsWithPrefix(word);
+            if (matches == null || wordMatches.size() < matches.size()) {
+                if (matches != null) {
+                    wordMatches.retainAll(matches);
+                }
+                matches = wordMatches;
+            } else {
+                matches.retainAll(wordMatches);
+            }
+            if (matches.isEmpty()) {
+                return matches;
+            }
+        }
+
+        if (phrase && words.size() > 1) {
+            matches.removeIf(id -> {
+                Email email = mailbox.get(id);
+                return email == null || !containsPhrase(email, words);
+            });
+        }
+        return matches;
+    }
+
+    private NavigableSet<Integer> idsWithPrefix(String prefix) {
+        NavigableSet<Integer> ids = new TreeSet<>();
+        for (Set<Integer> postingList : postings.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+            ids.addAll(postingList);
+        }
+        return ids;
+    }
+
+    private boolean containsPhrase(Email email, List<String> phrase) {
+        for (String field : searchableFields.apply(email)) {
+            List<String> words = tokenize(field);
+            for (int start = 0; start + phrase.size() <= words.size(); start++) {
+                if (phraseStartsAt(words, start, phrase)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean phraseStartsAt(List<String> words, int start, List<String> phrase) {
+        int last = phrase.size() - 1;
+        for (int i = 0; i < last; i++) {
+            if (!words.get(start + i).equals(phrase.get(i))) {
+                return false;
+            }
+        }
+        return words.get(start + last).startsWith(phrase.get(last));
+    }
+
+    /**
+     * Splits text into lowercase words made of letters and digits.
+     *
+     * @param text the text to split, may be null
+     * @return the words in order of appearance
+     */
+    static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
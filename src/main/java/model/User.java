@@ -2,21 +2,28 @@ package model;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CopyOnWriteArraySet;
+import lombok.ToString;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class User {
     private String username;
-    private String passwordHash;
-    private List<Email> inbox = new CopyOnWriteArrayList<>();
-    private List<Email> sent = new CopyOnWriteArrayList<>();
-    private Set<Email> viewedEmails = new CopyOnWriteArraySet<>();
+    /** Replaced when the hash is upgraded on login, so readers must see the latest value. */
+    private volatile String passwordHash;
+    private Mailbox inbox = Mailbox.inbox();
+    private Mailbox sent = Mailbox.sent();
+    private ReadReceipts readReceipts = new ReadReceipts();
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private ChangeLog changes = new ChangeLog();
+    /** Serializes deliveries into this user's mailboxes; see {@link Mailbox}. */
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final ReentrantLock deliveryLock = new ReentrantLock();
 
     /**
      * Checks if the user has viewed a specific email.
@@ -25,15 +32,16 @@ public class User {
      * @return true if the email has been viewed, false otherwise
      */
     public boolean hasViewedEmail(Email email) {
-        return viewedEmails.contains(email);
+        return readReceipts.contains(email.getId());
     }
 
     /**
      * Marks an email as viewed by the user.
      *
      * @param email the email to mark as viewed
+     * @return true if the email had not been viewed before
      */
-    public void markEmailAsViewed(Email email) {
-        viewedEmails.add(email);
+    public boolean markEmailAsViewed(Email email) {
+        return readReceipts.add(email.getId());
     }
 }
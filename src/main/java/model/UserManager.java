@@ -1,9 +1,10 @@
 package model;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Manages user registration, authentication, and lookup in-memory.
@@ -16,23 +17,48 @@ public class UserManager implements IUserManager {
     private final Map<String, User> users = new ConcurrentHashMap<>();
 
     /**
-     * Constructs a UserManager and bootstraps default test users.
+     * Users whose registration is being recorded in the journal. Holding the name here keeps a
+     * second registration from racing the first, while the user stays invisible until its
+     * record is in the log.
+     */
+    private final Map<String, User> registering = new ConcurrentHashMap<>();
+
+    /**
+     * Records registrations so they survive a restart.
+     */
+    private final MailJournal journal;
+
+    /**
+     * Constructs an in-memory UserManager and bootstraps default test users.
      */
     public UserManager() {
+        this(MailJournal.NONE);
         bootstrapUsers();
     }
 
+    /**
+     * Constructs an empty UserManager that records registrations in the given journal.
+     * Existing users are restored with {@link #restoreUser(String, String)}.
+     *
+     * @param journal the journal to record registrations in
+     */
+    public UserManager(MailJournal journal) {
+        this.journal = journal;
+    }
+
     /**
      * Populates the system with initial test users.
      */
-    private void bootstrapUsers() {
+    public void bootstrapUsers() {
         register("testUser1", PasswordHasher.hashPassword("Password123"));
         register("testUser2", PasswordHasher.hashPassword("Password123"));
         register("testUser3", PasswordHasher.hashPassword("Password123"));
     }
 
     /**
-     * Registers a new user with a hashed password.
+     * Registers a new user with a hashed password. The registration is recorded in the journal
+     * before the user becomes visible, so nothing addressed to the user, such as a SEND, can
+     * reach the log ahead of it.
      *
      * @param username     the desired username (non-null, non-empty)
      * @param passwordHash the already-hashed password string
@@ -44,23 +70,75 @@ public class UserManager implements IUserManager {
             return false;
         }
 
-        if (userExists(username)) {
+        User user = newUser(username, passwordHash);
+        if (userExists(username) || registering.putIfAbsent(username, user) != null) {
             return false;
         }
+        try {
+            // Another registration may have finished between the check and the reservation
+            if (userExists(username)) {
+                return false;
+            }
+            journal.userRegistered(username, passwordHash);
+            users.put(username, user);
+        } finally {
+            registering.remove(username);
+        }
+        return true;
+    }
+
+    /**
+     * Re-creates a user during recovery without recording it in the journal.
+     * Does nothing if the user already exists.
+     *
+     * @param username     the username
+     * @param passwordHash the stored password hash
+     */
+    public void restoreUser(String username, String passwordHash) {
+        users.putIfAbsent(username, newUser(username, passwordHash));
+    }
+
+    /**
+     * Replaces a restored user's password hash; used when replaying a durable journal.
+     *
+     * @param username     the user
+     * @param passwordHash the new hash
+     */
+    public void restorePasswordHash(String username, String passwordHash) {
+        User user = users.get(username);
+        if (user != null) {
+            user.setPasswordHash(passwordHash);
+        }
+    }
 
-        User newUser = new User(
+    /**
+     * Returns every user, including those still being recorded in the journal, so a snapshot
+     * cannot miss a user whose registration record it replaces.
+     *
+     * @return every registered user
+     */
+    public Collection<User> getUsers() {
+        // Registrations move from registering to users, so read them in that order
+        Map<String, User> all = new LinkedHashMap<>(registering);
+        all.putAll(users);
+        return Collections.unmodifiableCollection(all.values());
+    }
+
+    private static User newUser(String username, String passwordHash) {
+        return new User(
                 username,
                 passwordHash,
-                new CopyOnWriteArrayList<>(),
-                new CopyOnWriteArrayList<>(),
-                new CopyOnWriteArraySet<>()
+                Mailbox.inbox(),
+                Mailbox.sent(),
+                new ReadReceipts(),
+                new ChangeLog()
         );
-        users.put(username, newUser);
-        return true;
     }
 
     /**
      * Authenticates a user by verifying the provided password against the stored hash.
+     * If the hash was made with an older algorithm or cost, it is replaced by a current one
+     * while the plaintext password is at hand.
      *
      * @param username the username of the user to authenticate
      * @param password the plaintext password provided for authentication
@@ -69,7 +147,28 @@ public class UserManager implements IUserManager {
     @Override
     public boolean authenticate(String username, String password) {
         User user = users.get(username);
-        return user != null && PasswordHasher.verifyPassword(password, user.getPasswordHash());
+        if (user == null) {
+            return false;
+        }
+        String storedHash = user.getPasswordHash();
+        if (!PasswordHasher.verifyPassword(password, storedHash)) {
+            return false;
+        }
+        if (PasswordHasher.needsRehash(storedHash)) {
+            String upgraded = PasswordHasher.hashPassword(password);
+            boolean replaced;
+            synchronized (user) {
+                // A concurrent login may have upgraded the hash already
+                replaced = storedHash.equals(user.getPasswordHash());
+                if (replaced) {
+                    user.setPasswordHash(upgraded);
+                }
+            }
+            if (replaced) {
+                journal.passwordChanged(username, upgraded);
+            }
+        }
+        return true;
     }
 
     /**
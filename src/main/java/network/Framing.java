@@ -0,0 +1,11 @@
+package network;
+
+/**
+ * How JSON messages are delimited on the wire.
+ */
+public enum Framing {
+    /** One message per line, terminated by {@code \n}. Every connection starts in this mode. */
+    LINE,
+    /** A 4-byte big-endian payload length followed by that many bytes of UTF-8. */
+    FRAMED
+}
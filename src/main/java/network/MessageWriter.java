@@ -0,0 +1,17 @@
+package network;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Produces the text of one outgoing message directly into the transport's character stream,
+ * so large messages never have to exist as a single {@code String}.
+ */
+public interface MessageWriter {
+    /**
+     * Writes the complete message. Must not write a line terminator or close the stream.
+     *
+     * @param out the stream to write to
+     */
+    void writeTo(Writer out) throws IOException;
+}
@@ -1,20 +1,72 @@
 package network;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import utils.EmailUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.Socket;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class NetworkLayerJSON {
+    /** Largest message accepted in either framing; bounds the memory one peer can make us hold. */
+    public static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+
     private Socket dataSocket;
-    private Scanner inputStream;
-    private PrintWriter outputStream;
+    private InputStream inputStream;
+    private OutputStream outputStream;
     private String hostname;
     private int port;
+    private volatile Framing framing = Framing.LINE;
+
+    // Reused across messages so steady-state receive and send do not allocate buffers
+    private final byte[] inputBuffer = new byte[STREAM_BUFFER_SIZE];
+    private int inputPosition;
+    private int inputLimit;
+    private byte[] readBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private boolean outputPending = false;
+    private ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    private Writer frameWriter = new OutputStreamWriter(frameBuffer, StandardCharsets.UTF_8);
+    private Writer lineWriter;
 
-    private static final Gson gson = new Gson();
+    // Pipelining: responses are matched to requests by their correlation ID
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final Map<Long, CompletableFuture<JsonObject>> outstanding = new ConcurrentHashMap<>();
+    private Thread responseReader;
+    private volatile IOException responseReaderFailure;
+    private volatile Consumer<JsonObject> eventListener;
 
 
     public NetworkLayerJSON(String hostname, int port){
@@ -32,8 +84,19 @@ public class NetworkLayerJSON {
     }
 
     private void setStreams() throws IOException {
-        this.inputStream = new Scanner(dataSocket.getInputStream());
-        this.outputStream = new PrintWriter(dataSocket.getOutputStream());
+        this.inputStream = dataSocket.getInputStream();
+        this.outputStream = new BufferedOutputStream(dataSocket.getOutputStream(), STREAM_BUFFER_SIZE);
+        // Flushing the writer must only drain its encoder, not push the socket buffer out
+        this.lineWriter = new OutputStreamWriter(new FilterOutputStream(outputStream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+            }
+        }, StandardCharsets.UTF_8);
     }
 
 
@@ -42,15 +105,408 @@ public class NetworkLayerJSON {
         setStreams();
     }
 
+    /**
+     * Connects and asks the server to switch to the given framing. Servers that do not
+     * understand the HELLO handshake answer with an error, in which case the connection
+     * simply stays in line mode.
+     *
+     * @param requested the framing to negotiate
+     * @return the framing actually in use
+     */
+    public Framing connect(Framing requested) throws IOException {
+        connect();
+        if (requested == Framing.LINE) {
+            return framing;
+        }
+
+        JsonObject hello = new JsonObject();
+        hello.addProperty(EmailUtils.FIELD_COMMAND, EmailUtils.HELLO);
+        hello.addProperty(EmailUtils.FIELD_FRAMING, requested.name());
+        send(hello.toString());
+
+        try {
+            JsonObject reply = JsonParser.parseString(receive()).getAsJsonObject();
+            if (reply.has(EmailUtils.FIELD_STATUS)
+                    && EmailUtils.STATUS_HELLO.equals(reply.get(EmailUtils.FIELD_STATUS).getAsString())
+                    && reply.has(EmailUtils.FIELD_FRAMING)) {
+                setFraming(Framing.valueOf(reply.get(EmailUtils.FIELD_FRAMING).getAsString()));
+            }
+        } catch (JsonParseException | IllegalStateException | IllegalArgumentException e) {
+            // Unexpected reply; keep the line protocol every server understands
+        }
+        return framing;
+    }
+
+    /**
+     * @return the framing currently used in both directions
+     */
+    public Framing getFraming() {
+        return framing;
+    }
+
+    /**
+     * Switches framing for all following messages. Only call this between messages,
+     * after both sides have agreed on the switch.
+     */
+    public void setFraming(Framing framing) {
+        this.framing = framing;
+    }
+
+
+    public void send(String message) throws IOException {
+        writeLock.lock();
+        try {
+            sendBuffered(message);
+            flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a message without flushing it, so several responses can leave in one packet.
+     * Buffered output is flushed by {@link #flush()}, the next {@link #send(String)}, or
+     * before {@link #receive()} blocks waiting for the peer, unless another thread is writing.
+     */
+    public void sendBuffered(String message) throws IOException {
+        writeLock.lock();
+        try {
+            ByteBuffer payload = encode(message);
+            if (framing == Framing.FRAMED) {
+                int length = payload.remaining();
+                outputStream.write(length >>> 24);
+                outputStream.write(length >>> 16);
+                outputStream.write(length >>> 8);
+                outputStream.write(length);
+                outputStream.write(payload.array(), 0, length);
+            } else {
+                outputStream.write(payload.array(), 0, payload.remaining());
+                outputStream.write('\n');
+            }
+            outputPending = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Streams a message to the peer and flushes it. In line framing the text goes straight into
+     * the socket buffer; length-prefixed frames are staged in a reusable byte buffer first
+     * because the header needs the encoded size.
+     */
+    public void send(MessageWriter message) throws IOException {
+        writeLock.lock();
+        try {
+            sendBuffered(message);
+            flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Streams a message without flushing it; see {@link #sendBuffered(String)}.
+     */
+    public void sendBuffered(MessageWriter message) throws IOException {
+        writeLock.lock();
+        try {
+            if (framing == Framing.FRAMED) {
+                frameBuffer.reset();
+                message.writeTo(frameWriter);
+                frameWriter.flush();
+                int length = frameBuffer.size();
+                if (length > MAX_MESSAGE_BYTES) {
+                    throw new IOException("Message exceeds " + MAX_MESSAGE_BYTES + " bytes");
+                }
+                outputStream.write(length >>> 24);
+                outputStream.write(length >>> 16);
+                outputStream.write(length >>> 8);
+                outputStream.write(length);
+                frameBuffer.writeTo(outputStream);
+                if (frameBuffer.size() > INITIAL_BUFFER_SIZE * 64) {
+                    // Don't pin a huge staging buffer after one oversized message
+                    frameBuffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+                    frameWriter = new OutputStreamWriter(frameBuffer, StandardCharsets.UTF_8);
+                }
+            } else {
+                message.writeTo(lineWriter);
+                lineWriter.flush();
+                outputStream.write('\n');
+            }
+            outputPending = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Pushes any buffered messages to the socket.
+     */
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (outputPending) {
+                outputPending = false;
+                outputStream.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if at least part of another message has already arrived, so the next
+     * {@link #receive()} will probably not have to wait for the peer
+     */
+    public boolean hasBufferedInput() throws IOException {
+        return inputPosition < inputLimit || inputStream.available() > 0;
+    }
+
+    /**
+     * Receives messages the server sends without a request, such as NEW_MAIL after SUBSCRIBE.
+     * Only messages read by the {@link #sendAsync(JsonObject)} reader are delivered here; the
+     * listener runs on that reader thread.
+     *
+     * @param eventListener the listener, or null to drop such messages
+     */
+    public void setEventListener(Consumer<JsonObject> eventListener) {
+        this.eventListener = eventListener;
+    }
+
+    /**
+     * Sends a request tagged with a fresh correlation ID without waiting for its response.
+     * The response is matched to the returned future by a background reader, so many
+     * requests can be in flight on one connection. Once this is used, {@link #receive()}
+     * must no longer be called directly.
+     *
+     * @param request the request; its {@code requestId} field is overwritten
+     * @return a future completed with the response, or exceptionally if the connection fails
+     */
+    public CompletableFuture<JsonObject> sendAsync(JsonObject request) throws IOException {
+        return sendAsync(Collections.singletonList(request)).get(0);
+    }
+
+    /**
+     * Pipelines several requests in one flush; see {@link #sendAsync(JsonObject)}.
+     *
+     * @param requests the requests, in the order the server should process them
+     * @return one future per request, in the same order
+     */
+    public List<CompletableFuture<JsonObject>> sendAsync(List<JsonObject> requests) throws IOException {
+        if (responseReaderFailure != null) {
+            throw responseReaderFailure;
+        }
+        startResponseReader();
+        List<CompletableFuture<JsonObject>> futures = new ArrayList<>(requests.size());
+        List<Long> ids = new ArrayList<>(requests.size());
+        writeLock.lock();
+        try {
+            for (JsonObject request : requests) {
+                long id = nextRequestId.getAndIncrement();
+                CompletableFuture<JsonObject> future = new CompletableFuture<>();
+                outstanding.put(id, future);
+                ids.add(id);
+                futures.add(future);
+                request.addProperty(EmailUtils.FIELD_REQUEST_ID, id);
+                sendBuffered(request.toString());
+            }
+            flush();
+        } catch (IOException e) {
+            ids.forEach(outstanding::remove);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+
+        // The reader may have failed after the check above and finished its cleanup before these
+        // futures were registered; whichever side removes a future completes it
+        IOException failure = responseReaderFailure;
+        if (failure != null) {
+            for (Long id : ids) {
+                CompletableFuture<JsonObject> future = outstanding.remove(id);
+                if (future != null) {
+                    future.completeExceptionally(failure);
+                }
+            }
+        }
+        return futures;
+    }
+
+    private synchronized void startResponseReader() {
+        if (responseReader != null) {
+            return;
+        }
+        responseReader = new Thread(this::readResponses, "mailify-response-reader");
+        responseReader.setDaemon(true);
+        responseReader.start();
+    }
+
+    /**
+     * Completes outstanding futures as their responses arrive, in whatever order the server sends them.
+     */
+    private void readResponses() {
+        try {
+            while (true) {
+                JsonObject response = JsonParser.parseString(receive()).getAsJsonObject();
+                JsonElement id = response.get(EmailUtils.FIELD_REQUEST_ID);
+                CompletableFuture<JsonObject> future = null;
+                if (id != null && id.isJsonPrimitive() && id.getAsJsonPrimitive().isNumber()) {
+                    future = outstanding.remove(id.getAsLong());
+                }
+                if (future != null) {
+                    future.complete(response);
+                } else if (id == null && eventListener != null) {
+                    // Unsolicited, e.g. a NEW_MAIL push after SUBSCRIBE
+                    eventListener.accept(response);
+                }
+            }
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            responseReaderFailure = e instanceof IOException ? (IOException) e : new IOException("Malformed response", e);
+            for (Long id : outstanding.keySet()) {
+                CompletableFuture<JsonObject> future = outstanding.remove(id);
+                if (future != null) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes a message into the reusable write buffer, growing it as needed.
+     */
+    private ByteBuffer encode(String message) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(message);
+        while (true) {
+            writeBuffer.clear();
+            encoder.reset();
+            CoderResult result = encoder.encode(chars, writeBuffer, true);
+            if (!result.isOverflow()) {
+                result = encoder.flush(writeBuffer);
+            }
+            if (!result.isOverflow()) {
+                break;
+            }
+            if (writeBuffer.capacity() >= MAX_MESSAGE_BYTES) {
+                throw new IOException("Message exceeds " + MAX_MESSAGE_BYTES + " bytes");
+            }
+            writeBuffer = ByteBuffer.allocate(Math.min(MAX_MESSAGE_BYTES, writeBuffer.capacity() * 2));
+            chars.rewind();
+        }
+        writeBuffer.flip();
+        return writeBuffer;
+    }
+
+
+    /**
+     * Reads the next message.
+     *
+     * @return the message text
+     * @throws EOFException if the peer closed the connection before a new message started
+     */
+    public String receive() throws IOException {
+        return framing == Framing.FRAMED ? receiveFrame() : receiveLine();
+    }
+
+    private String receiveLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (inputPosition == inputLimit && !fillInput()) {
+                if (length == 0) {
+                    throw new EOFException("Connection closed");
+                }
+                break;
+            }
+            int newline = indexOfNewline();
+            int end = newline >= 0 ? newline : inputLimit;
+            int chunk = end - inputPosition;
+            ensureReadCapacity(length + chunk);
+            System.arraycopy(inputBuffer, inputPosition, readBuffer, length, chunk);
+            length += chunk;
+            if (newline >= 0) {
+                inputPosition = newline + 1;
+                break;
+            }
+            inputPosition = inputLimit;
+        }
+        if (length > 0 && readBuffer[length - 1] == '\r') {
+            length--;
+        }
+        return new String(readBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int indexOfNewline() {
+        for (int i = inputPosition; i < inputLimit; i++) {
+            if (inputBuffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String receiveFrame() throws IOException {
+        if (inputPosition == inputLimit && !fillInput()) {
+            throw new EOFException("Connection closed");
+        }
+        int length = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        if (length < 0 || length > MAX_MESSAGE_BYTES) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        ensureReadCapacity(length);
 
-    public void send(String message){
-        outputStream.println(message);
-        outputStream.flush();
+        int offset = 0;
+        while (offset < length) {
+            if (inputPosition == inputLimit && !fillInput()) {
+                throw new EOFException("Connection closed mid-frame");
+            }
+            int chunk = Math.min(length - offset, inputLimit - inputPosition);
+            System.arraycopy(inputBuffer, inputPosition, readBuffer, offset, chunk);
+            inputPosition += chunk;
+            offset += chunk;
+        }
+        return new String(readBuffer, 0, length, StandardCharsets.UTF_8);
     }
 
+    private int readByte() throws IOException {
+        if (inputPosition == inputLimit && !fillInput()) {
+            throw new EOFException("Connection closed mid-frame");
+        }
+        return inputBuffer[inputPosition++] & 0xFF;
+    }
 
-    public String receive(){
-        return inputStream.nextLine();
+    /**
+     * Refills the input buffer from the socket.
+     *
+     * @return false at end of stream
+     */
+    private boolean fillInput() throws IOException {
+        // Never wait for the peer while our own messages sit unsent in the buffer. If another
+        // thread is writing, it flushes when it is done; waiting for it here could deadlock, since
+        // it may be blocked on a full socket that only this read would drain.
+        if (writeLock.tryLock()) {
+            try {
+                flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        int read = inputStream.read(inputBuffer, 0, inputBuffer.length);
+        if (read < 0) {
+            return false;
+        }
+        inputPosition = 0;
+        inputLimit = read;
+        return true;
+    }
+
+    private void ensureReadCapacity(int needed) throws IOException {
+        if (needed > MAX_MESSAGE_BYTES) {
+            throw new IOException("Message exceeds " + MAX_MESSAGE_BYTES + " bytes");
+        }
+        if (needed > readBuffer.length) {
+            byte[] larger = new byte[Math.min(MAX_MESSAGE_BYTES, Math.max(needed, readBuffer.length * 2))];
+            System.arraycopy(readBuffer, 0, larger, 0, readBuffer.length);
+            readBuffer = larger;
+        }
     }
 
     /** Gracefully close streams and socket. */
@@ -0,0 +1,22 @@
+package persistence;
+
+/**
+ * When appended log records are forced to disk.
+ */
+public enum FsyncPolicy {
+    /**
+     * Every change waits until its record has been fsynced. Concurrent changes share one fsync
+     * (group commit), so the cost is one sync per batch rather than one per change.
+     */
+    ALWAYS,
+    /**
+     * Changes return as soon as they are queued; the log is fsynced at most every
+     * {@link MailLog#FSYNC_INTERVAL_MILLIS} ms. A crash can lose that much recent mail.
+     */
+    INTERVAL,
+    /**
+     * Records are written but never explicitly fsynced; the operating system decides when
+     * they reach disk.
+     */
+    NEVER
+}
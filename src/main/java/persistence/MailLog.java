@@ -0,0 +1,359 @@
+package persistence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log split into numbered segment files.
+ * <p>
+ * Appending threads only copy their record into a shared in-memory batch. A single writer thread
+ * drains the batch, writes it with one call and, depending on the {@link FsyncPolicy}, forces it to
+ * disk once for the whole batch. While one batch is being synced the next one fills up, which is
+ * what amortizes fsyncs across concurrent senders.
+ * <p>
+ * Each record is stored as a 4-byte length, a 4-byte CRC32 of the payload and the payload itself,
+ * so a record torn by a crash is detected and dropped on recovery.
+ */
+class MailLog implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(MailLog.class.getName());
+
+    static final long FSYNC_INTERVAL_MILLIS = 100;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition progress = lock.newCondition();
+
+    // Guarded by lock
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream();
+    private long appendedSeq;
+    private long syncedSeq;
+    private boolean rotateRequested;
+    private boolean closed;
+    private IOException failure;
+
+    // Owned by the writer thread, except during construction
+    private long segment;
+    private FileChannel channel;
+    private long lastSyncNanos = System.nanoTime();
+    private boolean unsynced;
+
+    private final Thread writer;
+
+    /**
+     * Opens a new segment and starts the writer thread.
+     *
+     * @param directory the log directory
+     * @param segment   the number of the first segment to write; must not exist yet
+     * @param policy    when to fsync
+     * @throws IOException if the segment cannot be created
+     */
+    MailLog(Path directory, long segment, FsyncPolicy policy) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.segment = segment;
+        this.channel = openSegment(segment);
+        this.writer = new Thread(this::writeLoop, "mail-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    static Path segmentPath(Path directory, long segment) {
+        return directory.resolve(String.format("wal-%016d.log", segment));
+    }
+
+    /**
+     * Appends one record. Under {@link FsyncPolicy#ALWAYS} this returns once the record is on disk.
+     *
+     * @param payload the record payload
+     * @throws UncheckedIOException if the log has failed
+     */
+    void append(byte[] payload) {
+        append(Collections.singletonList(payload));
+    }
+
+    /**
+     * Appends several records together, so they reach the writer thread in one hand-off and
+     * under {@link FsyncPolicy#ALWAYS} share a single fsync wait.
+     *
+     * @param payloads the record payloads, in order
+     * @throws UncheckedIOException if the log has failed
+     */
+    void append(List<byte[]> payloads) {
+        awaitSynced(enqueue(payloads));
+    }
+
+    /**
+     * Queues several records for the writer thread without waiting for them to reach the disk.
+     * Records are written in the order they are queued.
+     *
+     * @param payloads the record payloads, in order
+     * @return the sequence number to pass to {@link #awaitSynced(long)}
+     * @throws UncheckedIOException if the log has failed
+     */
+    long enqueue(List<byte[]> payloads) {
+        lock.lock();
+        try {
+            checkUsable();
+            for (byte[] payload : payloads) {
+                writeRecord(pending, payload);
+            }
+            appendedSeq += payloads.size();
+            workAvailable.signal();
+            return appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Under {@link FsyncPolicy#ALWAYS}, waits until every record up to {@code seq} is on disk;
+     * otherwise returns at once.
+     *
+     * @param seq a sequence number returned by {@link #enqueue(List)}
+     * @throws UncheckedIOException if the log has failed
+     */
+    void awaitSynced(long seq) {
+        if (policy != FsyncPolicy.ALWAYS) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (syncedSeq < seq) {
+                checkUsable();
+                progress.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the current segment after everything appended so far and continues in a new one.
+     * Every record appended before this call is in a segment numbered at or below the result.
+     *
+     * @return the number of the segment that was closed
+     * @throws UncheckedIOException if the log has failed
+     */
+    long rotate() {
+        lock.lock();
+        try {
+            checkUsable();
+            long closedSegment = segment;
+            rotateRequested = true;
+            workAvailable.signal();
+            while (rotateRequested) {
+                checkUsable();
+                progress.awaitUninterruptibly();
+            }
+            return closedSegment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes and syncs everything appended so far, then stops the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkUsable() {
+        if (failure != null) {
+            throw new UncheckedIOException("Mail log has failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Mail log is closed");
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteArrayOutputStream batch;
+                long batchSeq;
+                boolean rotate;
+                boolean closing;
+
+                lock.lock();
+                try {
+                    while (pending.size() == 0 && !rotateRequested && !closed && !syncDue()) {
+                        if (policy == FsyncPolicy.INTERVAL && unsynced) {
+                            workAvailable.awaitNanos(TimeUnit.MILLISECONDS.toNanos(FSYNC_INTERVAL_MILLIS));
+                        } else {
+                            workAvailable.awaitUninterruptibly();
+                        }
+                    }
+                    batch = pending;
+                    pending = spare;
+                    batchSeq = appendedSeq;
+                    rotate = rotateRequested;
+                    closing = closed;
+                } finally {
+                    lock.unlock();
+                }
+
+                if (batch.size() > 0) {
+                    ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    unsynced = true;
+                }
+                if (unsynced && (policy == FsyncPolicy.ALWAYS || rotate || closing || syncDue())) {
+                    channel.force(false);
+                    unsynced = false;
+                    lastSyncNanos = System.nanoTime();
+                }
+                if (rotate) {
+                    channel.close();
+                    channel = openSegment(segment + 1);
+                }
+
+                lock.lock();
+                try {
+                    batch.reset();
+                    spare = batch;
+                    syncedSeq = unsynced ? syncedSeq : batchSeq;
+                    if (rotate) {
+                        segment++;
+                        rotateRequested = false;
+                    }
+                    progress.signalAll();
+                    if (closing && pending.size() == 0) {
+                        channel.close();
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Mail log write failed; further changes will be rejected", e);
+            lock.lock();
+            try {
+                failure = e;
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean syncDue() {
+        return policy == FsyncPolicy.INTERVAL && unsynced
+                && System.nanoTime() - lastSyncNanos >= TimeUnit.MILLISECONDS.toNanos(FSYNC_INTERVAL_MILLIS);
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentPath(directory, number),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Writes one record in the log format: length, CRC32, payload.
+     */
+    static void writeRecord(OutputStream out, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(payload.length);
+            data.writeInt((int) crc.getValue());
+            data.write(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads every intact record of a file in order. Reading stops at the first record that is
+     * truncated or fails its checksum, which is where a crash interrupted the last write.
+     *
+     * @param file     the segment or snapshot file
+     * @param consumer receives each record payload
+     * @return true if the whole file was intact
+     * @throws IOException if the file cannot be read
+     */
+    static boolean readRecords(Path file, Consumer<byte[]> consumer) throws IOException {
+        try (InputStream in = Files.newInputStream(file);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            while (true) {
+                int length;
+                try {
+                    length = data.readInt();
+                } catch (EOFException e) {
+                    return true;
+                }
+                try {
+                    int expectedCrc = data.readInt();
+                    if (length < 0 || length > MAX_RECORD_BYTES) {
+                        return false;
+                    }
+                    byte[] payload = new byte[length];
+                    data.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != expectedCrc) {
+                        return false;
+                    }
+                    consumer.accept(payload);
+                } catch (EOFException e) {
+                    return false;
+                }
+            }
+        }
+    }
+}
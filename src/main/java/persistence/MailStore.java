@@ -0,0 +1,356 @@
+package persistence;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import model.Email;
+import model.EmailManager;
+import model.MailJournal;
+import model.User;
+import model.UserManager;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes users, emails and read receipts durable.
+ * <p>
+ * Every change is appended to a {@link MailLog} as a small JSON record. Every
+ * {@code snapshotEvery} records the log is rotated and the complete state is written as a compact
+ * snapshot, after which the segments it covers are deleted. On startup the newest snapshot is
+ * loaded and the newer segments are replayed.
+ * <p>
+ * Changes are applied in memory before they are logged, so everything in a segment up to a
+ * rotation is already visible when the snapshot is taken. A change racing with the rotation may
+ * end up both in the snapshot and in the next segment; replaying records is idempotent, so that
+ * is harmless.
+ */
+public class MailStore implements MailJournal, Closeable {
+    private static final Logger LOGGER = Logger.getLogger(MailStore.class.getName());
+
+    private static final String TYPE = "type";
+    private static final String REGISTER = "REGISTER";
+    private static final String PASSWORD = "PASSWORD";
+    private static final String SEND = "SEND";
+    private static final String VIEW = "VIEW";
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private final int snapshotEvery;
+
+    private final AtomicLong recordsSinceSnapshot = new AtomicLong();
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mail-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private MailLog log;
+    private UserManager userManager;
+    private EmailManager emailManager;
+
+    /**
+     * @param directory     where log segments and snapshots are kept; created if missing
+     * @param policy        when appended records are fsynced
+     * @param snapshotEvery number of logged changes between snapshots
+     */
+    public MailStore(Path directory, FsyncPolicy policy, int snapshotEvery) {
+        this.directory = directory;
+        this.policy = policy;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    /**
+     * Loads the newest snapshot and replays the log into the given managers, which must have
+     * been created with this store as their journal. Afterwards new changes are logged.
+     *
+     * @param userManager  the user manager to restore into
+     * @param emailManager the email manager to restore into
+     * @return true if any previous state was found
+     * @throws IOException if the store cannot be read or the log cannot be opened
+     */
+    public boolean recover(UserManager userManager, EmailManager emailManager) throws IOException {
+        this.userManager = userManager;
+        this.emailManager = emailManager;
+        Files.createDirectories(directory);
+
+        TreeMap<Long, Path> snapshots = listFiles("snapshot-", ".dat");
+        TreeMap<Long, Path> segments = listFiles("wal-", ".log");
+        boolean found = !snapshots.isEmpty() || !segments.isEmpty();
+
+        long covered = 0;
+        if (!snapshots.isEmpty()) {
+            covered = snapshots.lastKey();
+            if (!MailLog.readRecords(snapshots.lastEntry().getValue(), this::apply)) {
+                throw new IOException("Snapshot " + snapshots.lastEntry().getValue() + " is damaged");
+            }
+        }
+
+        long lastSegment = covered;
+        int replayed = 0;
+        for (Map.Entry<Long, Path> segment : segments.tailMap(covered, false).entrySet()) {
+            int[] count = {0};
+            boolean intact = MailLog.readRecords(segment.getValue(), payload -> {
+                apply(payload);
+                count[0]++;
+            });
+            if (!intact) {
+                LOGGER.warning("Ignoring the damaged tail of " + segment.getValue());
+            }
+            replayed += count[0];
+            lastSegment = segment.getKey();
+        }
+        if (found) {
+            LOGGER.info("Recovered mail store from " + directory + ": snapshot " + covered
+                    + ", " + replayed + " log records replayed");
+        }
+
+        recordsSinceSnapshot.set(replayed);
+        log = new MailLog(directory, lastSegment + 1, policy);
+        return found;
+    }
+
+    @Override
+    public void userRegistered(String username, String passwordHash) {
+        append(registerRecord(username, passwordHash));
+    }
+
+    @Override
+    public void passwordChanged(String username, String passwordHash) {
+        append(passwordRecord(username, passwordHash));
+    }
+
+    @Override
+    public void emailSent(Email email) {
+        append(sendRecord(email));
+    }
+
+    @Override
+    public void emailsSent(List<Email> emails) {
+        List<byte[]> payloads = new ArrayList<>(emails.size());
+        for (Email email : emails) {
+            payloads.add(sendRecord(email).toString().getBytes(StandardCharsets.UTF_8));
+        }
+        log.append(payloads);
+        recorded(payloads.size());
+    }
+
+    /**
+     * Queues the records without waiting for the disk, so the caller's delivery locks are not
+     * held across an fsync.
+     */
+    @Override
+    public Commit emailsSending(List<Email> emails) {
+        List<byte[]> payloads = new ArrayList<>(emails.size());
+        for (Email email : emails) {
+            payloads.add(sendRecord(email).toString().getBytes(StandardCharsets.UTF_8));
+        }
+        long seq = log.enqueue(payloads);
+        recorded(payloads.size());
+        return () -> log.awaitSynced(seq);
+    }
+
+    @Override
+    public void emailViewed(String username, int emailId) {
+        append(viewRecord(username, emailId));
+    }
+
+    private void append(JsonObject record) {
+        log.append(record.toString().getBytes(StandardCharsets.UTF_8));
+        recorded(1);
+    }
+
+    /**
+     * Counts appended records and starts a snapshot in the background once enough have piled up.
+     */
+    private void recorded(int records) {
+        if (recordsSinceSnapshot.addAndGet(records) >= snapshotEvery && snapshotRunning.compareAndSet(false, true)) {
+            snapshotExecutor.execute(() -> {
+                try {
+                    snapshot();
+                } catch (IOException | UncheckedIOException e) {
+                    LOGGER.log(Level.WARNING, "Snapshot failed; the log keeps growing until the next attempt", e);
+                } finally {
+                    snapshotRunning.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current state and deletes the log segments it replaces.
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void snapshot() throws IOException {
+        recordsSinceSnapshot.set(0);
+        long covered = log.rotate();
+
+        // Emails before users: a captured email's users were registered before it was sent,
+        // so they are guaranteed to be captured too
+        List<Email> emails = new ArrayList<>(emailManager.getAllEmails());
+        emails.sort(Comparator.comparingInt(Email::getId));
+        List<User> users = new ArrayList<>(userManager.getUsers());
+
+        Path target = directory.resolve(String.format("snapshot-%016d.dat", covered));
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            for (User user : users) {
+                writeRecord(out, registerRecord(user.getUsername(), user.getPasswordHash()));
+            }
+            for (Email email : emails) {
+                writeRecord(out, sendRecord(email));
+            }
+            for (User user : users) {
+                user.getReadReceipts().forEach(id -> writeRecord(out, viewRecord(user.getUsername(), id)));
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+
+        for (Path old : listFiles("snapshot-", ".dat").headMap(covered, false).values()) {
+            Files.deleteIfExists(old);
+        }
+        for (Path old : listFiles("wal-", ".log").headMap(covered, true).values()) {
+            Files.deleteIfExists(old);
+        }
+        LOGGER.info("Wrote snapshot " + target.getFileName() + " with " + users.size() + " users and "
+                + emails.size() + " emails");
+    }
+
+    /**
+     * Flushes and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        snapshotExecutor.shutdown();
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private void apply(byte[] payload) {
+        JsonObject record = JsonParser.parseString(new String(payload, StandardCharsets.UTF_8)).getAsJsonObject();
+        switch (record.get(TYPE).getAsString()) {
+            case REGISTER:
+                userManager.restoreUser(record.get("username").getAsString(), record.get("passwordHash").getAsString());
+                break;
+            case PASSWORD:
+                userManager.restorePasswordHash(record.get("username").getAsString(), record.get("passwordHash").getAsString());
+                break;
+            case SEND:
+                emailManager.restoreEmail(toEmail(record));
+                break;
+            case VIEW:
+                emailManager.restoreView(record.get("username").getAsString(), record.get("id").getAsInt());
+                break;
+            default:
+                LOGGER.warning("Skipping unknown log record: " + record.get(TYPE));
+        }
+    }
+
+    private static void writeRecord(OutputStream out, JsonObject record) {
+        MailLog.writeRecord(out, record.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static JsonObject registerRecord(String username, String passwordHash) {
+        JsonObject record = new JsonObject();
+        record.addProperty(TYPE, REGISTER);
+        record.addProperty("username", username);
+        record.addProperty("passwordHash", passwordHash);
+        return record;
+    }
+
+    private static JsonObject passwordRecord(String username, String passwordHash) {
+        JsonObject record = new JsonObject();
+        record.addProperty(TYPE, PASSWORD);
+        record.addProperty("username", username);
+        record.addProperty("passwordHash", passwordHash);
+        return record;
+    }
+
+    private static JsonObject sendRecord(Email email) {
+        JsonObject record = new JsonObject();
+        record.addProperty(TYPE, SEND);
+        record.addProperty("id", email.getId());
+        record.addProperty("sender", email.getSender());
+        JsonArray recipients = new JsonArray();
+        email.getRecipients().forEach(recipients::add);
+        record.add("recipients", recipients);
+        record.addProperty("subject", email.getSubject());
+        record.addProperty("body", email.getBody());
+        record.addProperty("timestamp", email.getTimestamp().toString());
+        return record;
+    }
+
+    private static JsonObject viewRecord(String username, int emailId) {
+        JsonObject record = new JsonObject();
+        record.addProperty(TYPE, VIEW);
+        record.addProperty("username", username);
+        record.addProperty("id", emailId);
+        return record;
+    }
+
+    private static Email toEmail(JsonObject record) {
+        Email email = new Email();
+        email.setId(record.get("id").getAsInt());
+        email.setSender(record.get("sender").getAsString());
+        List<String> recipients = new ArrayList<>();
+        for (JsonElement recipient : record.getAsJsonArray("recipients")) {
+            recipients.add(recipient.getAsString());
+        }
+        email.setRecipients(recipients);
+        email.setSubject(optionalString(record, "subject"));
+        email.setBody(optionalString(record, "body"));
+        email.setTimestamp(LocalDateTime.parse(record.get("timestamp").getAsString()));
+        return email;
+    }
+
+    private static String optionalString(JsonObject record, String name) {
+        JsonElement value = record.get(name);
+        return value == null || value.isJsonNull() ? null : value.getAsString();
+    }
+
+    private TreeMap<Long, Path> listFiles(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), file);
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Ignoring unexpected file in mail store: " + file);
+                }
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,120 @@
+package persistence;
+
+import model.BodyStore;
+import model.MessageBody;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Keeps message bodies in append-only, memory-mapped segment files instead of on the heap.
+ * An email only holds a small handle (segment, offset, length); the text is decoded from the
+ * mapping each time it is read, so heap use does not grow with the size of the mail corpus.
+ * <p>
+ * The segments are a cache, not a second copy of the data: they are cleared on startup and
+ * refilled while the {@link MailStore} replays its log.
+ */
+public class MappedBodyStore implements BodyStore, Closeable {
+    private static final Logger LOGGER = Logger.getLogger(MappedBodyStore.class.getName());
+
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private int nextSegment;
+    private MappedByteBuffer current;
+
+    /**
+     * Opens the store, deleting segments left over from a previous run.
+     *
+     * @param directory where to keep the segment files; created if missing
+     * @throws IOException if the directory cannot be prepared
+     */
+    public MappedBodyStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "bodies-*.seg")) {
+            for (Path file : stale) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Override
+    public MessageBody store(String text) {
+        if (text == null) {
+            return null;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer target;
+        int offset;
+        synchronized (this) {
+            if (current == null || current.remaining() < bytes.length) {
+                current = newSegment(Math.max(SEGMENT_SIZE, bytes.length));
+            }
+            target = current;
+            offset = current.position();
+            current.position(offset + bytes.length);
+        }
+        // Each writer owns its reserved range, so the copy needs no lock
+        ByteBuffer range = target.duplicate();
+        range.position(offset);
+        range.put(bytes);
+        return new MappedBody(target, offset, bytes.length);
+    }
+
+    private MappedByteBuffer newSegment(int size) {
+        Path file = directory.resolve(String.format("bodies-%06d.seg", nextSegment++));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create body segment " + file, e);
+        }
+    }
+
+    /**
+     * Deletes the segment files. Bodies still referenced stay readable until the mappings
+     * are garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "bodies-*.seg")) {
+            for (Path file : segments) {
+                Files.deleteIfExists(file);
+            }
+        }
+        LOGGER.info("Closed body store in " + directory);
+    }
+
+    /**
+     * Handle to one body inside a mapped segment.
+     */
+    private static final class MappedBody implements MessageBody {
+        private final ByteBuffer segment;
+        private final int offset;
+        private final int length;
+
+        MappedBody(ByteBuffer segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String text() {
+            ByteBuffer range = segment.duplicate();
+            range.limit(offset + length).position(offset);
+            return StandardCharsets.UTF_8.decode(range).toString();
+        }
+    }
+}
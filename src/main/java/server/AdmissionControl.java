@@ -0,0 +1,180 @@
+package server;
+
+import utils.EmailUtils;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides what the server takes on when it is overloaded, so excess work is turned away at once
+ * with a BUSY answer and a retry-after hint instead of piling up in queues.
+ * <p>
+ * Connections are capped at {@code maxConnections}. Requests are shed by the {@link Priority} of
+ * their command: each priority has a budget for how long a request may have waited for a worker,
+ * and a request over budget is answered BUSY instead of run, since its client is likely to give
+ * up anyway. Expensive commands get the smaller budget and also share a limit on how many run at
+ * once, so a burst of logins, sends or searches is shed before it can crowd out cheap reads.
+ * Session control is never shed: it is cheap and often frees resources.
+ */
+public class AdmissionControl {
+    /**
+     * How readily a command is shed under load.
+     */
+    public enum Priority {
+        /** Handshakes, logout and anything the handler answers without work; never shed. */
+        ESSENTIAL,
+        /** Reading the user's own mail. */
+        READ,
+        /** Password hashing, delivery, full-text search and batches; shed first. */
+        EXPENSIVE
+    }
+
+    private static final Map<String, Priority> PRIORITIES = Map.ofEntries(
+            Map.entry(EmailUtils.LOGIN, Priority.EXPENSIVE),
+            Map.entry(EmailUtils.REGISTER, Priority.EXPENSIVE),
+            Map.entry(EmailUtils.SEND, Priority.EXPENSIVE),
+            Map.entry(EmailUtils.SEARCH_INBOX, Priority.EXPENSIVE),
+            Map.entry(EmailUtils.SEARCH_SENT, Priority.EXPENSIVE),
+            Map.entry(EmailUtils.BATCH, Priority.EXPENSIVE),
+            Map.entry(EmailUtils.LIST_INBOX, Priority.READ),
+            Map.entry(EmailUtils.LIST_SENT, Priority.READ),
+            Map.entry(EmailUtils.READ, Priority.READ),
+            Map.entry(EmailUtils.SYNC, Priority.READ),
+            Map.entry(EmailUtils.RESUME, Priority.READ));
+
+    private static final long READ_MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long EXPENSIVE_MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MIN_RETRY_AFTER_MS = 100;
+    private static final long MAX_RETRY_AFTER_MS = 5000;
+    /** Hint for clients turned away at connect, when there is no queue delay to go by. */
+    static final long CONNECTION_RETRY_AFTER_MS = 1000;
+
+    private final int maxConnections;
+    private final int maxExpensive;
+    private final long readMaxWaitNanos;
+    private final long expensiveMaxWaitNanos;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger expensiveRunning = new AtomicInteger();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder shedRequests = new LongAdder();
+
+    /**
+     * @param maxConnections connections served at once; more are turned away at accept
+     * @param maxExpensive   expensive commands allowed to run at once
+     */
+    public AdmissionControl(int maxConnections, int maxExpensive) {
+        this(maxConnections, maxExpensive, READ_MAX_WAIT_NANOS, EXPENSIVE_MAX_WAIT_NANOS);
+    }
+
+    AdmissionControl(int maxConnections, int maxExpensive, long readMaxWaitNanos, long expensiveMaxWaitNanos) {
+        this.maxConnections = maxConnections;
+        this.maxExpensive = maxExpensive;
+        this.readMaxWaitNanos = readMaxWaitNanos;
+        this.expensiveMaxWaitNanos = expensiveMaxWaitNanos;
+    }
+
+    /**
+     * @param command a request's command, or null if it has none
+     * @return how readily the command is shed; unknown and missing commands only cost an error reply
+     */
+    public static Priority priorityOf(String command) {
+        return command == null ? Priority.ESSENTIAL : PRIORITIES.getOrDefault(command, Priority.ESSENTIAL);
+    }
+
+    /**
+     * Counts a new connection if there is room for it.
+     *
+     * @return whether the connection may be served; if so, {@link #connectionClosed()} must follow
+     */
+    public boolean tryOpenConnection() {
+        while (true) {
+            int current = connections.get();
+            if (current >= maxConnections) {
+                rejectedConnections.increment();
+                return false;
+            }
+            if (connections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Decides whether a request runs.
+     *
+     * @param command     the request's command
+     * @param waitedNanos how long the request waited for a worker
+     * @return 0 if the request may run, in which case {@link #finished(String)} must follow;
+     * otherwise milliseconds the client should wait before retrying
+     */
+    public long tryAdmit(String command, long waitedNanos) {
+        switch (priorityOf(command)) {
+            case READ:
+                return waitedNanos > readMaxWaitNanos ? shed(waitedNanos) : 0;
+            case EXPENSIVE:
+                if (waitedNanos > expensiveMaxWaitNanos) {
+                    return shed(waitedNanos);
+                }
+                if (expensiveRunning.incrementAndGet() > maxExpensive) {
+                    expensiveRunning.decrementAndGet();
+                    return shed(waitedNanos);
+                }
+                return 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Releases what {@link #tryAdmit} reserved for a request that ran.
+     */
+    public void finished(String command) {
+        if (priorityOf(command) == Priority.EXPENSIVE) {
+            expensiveRunning.decrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a request turned away because no worker could take it at all.
+     *
+     * @return milliseconds the client should wait before retrying
+     */
+    public long rejected() {
+        return shed(expensiveMaxWaitNanos);
+    }
+
+    /**
+     * The hint grows with the delay the request saw and is spread out a little, so the clients
+     * turned away together do not all come back at the same moment.
+     */
+    private long shed(long waitedNanos) {
+        shedRequests.increment();
+        long retryAfter = Math.max(MIN_RETRY_AFTER_MS,
+                Math.min(MAX_RETRY_AFTER_MS, 2 * TimeUnit.NANOSECONDS.toMillis(waitedNanos)));
+        return retryAfter + ThreadLocalRandom.current().nextLong(retryAfter / 2 + 1);
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public int getExpensiveRunning() {
+        return expensiveRunning.get();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    public long getShedRequests() {
+        return shedRequests.sum();
+    }
+}
@@ -0,0 +1,163 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Runs password hashing and verification on its own small pool, sized to the CPU count.
+ * PBKDF2 is deliberately slow, so if LOGIN and REGISTER did it on the session threads a burst
+ * of logins would occupy the whole request pool and stall mailbox traffic.
+ * <p>
+ * The queue is bounded: when it is full, or a task does not finish in time, the caller gets a
+ * {@link RejectedExecutionException} and can answer "busy" right away instead of waiting.
+ * The time tasks spend queued is recorded so an overloaded engine shows up in the logs.
+ */
+public class AuthEngine {
+    private static final Logger LOGGER = Logger.getLogger(AuthEngine.class.getName());
+
+    private static final int QUEUE_PER_THREAD = 8;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutNanos;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+
+    /**
+     * Creates an engine with one thread per available processor.
+     */
+    public AuthEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of hashing threads
+     */
+    public AuthEngine(int threads) {
+        this(threads, threads * QUEUE_PER_THREAD, TIMEOUT_NANOS);
+    }
+
+    /**
+     * @param threads       number of hashing threads
+     * @param queueCapacity tasks that may wait for a thread before new ones are rejected
+     * @param timeoutNanos  how long a caller waits for its task before giving up
+     */
+    AuthEngine(int threads, int queueCapacity, long timeoutNanos) {
+        this.timeoutNanos = timeoutNanos;
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, "auth-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), factory,
+                new ThreadPoolExecutor.AbortPolicy());
+        LOGGER.info("Authentication engine started with " + threads + " threads");
+    }
+
+    /**
+     * Runs a task on the engine and waits for its result.
+     *
+     * @param task the hashing or verification work
+     * @return the task's result
+     * @throws RejectedExecutionException if the engine is saturated or the task timed out
+     */
+    public <T> T call(Callable<T> task) {
+        long queuedAt = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                recordQueueTime(System.nanoTime() - queuedAt);
+                return task.call();
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+
+        try {
+            return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Authentication timed out", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while authenticating", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void recordQueueTime(long nanos) {
+        completed.incrementAndGet();
+        totalQueueNanos.addAndGet(nanos);
+        maxQueueNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return number of tasks that have started running
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return number of tasks turned away because the engine was saturated or too slow
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of tasks waiting for a hashing thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return average time a task waited in the queue before running, in milliseconds
+     */
+    public double getAverageQueueMillis() {
+        long count = completed.get();
+        return count == 0 ? 0 : totalQueueNanos.get() / (double) count / 1_000_000;
+    }
+
+    /**
+     * @return longest time a task waited in the queue before running, in milliseconds
+     */
+    public double getMaxQueueMillis() {
+        return maxQueueNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * Stops the hashing threads and logs the queue statistics.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        LOGGER.info(String.format("Authentication engine stopped: %d run, %d rejected, queue wait avg %.1f ms, max %.1f ms",
+                getCompleted(), getRejected(), getAverageQueueMillis(), getMaxQueueMillis()));
+    }
+}
@@ -6,20 +6,35 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import model.Change;
+import model.ChangeLog;
 import model.Email;
 import model.EmailManager;
+import model.Page;
 import model.PasswordHasher;
 import model.UserManager;
+import network.Framing;
+import network.MessageWriter;
 import network.NetworkLayerJSON;
 import utils.EmailUtils;
 
+import java.io.EOFException;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.net.Socket;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,50 +42,270 @@ public class ClientHandler implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(ClientHandler.class.getName());
     private static final Gson gson = new Gson();
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    /** Commands allowed inside a BATCH: those that only read or send mail. */
+    private static final Set<String> BATCHABLE = Set.of(EmailUtils.SEND, EmailUtils.READ,
+            EmailUtils.LIST_INBOX, EmailUtils.SEARCH_INBOX, EmailUtils.LIST_SENT,
+            EmailUtils.SEARCH_SENT, EmailUtils.SYNC);
 
     private final Socket clientSocket;
     private final EmailManager emailManager;
     private final UserManager userManager;
     private final Map<String, ClientHandler> activeClients;
-    private NetworkLayerJSON networkLayer;
-
-    private String authenticatedUser = null;
+    private final ResponseCodec codec;
+    private final AuthEngine authEngine;
+    private final SessionTokens sessionTokens;
+    private final LoginThrottle loginThrottle;
+    private final String remoteAddress;
+    private final RequestLog requestLog;
+    private final ServerMetrics metrics;
+    private final AdmissionControl admission;
+    private final Set<String> operators;
+    private ResponseChannel channel;
+    /** Where responses go; counts what is written to {@link #channel} for the request log. */
+    private final ResponseChannel out = new MeteredChannel();
+
+    /** Volatile because deliveries to this user are pushed from other sessions' threads. */
+    private volatile String authenticatedUser = null;
+    /** Whether the client asked for NEW_MAIL pushes; reset on LOGOUT. */
+    private volatile boolean subscribed = false;
+    /** Token issued for the current session; revoked on LOGOUT. */
+    private String sessionToken = null;
     private boolean sessionActive = true;
+    private JsonElement requestId = null;
+    /** Collects the responses of a BATCH's entries; null outside a batch. */
+    private BatchResponses batch = null;
+    /** Size and status of what has been sent for the current request, for the request log. */
+    private long responseChars;
+    private String responseStatus;
+    /** Time the current request has spent in the managers and in writing responses, for the metrics. */
+    private long managerNanos;
+    private long serializeNanos;
+
+    /**
+     * Creates a handler for a blocking connection; {@link #run()} drives the whole session.
+     */
+    public ClientHandler(Socket clientSocket, ServerContext context) {
+        this(clientSocket, clientSocket.getInetAddress().getHostAddress(), context);
+    }
 
-    public ClientHandler(Socket clientSocket, EmailManager emailManager, UserManager userManager,
-                         Map<String, ClientHandler> activeClients) {
+    private ClientHandler(Socket clientSocket, String remoteAddress, ServerContext context) {
         this.clientSocket = clientSocket;
-        this.emailManager = emailManager;
-        this.userManager = userManager;
-        this.activeClients = activeClients;
+        this.remoteAddress = remoteAddress;
+        this.emailManager = context.getEmailManager();
+        this.userManager = context.getUserManager();
+        this.activeClients = context.getActiveClients();
+        this.codec = context.getCodec();
+        this.authEngine = context.getAuthEngine();
+        this.sessionTokens = context.getSessionTokens();
+        this.loginThrottle = context.getLoginThrottle();
+        this.requestLog = context.getRequestLog();
+        this.metrics = context.getMetrics();
+        this.admission = context.getAdmission();
+        this.operators = context.getOperators();
+    }
+
+    /**
+     * Creates a handler for a connection whose I/O is driven elsewhere, e.g. by the
+     * selector loop in {@link NioEmailServer}. Requests are fed in through
+     * {@link #handleMessage(String, long)} and responses leave through the given channel.
+     */
+    ClientHandler(ResponseChannel channel, String remoteAddress, ServerContext context) {
+        this((Socket) null, remoteAddress, context);
+        this.channel = channel;
     }
 
     @Override
     public void run() {
         try {
-            networkLayer = new NetworkLayerJSON(clientSocket);
+            NetworkLayerJSON networkLayer = new NetworkLayerJSON(clientSocket);
+            PushWriter pushWriter = new PushWriter(networkLayer, clientSocket);
+            channel = new ResponseChannel() {
+                @Override
+                public void send(String message) {
+                    try {
+                        // Pipelined requests already buffered get their responses in one flush
+                        if (networkLayer.hasBufferedInput()) {
+                            networkLayer.sendBuffered(message);
+                        } else {
+                            networkLayer.send(message);
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Error sending response, ending session", e);
+                        sessionActive = false;
+                    }
+                }
+
+                @Override
+                public void send(MessageWriter message) {
+                    try {
+                        if (networkLayer.hasBufferedInput()) {
+                            networkLayer.sendBuffered(message);
+                        } else {
+                            networkLayer.send(message);
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Error sending response, ending session", e);
+                        sessionActive = false;
+                    }
+                }
+
+                /**
+                 * Written by a {@link PushWriter} thread; NetworkLayerJSON writes each message
+                 * under its own lock, so pushes land between responses.
+                 */
+                @Override
+                public void push(String message) {
+                    pushWriter.push(message);
+                }
+
+                @Override
+                public void upgrade(String reply, Framing framing) {
+                    send(reply);
+                    networkLayer.setFraming(framing);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    pushWriter.close();
+                    networkLayer.disconnect();
+                }
+            };
             LOGGER.info("Client connected: " + clientSocket.getInetAddress());
 
             while (sessionActive) {
-                String request = networkLayer.receive();
-                LOGGER.info("Received request: " + request);
+                handleMessage(networkLayer.receive());
+            }
+
+        } catch (EOFException e) {
+            LOGGER.info("Client disconnected: " + clientSocket.getInetAddress());
+        } catch (IOException e) {
+            if (clientSocket.isClosed()) {
+                // Closed on purpose, e.g. by the PushWriter of a client that stopped reading
+                LOGGER.info("Client connection closed: " + clientSocket.getInetAddress());
+            } else {
+                LOGGER.log(Level.SEVERE, "Error handling client connection", e);
+            }
+        } finally {
+            cleanup();
+        }
+    }
+
+    /**
+     * Parses and dispatches one raw request line that has just arrived.
+     *
+     * @param request the request as received from the client
+     */
+    void handleMessage(String request) {
+        handleMessage(request, 0);
+    }
+
+    /**
+     * Parses and dispatches one raw request line, or answers BUSY if it waited longer for a
+     * worker than its command's priority allows.
+     *
+     * @param request     the request as received from the client
+     * @param queuedNanos how long the request waited for a worker
+     */
+    void handleMessage(String request, long queuedNanos) {
+        long start = System.nanoTime();
+        beginRequest();
+
+        JsonObject jsonRequest;
+        try {
+            jsonRequest = JsonParser.parseString(request).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            long parsed = System.nanoTime();
+            sendErrorResponse("Invalid JSON format");
+            LOGGER.log(Level.FINE, "Invalid JSON received", e);
+            finish(null, request, start, parsed);
+            return;
+        }
+        long parsed = System.nanoTime();
 
+        // Echo the client's correlation ID so pipelined responses can be matched up
+        requestId = jsonRequest.get(EmailUtils.FIELD_REQUEST_ID);
+        String command = commandOf(jsonRequest);
+        try {
+            long retryAfter = admission.tryAdmit(command, queuedNanos);
+            if (retryAfter > 0) {
+                sendBusyResponse(retryAfter);
+            } else {
                 try {
-                    JsonObject jsonRequest = JsonParser.parseString(request).getAsJsonObject();
                     processRequest(jsonRequest);
-                } catch (JsonParseException e) {
-                    sendErrorResponse("Invalid JSON format");
-                    LOGGER.log(Level.WARNING, "Invalid JSON received", e);
+                } finally {
+                    admission.finished(command);
                 }
             }
+        } finally {
+            requestId = null;
+            finish(command, request, start, parsed);
+        }
+    }
 
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Error handling client connection", e);
+    /**
+     * Answers a request with BUSY without running it, for when no worker can take it. Only
+     * parses it to echo the correlation ID.
+     *
+     * @param request the request as received from the client
+     */
+    void rejectMessage(String request) {
+        long start = System.nanoTime();
+        beginRequest();
+
+        String command = null;
+        try {
+            JsonObject jsonRequest = JsonParser.parseString(request).getAsJsonObject();
+            requestId = jsonRequest.get(EmailUtils.FIELD_REQUEST_ID);
+            command = commandOf(jsonRequest);
+        } catch (JsonParseException | IllegalStateException e) {
+            // Answered BUSY all the same; it would have been an error anyway
+        }
+        long parsed = System.nanoTime();
+        try {
+            sendBusyResponse(admission.rejected());
         } finally {
-            cleanup();
+            requestId = null;
+            finish(command, request, start, parsed);
+        }
+    }
+
+    private void beginRequest() {
+        responseChars = 0;
+        responseStatus = null;
+        managerNanos = 0;
+        serializeNanos = 0;
+    }
+
+    /**
+     * Reports a handled request to the metrics and the request log. The user is read
+     * afterwards so LOGIN and REGISTER are attributed to who they authenticated.
+     */
+    private void finish(String command, String request, long start, long parsed) {
+        long end = System.nanoTime();
+        metrics.record(command, RequestLog.isFailure(responseStatus), parsed - start,
+                end - parsed - managerNanos - serializeNanos, managerNanos, serializeNanos);
+        requestLog.record(command, authenticatedUser, request.length(), responseChars, end - start, responseStatus);
+    }
+
+    /**
+     * Runs a call into the mail or user manager, adding its time to the request's manager phase.
+     */
+    private <T> T timed(Supplier<T> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            managerNanos += System.nanoTime() - start;
         }
     }
 
+    /**
+     * @return false once the client has sent EXIT
+     */
+    boolean isSessionActive() {
+        return sessionActive;
+    }
+
     private void processRequest(JsonObject jsonRequest) {
         if (!jsonRequest.has(EmailUtils.FIELD_COMMAND)) {
             sendErrorResponse("Missing command field");
@@ -79,12 +314,18 @@ public class ClientHandler implements Runnable {
 
         String command = jsonRequest.get(EmailUtils.FIELD_COMMAND).getAsString();
 
-        if (command.equals(EmailUtils.LOGIN)) {
+        if (command.equals(EmailUtils.HELLO)) {
+            handleHello(jsonRequest);
+            return;
+        } else if (command.equals(EmailUtils.LOGIN)) {
             handleLogin(jsonRequest);
             return;
         } else if (command.equals(EmailUtils.REGISTER)) {
             handleRegister(jsonRequest);
             return;
+        } else if (command.equals(EmailUtils.RESUME)) {
+            handleResume(jsonRequest);
+            return;
         } else if (command.equals(EmailUtils.EXIT)) {
             handleExit();
             return;
@@ -99,17 +340,23 @@ public class ClientHandler implements Runnable {
             case EmailUtils.LOGOUT:
                 handleLogout();
                 break;
+            case EmailUtils.SUBSCRIBE:
+                handleSubscribe();
+                break;
+            case EmailUtils.SYNC:
+                handleSync(jsonRequest);
+                break;
             case EmailUtils.SEND:
                 handleSendEmail(jsonRequest);
                 break;
             case EmailUtils.LIST_INBOX:
-                handleListInbox();
+                handleListInbox(jsonRequest);
                 break;
             case EmailUtils.SEARCH_INBOX:
                 handleSearchInbox(jsonRequest);
                 break;
             case EmailUtils.LIST_SENT:
-                handleListSent();
+                handleListSent(jsonRequest);
                 break;
             case EmailUtils.SEARCH_SENT:
                 handleSearchSent(jsonRequest);
@@ -117,11 +364,44 @@ public class ClientHandler implements Runnable {
             case EmailUtils.READ:
                 handleReadEmail(jsonRequest);
                 break;
+            case EmailUtils.BATCH:
+                handleBatch(jsonRequest);
+                break;
+            case EmailUtils.STATS:
+                handleStats();
+                break;
             default:
                 sendErrorResponse("Unknown command: " + command);
         }
     }
 
+    /**
+     * Handles the transport handshake. The reply goes out in the current framing and
+     * names the framing both sides use from then on; unknown framings keep line mode.
+     *
+     * @param jsonRequest The JSON request object containing the requested framing.
+     */
+    private void handleHello(JsonObject jsonRequest) {
+        Framing framing = Framing.LINE;
+        if (jsonRequest.has(EmailUtils.FIELD_FRAMING)) {
+            try {
+                framing = Framing.valueOf(jsonRequest.get(EmailUtils.FIELD_FRAMING).getAsString());
+            } catch (IllegalArgumentException e) {
+                LOGGER.info("Unsupported framing requested: " + jsonRequest.get(EmailUtils.FIELD_FRAMING));
+            }
+        }
+
+        JsonObject response = new JsonObject();
+        response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_HELLO);
+        response.addProperty(EmailUtils.FIELD_FRAMING, framing.name());
+        if (requestId != null) {
+            response.add(EmailUtils.FIELD_REQUEST_ID, requestId);
+        }
+        String reply = gson.toJson(response);
+        responseStatus = EmailUtils.STATUS_HELLO;
+        out.upgrade(reply, framing);
+    }
+
     /**
      * Handles the login command.
      *
@@ -137,8 +417,22 @@ public class ClientHandler implements Runnable {
         String username = jsonRequest.get(EmailUtils.FIELD_USERNAME).getAsString();
         String password = jsonRequest.get("password").getAsString();
 
+        if (isThrottled(username)) {
+            return;
+        }
+
+        // Verification runs on the authentication engine so it cannot tie up request threads
+        boolean authenticated;
+        try {
+            authenticated = timed(() -> authEngine.call(() -> userManager.authenticate(username, password)));
+        } catch (RejectedExecutionException e) {
+            sendBusyResponse(admission.rejected());
+            LOGGER.warning("Login rejected, authentication engine saturated: " + username);
+            return;
+        }
+
         //username and password authenticated
-        if (userManager.authenticate(username, password)) {
+        if (authenticated) {
             authenticatedUser = username;
 
             //put into active clients map
@@ -148,6 +442,7 @@ public class ClientHandler implements Runnable {
             JsonObject response = new JsonObject();
             response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_LOGIN_SUCCESS);
             response.addProperty(EmailUtils.FIELD_USERNAME, username);
+            response.addProperty(EmailUtils.FIELD_TOKEN, issueSessionToken(username));
             sendJsonResponse(response);
             LOGGER.info("User logged in: " + username);
         } else {
@@ -173,8 +468,28 @@ public class ClientHandler implements Runnable {
         String username = jsonRequest.get(EmailUtils.FIELD_USERNAME).getAsString();
         String password = jsonRequest.get("password").getAsString();
 
-        //hashes password
-        String passwordHash = PasswordHasher.hashPassword(password);
+        if (isThrottled(username)) {
+            return;
+        }
+
+        // A taken name fails anyway, so skip the expensive hash
+        if (userManager.userExists(username)) {
+            JsonObject response = new JsonObject();
+            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_REGISTER_FAILURE);
+            sendJsonResponse(response);
+            LOGGER.info("Registration failed for: " + username);
+            return;
+        }
+
+        //hashes password on the authentication engine
+        String passwordHash;
+        try {
+            passwordHash = timed(() -> authEngine.call(() -> PasswordHasher.hashPassword(password)));
+        } catch (RejectedExecutionException e) {
+            sendBusyResponse(admission.rejected());
+            LOGGER.warning("Registration rejected, authentication engine saturated: " + username);
+            return;
+        }
 
         //authenticates user
         if (userManager.register(username, passwordHash)) {
@@ -185,6 +500,7 @@ public class ClientHandler implements Runnable {
             JsonObject response = new JsonObject();
             response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_REGISTERED);
             response.addProperty(EmailUtils.FIELD_USERNAME, username);
+            response.addProperty(EmailUtils.FIELD_TOKEN, issueSessionToken(username));
             sendJsonResponse(response);
             LOGGER.info("User registered: " + username);
         } else {
@@ -195,14 +511,84 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Handles the resume command: re-authenticates with a session token from an earlier LOGIN
+     * or REGISTER instead of a password, so reconnecting skips the password hash.
+     *
+     * @param jsonRequest The JSON request object containing the token.
+     */
+    private void handleResume(JsonObject jsonRequest) {
+        if (!jsonRequest.has(EmailUtils.FIELD_TOKEN)) {
+            sendErrorResponse("Missing token");
+            return;
+        }
+
+        String token = jsonRequest.get(EmailUtils.FIELD_TOKEN).getAsString();
+        String username = sessionTokens.validate(token);
+
+        // The account must still exist; the token only proves who logged in
+        if (username != null && userManager.userExists(username)) {
+            authenticatedUser = username;
+            sessionToken = token;
+            activeClients.put(username, this);
+
+            JsonObject response = new JsonObject();
+            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_RESUMED);
+            response.addProperty(EmailUtils.FIELD_USERNAME, username);
+            sendJsonResponse(response);
+            LOGGER.info("Session resumed: " + username);
+        } else {
+            JsonObject response = new JsonObject();
+            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_RESUME_FAILURE);
+            sendJsonResponse(response);
+            LOGGER.info("Resume failed");
+        }
+    }
+
+    /**
+     * Charges a LOGIN or REGISTER attempt to the username and the client's address, and answers
+     * THROTTLED if either has used up its attempts. This runs before any password hashing.
+     *
+     * @param username the username in the request
+     * @return true if the request was rejected
+     */
+    private boolean isThrottled(String username) {
+        long retryAfter = loginThrottle.tryAcquire(username, remoteAddress);
+        if (retryAfter == 0) {
+            return false;
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_THROTTLED);
+        response.addProperty(EmailUtils.FIELD_RETRY_AFTER, retryAfter);
+        sendJsonResponse(response);
+        LOGGER.warning("Throttled authentication for " + username + " from " + remoteAddress);
+        return true;
+    }
+
+    /**
+     * Issues a session token for a user who just authenticated and remembers it for LOGOUT.
+     *
+     * @param username the authenticated user
+     * @return the token to hand to the client
+     */
+    private String issueSessionToken(String username) {
+        sessionToken = sessionTokens.issue(username);
+        return sessionToken;
+    }
+
     /**
      * Handles the logout command.
      */
     private void handleLogout() {
         if (authenticatedUser != null) {
-            activeClients.remove(authenticatedUser);
+            activeClients.remove(authenticatedUser, this);
             String logoutUser = authenticatedUser;
             authenticatedUser = null;
+            subscribed = false;
+            if (sessionToken != null) {
+                sessionTokens.revoke(sessionToken);
+                sessionToken = null;
+            }
 
             JsonObject response = new JsonObject();
             response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_LOGOUT_SUCCESS);
@@ -213,6 +599,124 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Handles the subscribe command: from now on, emails delivered to the user are pushed
+     * to this connection as NEW_MAIL messages, so the client need not poll its inbox.
+     */
+    private void handleSubscribe() {
+        subscribed = true;
+
+        JsonObject response = new JsonObject();
+        response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_SUBSCRIBED);
+        sendJsonResponse(response);
+        LOGGER.info("User subscribed to new mail: " + authenticatedUser);
+    }
+
+    /**
+     * Handles the stats command: request counts, latency percentiles per command and phase,
+     * and gauges such as active clients and queue depths. Only for the users named by
+     * {@code --operators}; everyone else gets an error.
+     */
+    private void handleStats() {
+        if (!operators.contains(authenticatedUser)) {
+            sendErrorResponse("STATS is only available to operators");
+            return;
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_STATS);
+        metrics.toJson().entrySet().forEach(field -> response.add(field.getKey(), field.getValue()));
+        sendJsonResponse(response);
+    }
+
+    /**
+     * Handles the sync command: returns the changes to the user's mail after the version the
+     * client last saw, oldest first, so refreshing an unchanged mailbox costs almost nothing.
+     * A client without a version, or with one from another epoch (e.g. before a server
+     * restart), gets the whole log from the start and {@code reset} set when it must discard
+     * what it had. {@code more} means the limit cut the answer short and the client should
+     * sync again from the returned version.
+     *
+     * @param jsonRequest The JSON request object with the optional epoch, version and limit.
+     */
+    private void handleSync(JsonObject jsonRequest) {
+        Long epoch;
+        long version;
+        int limit;
+        try {
+            epoch = jsonRequest.has(EmailUtils.FIELD_EPOCH)
+                    ? jsonRequest.get(EmailUtils.FIELD_EPOCH).getAsLong() : null;
+            version = jsonRequest.has(EmailUtils.FIELD_VERSION)
+                    ? jsonRequest.get(EmailUtils.FIELD_VERSION).getAsLong() : 0;
+            limit = jsonRequest.has(EmailUtils.FIELD_LIMIT)
+                    ? jsonRequest.get(EmailUtils.FIELD_LIMIT).getAsInt() : EmailUtils.MAX_PAGE_SIZE;
+        } catch (NumberFormatException | IllegalStateException | UnsupportedOperationException e) {
+            sendErrorResponse("Invalid epoch, version or limit");
+            return;
+        }
+        if (version < 0 || limit <= 0) {
+            sendErrorResponse("Invalid epoch, version or limit");
+            return;
+        }
+
+        ChangeLog log = emailManager.getChangeLog(authenticatedUser);
+        boolean reset = epoch != null && epoch != log.getEpoch();
+        long since = epoch != null && !reset ? version : 0;
+        int pageSize = Math.min(limit, EmailUtils.MAX_PAGE_SIZE);
+        List<Change> changes = timed(() -> log.since(since, pageSize));
+        long reached = changes.isEmpty() ? since : changes.get(changes.size() - 1).getVersion();
+
+        JsonObject response = new JsonObject();
+        response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_SYNC);
+        response.addProperty(EmailUtils.FIELD_EPOCH, log.getEpoch());
+        response.addProperty(EmailUtils.FIELD_VERSION, reached);
+        response.addProperty(EmailUtils.FIELD_MORE, reached < log.getVersion());
+        if (reset) {
+            response.addProperty(EmailUtils.FIELD_RESET, true);
+        }
+        sendJsonListResponse(response, EmailUtils.FIELD_CHANGES, changes, this::changeEntry);
+    }
+
+    /**
+     * Builds the SYNC entry for one change: the list entry of the folder it touched, or the
+     * email ID and reader for a read receipt.
+     */
+    private JsonObject changeEntry(Change change) {
+        JsonObject entry;
+        switch (change.getKind()) {
+            case INBOX:
+                entry = inboxEntry(change.getEmail());
+                break;
+            case SENT:
+                entry = sentEntry(change.getEmail());
+                break;
+            default:
+                entry = new JsonObject();
+                entry.addProperty("id", change.getEmail().getId());
+                entry.addProperty(EmailUtils.FIELD_READER, change.getReader());
+        }
+        entry.addProperty(EmailUtils.FIELD_VERSION, change.getVersion());
+        entry.addProperty(EmailUtils.FIELD_CHANGE, change.getKind().name());
+        return entry;
+    }
+
+    /**
+     * Pushes a compact notice of a newly delivered email if this session is logged in as
+     * the recipient and has subscribed. Called on the sender's thread, so the channel only
+     * queues the notice and never waits for this client.
+     *
+     * @param recipient the user the email was delivered to
+     * @param email     the delivered email
+     */
+    void notifyNewMail(String recipient, Email email) {
+        if (!subscribed || !recipient.equals(authenticatedUser)) {
+            return;
+        }
+        JsonObject event = new JsonObject();
+        event.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_NEW_MAIL);
+        inboxEntry(email).entrySet().forEach(field -> event.add(field.getKey(), field.getValue()));
+        channel.push(event.toString());
+    }
+
     /**
      * Handles the exit command.
      */
@@ -233,196 +737,230 @@ public class ClientHandler implements Runnable {
     private void handleSendEmail(JsonObject jsonRequest) {
         try {
             // Validate that all required fields (recipient, subject, body) are present in the request
-            if (!jsonRequest.has(EmailUtils.FIELD_RECIPIENT) ||
-                    !jsonRequest.has(EmailUtils.FIELD_SUBJECT) ||
-                    !jsonRequest.has(EmailUtils.FIELD_BODY)) {
+            Email draft = parseDraft(jsonRequest);
+            if (draft == null) {
                 sendErrorResponse("Missing recipient, subject, or body");
                 return;
             }
 
-            //gets email details from json request
-            String recipientStr = jsonRequest.get(EmailUtils.FIELD_RECIPIENT).getAsString();
-            String subject = jsonRequest.get(EmailUtils.FIELD_SUBJECT).getAsString();
-            String body = jsonRequest.get(EmailUtils.FIELD_BODY).getAsString();
-
-            //parses recipients string into list of email addresses
-            List<String> recipients = Arrays.asList(recipientStr.split("\\s*,\\s*"));
-
             // Attempt to send the email using the EmailManager
-            LOGGER.info("Processing send email request from " + authenticatedUser + " to " + String.join(", ", recipients));
-            Email email = emailManager.sendEmail(authenticatedUser, recipients, subject, body);
-
-            if (email != null) {
-                JsonObject response = new JsonObject();
-                response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_SENT);
-                sendJsonResponse(response);
-                LOGGER.info("Email sent from " + authenticatedUser + " to " + String.join(", ", recipients));
-            } else {
-                JsonObject response = new JsonObject();
-                response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_SEND_FAILURE);
-                response.addProperty(EmailUtils.FIELD_ERROR, "One or more recipients not found");
-                sendJsonResponse(response);
-                LOGGER.warning("Failed to send email: one or more recipients not found");
-            }
+            LOGGER.fine("Processing send email request from " + authenticatedUser + " to " + String.join(", ", draft.getRecipients()));
+            Email email = timed(() -> emailManager.sendEmail(authenticatedUser, draft.getRecipients(),
+                    draft.getSubject(), draft.getBody()));
+            sendSendResult(email, draft.getRecipients());
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Unexpected error in handleSendEmail", e);
             sendErrorResponse("Internal server error: " + e.getMessage());
         }
     }
 
-
     /**
-     * Handles the list inbox command.
+     * Reads the recipients, subject and body of a SEND request.
+     *
+     * @return the unsent email, or null if a field is missing
      */
-    private void handleListInbox() {
-        List<Email> inboxEmails = emailManager.listInbox(authenticatedUser);
+    private static Email parseDraft(JsonObject jsonRequest) {
+        if (!jsonRequest.has(EmailUtils.FIELD_RECIPIENT) ||
+                !jsonRequest.has(EmailUtils.FIELD_SUBJECT) ||
+                !jsonRequest.has(EmailUtils.FIELD_BODY)) {
+            return null;
+        }
+
+        //parses recipients string into list of email addresses
+        String recipientStr = jsonRequest.get(EmailUtils.FIELD_RECIPIENT).getAsString();
+        Email draft = new Email();
+        draft.setRecipients(Arrays.asList(recipientStr.split("\\s*,\\s*")));
+        draft.setSubject(jsonRequest.get(EmailUtils.FIELD_SUBJECT).getAsString());
+        draft.setBody(jsonRequest.get(EmailUtils.FIELD_BODY).getAsString());
+        return draft;
+    }
 
-        if (inboxEmails.isEmpty()) {
+    private void sendSendResult(Email email, List<String> recipients) {
+        if (email != null) {
             JsonObject response = new JsonObject();
-            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_INBOX_EMPTY);
+            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_SENT);
             sendJsonResponse(response);
+            LOGGER.fine("Email sent from " + authenticatedUser + " to " + String.join(", ", recipients));
         } else {
             JsonObject response = new JsonObject();
-            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_INBOX);
-
-            JsonArray emailsArray = new JsonArray();
-            Map<Integer, Email> userEmailsWithIds = emailManager.getEmailIdsForUser(authenticatedUser);
-
-            for (Map.Entry<Integer, Email> entry : userEmailsWithIds.entrySet()) {
-                Email email = entry.getValue();
-                if (email.getRecipients().contains(authenticatedUser)) {
-                    JsonObject emailNode = new JsonObject();
-                    emailNode.addProperty("id", entry.getKey());
-                    emailNode.addProperty(EmailUtils.FIELD_SENDER, email.getSender());
-                    emailNode.addProperty(EmailUtils.FIELD_SUBJECT, email.getSubject());
-                    emailNode.addProperty(EmailUtils.FIELD_TIMESTAMP, email.getTimestamp().format(DATE_FORMATTER));
-                    emailsArray.add(emailNode);
-                }
-            }
-
-            response.add(EmailUtils.FIELD_EMAILS, emailsArray);
+            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_SEND_FAILURE);
+            response.addProperty(EmailUtils.FIELD_ERROR, "One or more recipients not found");
             sendJsonResponse(response);
+            LOGGER.fine("Failed to send email: one or more recipients not found");
         }
     }
 
     /**
-     * Handles the search inbox command.
+     * Handles the batch command: runs each entry of the {@code requests} array as if it had
+     * arrived on its own and answers with one message whose {@code responses} array holds the
+     * entries' responses in order, each with its own requestId. Only data commands may be
+     * batched; other entries get an error response.
+     * <p>
+     * Consecutive SENDs are delivered together through {@link EmailManager#sendEmails}, so a
+     * batch of them locks each mailbox once and is journaled in one step.
      *
-     * @param jsonRequest The JSON request object containing the search term.
+     * @param jsonRequest The JSON request object containing the requests.
      */
-    private void handleSearchInbox(JsonObject jsonRequest) {
-        if (!jsonRequest.has("term")) {
-            sendErrorResponse("Missing search term");
+    private void handleBatch(JsonObject jsonRequest) {
+        JsonElement requestsElement = jsonRequest.get(EmailUtils.FIELD_REQUESTS);
+        if (requestsElement == null || !requestsElement.isJsonArray()) {
+            sendErrorResponse("Missing requests");
+            return;
+        }
+        JsonArray requests = requestsElement.getAsJsonArray();
+        if (requests.size() > EmailUtils.MAX_BATCH_SIZE) {
+            sendErrorResponse("Too many requests in batch, maximum is " + EmailUtils.MAX_BATCH_SIZE);
             return;
         }
 
-        String searchTerm = jsonRequest.get("term").getAsString();
-        List<Email> searchResults = emailManager.searchInbox(authenticatedUser, searchTerm);
-
-        if (searchResults.isEmpty()) {
-            JsonObject response = new JsonObject();
-            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_NO_MATCHES);
-            sendJsonResponse(response);
-        } else {
-            JsonObject response = new JsonObject();
-            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_SEARCH_RESULTS);
-
-            JsonArray emailsArray = new JsonArray();
-            Map<Integer, Email> userEmailsWithIds = emailManager.getEmailIdsForUser(authenticatedUser);
-
-            for (Map.Entry<Integer, Email> entry : userEmailsWithIds.entrySet()) {
-                Email email = entry.getValue();
-                if (searchResults.contains(email) && email.getRecipients().contains(authenticatedUser)) {
-                    JsonObject emailNode = new JsonObject();
-                    emailNode.addProperty("id", entry.getKey());
-                    emailNode.addProperty(EmailUtils.FIELD_SENDER, email.getSender());
-                    emailNode.addProperty(EmailUtils.FIELD_SUBJECT, email.getSubject());
-                    emailNode.addProperty(EmailUtils.FIELD_TIMESTAMP, email.getTimestamp().format(DATE_FORMATTER));
-                    emailsArray.add(emailNode);
+        JsonElement batchRequestId = requestId;
+        BatchResponses collected = new BatchResponses(channel);
+        batch = collected;
+        try {
+            int i = 0;
+            while (i < requests.size()) {
+                int end = i;
+                while (end < requests.size() && EmailUtils.SEND.equals(commandOf(requests.get(end)))) {
+                    end++;
+                }
+                if (end > i) {
+                    sendBatched(requests, i, end);
+                    i = end;
+                } else {
+                    processBatchEntry(requests.get(i++));
                 }
             }
+        } finally {
+            batch = null;
+            requestId = batchRequestId;
+        }
 
-            response.add(EmailUtils.FIELD_EMAILS, emailsArray);
-            sendJsonResponse(response);
+        List<String> responses = collected.responses;
+        JsonObject envelope = new JsonObject();
+        envelope.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_BATCH);
+        if (requestId != null) {
+            envelope.add(EmailUtils.FIELD_REQUEST_ID, requestId);
         }
+        // The entries are already serialized, so splice them in instead of parsing them again
+        String head = gson.toJson(envelope);
+        responseStatus = EmailUtils.STATUS_BATCH;
+        long start = System.nanoTime();
+        out.send(writer -> {
+            writer.write(head, 0, head.length() - 1);
+            writer.write(",\"" + EmailUtils.FIELD_RESPONSES + "\":[");
+            for (int k = 0; k < responses.size(); k++) {
+                if (k > 0) {
+                    writer.write(',');
+                }
+                writer.write(responses.get(k));
+            }
+            writer.write("]}");
+        });
+        serializeNanos += System.nanoTime() - start;
     }
 
-    private void handleListSent() {
-        List<Email> sentEmails = emailManager.listSent(authenticatedUser);
+    private static String commandOf(JsonElement entry) {
+        if (!entry.isJsonObject()) {
+            return null;
+        }
+        JsonElement command = entry.getAsJsonObject().get(EmailUtils.FIELD_COMMAND);
+        return command != null && command.isJsonPrimitive() ? command.getAsString() : null;
+    }
 
-        if (sentEmails.isEmpty()) {
-            JsonObject response = new JsonObject();
-            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_SENT_EMPTY);
-            sendJsonResponse(response);
+    private void processBatchEntry(JsonElement entry) {
+        requestId = entry.isJsonObject() ? entry.getAsJsonObject().get(EmailUtils.FIELD_REQUEST_ID) : null;
+        String command = commandOf(entry);
+        if (command == null) {
+            sendErrorResponse("Missing command field");
+        } else if (!BATCHABLE.contains(command)) {
+            sendErrorResponse("Command cannot be batched: " + command);
         } else {
-            JsonObject response = new JsonObject();
-            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_SENT_LIST);
-
-            JsonArray emailsArray = new JsonArray();
-            Map<Integer, Email> userEmailsWithIds = emailManager.getEmailIdsForUser(authenticatedUser);
-
-            for (Map.Entry<Integer, Email> entry : userEmailsWithIds.entrySet()) {
-                Email email = entry.getValue();
-                if (email.getSender().equals(authenticatedUser)) {
-                    JsonObject emailNode = new JsonObject();
-                    emailNode.addProperty("id", entry.getKey());
-                    emailNode.addProperty(EmailUtils.FIELD_RECIPIENT, String.join(", ", email.getRecipients()));
-                    emailNode.addProperty(EmailUtils.FIELD_SUBJECT, email.getSubject());
-                    emailNode.addProperty(EmailUtils.FIELD_TIMESTAMP, email.getTimestamp().format(DATE_FORMATTER));
-
-                    if (email.getRecipients().size() > 0) {
-                        JsonObject viewedStatusNode = new JsonObject();
-                        for (String recipient : email.getRecipients()) {
-                            viewedStatusNode.addProperty(recipient,
-                                    emailManager.hasRecipientViewedEmail(email, recipient));
-                        }
-                        emailNode.add("viewedByRecipients", viewedStatusNode);
-                    }
+            processRequest(entry.getAsJsonObject());
+        }
+    }
 
-                    emailsArray.add(emailNode);
-                }
+    /**
+     * Sends the SEND entries {@code from} (inclusive) to {@code to} (exclusive) as one delivery
+     * and records a response for each.
+     */
+    private void sendBatched(JsonArray requests, int from, int to) {
+        Email[] drafts = new Email[to - from];
+        List<Email> valid = new ArrayList<>(drafts.length);
+        for (int k = 0; k < drafts.length; k++) {
+            drafts[k] = parseDraft(requests.get(from + k).getAsJsonObject());
+            if (drafts[k] != null) {
+                valid.add(drafts[k]);
             }
+        }
 
-            response.add(EmailUtils.FIELD_EMAILS, emailsArray);
-            sendJsonResponse(response);
+        LOGGER.fine("Processing " + valid.size() + " batched emails from " + authenticatedUser);
+        List<Email> sent;
+        try {
+            sent = timed(() -> emailManager.sendEmails(authenticatedUser, valid));
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Unexpected error sending batched emails", e);
+            sent = null;
+        }
+
+        int next = 0;
+        for (int k = 0; k < drafts.length; k++) {
+            requestId = requests.get(from + k).getAsJsonObject().get(EmailUtils.FIELD_REQUEST_ID);
+            if (drafts[k] == null) {
+                sendErrorResponse("Missing recipient, subject, or body");
+            } else if (sent == null) {
+                sendErrorResponse("Internal server error");
+            } else {
+                sendSendResult(sent.get(next++), drafts[k].getRecipients());
+            }
         }
     }
 
-    private void handleSearchSent(JsonObject jsonRequest) {
+
+    /**
+     * Handles the list inbox command. The inbox is returned one page at a time, newest first;
+     * without a limit the page holds {@link EmailUtils#DEFAULT_PAGE_SIZE} emails, so a large
+     * mailbox never goes out as a single response.
+     *
+     * @param jsonRequest The JSON request object, optionally containing limit and cursor.
+     */
+    private void handleListInbox(JsonObject jsonRequest) {
+        sendPage(jsonRequest, EmailUtils.STATUS_INBOX, EmailUtils.STATUS_INBOX_EMPTY,
+                (cursor, limit) -> emailManager.listInbox(authenticatedUser, cursor, limit), this::inboxEntry);
+    }
+
+    /**
+     * Handles the search inbox command, paged like the inbox listing.
+     *
+     * @param jsonRequest The JSON request object containing the search term.
+     */
+    private void handleSearchInbox(JsonObject jsonRequest) {
         if (!jsonRequest.has("term")) {
             sendErrorResponse("Missing search term");
             return;
         }
 
         String searchTerm = jsonRequest.get("term").getAsString();
-        List<Email> searchResults = emailManager.searchSent(authenticatedUser, searchTerm);
+        sendPage(jsonRequest, EmailUtils.STATUS_SEARCH_RESULTS, EmailUtils.STATUS_NO_MATCHES,
+                (cursor, limit) -> emailManager.searchInbox(authenticatedUser, searchTerm, cursor, limit),
+                this::inboxEntry);
+    }
 
-        if (searchResults.isEmpty()) {
-            JsonObject response = new JsonObject();
-            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_NO_MATCHES);
-            sendJsonResponse(response);
-        } else {
-            JsonObject response = new JsonObject();
-            response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_SEARCH_SENT_RESULTS);
-
-            JsonArray emailsArray = new JsonArray();
-            Map<Integer, Email> userEmailsWithIds = emailManager.getEmailIdsForUser(authenticatedUser);
-
-            for (Map.Entry<Integer, Email> entry : userEmailsWithIds.entrySet()) {
-                Email email = entry.getValue();
-                if (searchResults.contains(email) && email.getSender().equals(authenticatedUser)) {
-                    JsonObject emailNode = new JsonObject();
-                    emailNode.addProperty("id", entry.getKey());
-                    emailNode.addProperty(EmailUtils.FIELD_RECIPIENT, String.join(", ", email.getRecipients()));
-                    emailNode.addProperty(EmailUtils.FIELD_SUBJECT, email.getSubject());
-                    emailNode.addProperty(EmailUtils.FIELD_TIMESTAMP, email.getTimestamp().format(DATE_FORMATTER));
-                    emailsArray.add(emailNode);
-                }
-            }
+    private void handleListSent(JsonObject jsonRequest) {
+        sendPage(jsonRequest, EmailUtils.STATUS_SENT_LIST, EmailUtils.STATUS_SENT_EMPTY,
+                (cursor, limit) -> emailManager.listSent(authenticatedUser, cursor, limit),
+                this::sentEntryWithViewStatus);
+    }
 
-            response.add(EmailUtils.FIELD_EMAILS, emailsArray);
-            sendJsonResponse(response);
+    private void handleSearchSent(JsonObject jsonRequest) {
+        if (!jsonRequest.has("term")) {
+            sendErrorResponse("Missing search term");
+            return;
         }
+
+        String searchTerm = jsonRequest.get("term").getAsString();
+        sendPage(jsonRequest, EmailUtils.STATUS_SEARCH_SENT_RESULTS, EmailUtils.STATUS_NO_MATCHES,
+                (cursor, limit) -> emailManager.searchSent(authenticatedUser, searchTerm, cursor, limit),
+                this::sentEntry);
     }
 
     private void handleReadEmail(JsonObject jsonRequest) {
@@ -432,7 +970,7 @@ public class ClientHandler implements Runnable {
         }
 
         int emailId = jsonRequest.get("id").getAsInt();
-        Optional<Email> optionalEmail = emailManager.getEmailById(emailId, authenticatedUser);
+        Optional<Email> optionalEmail = timed(() -> emailManager.getEmailById(emailId, authenticatedUser));
 
         if (optionalEmail.isPresent()) {
             Email email = optionalEmail.get();
@@ -467,6 +1005,101 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Fetches and sends one page of a listing, {@link EmailUtils#DEFAULT_PAGE_SIZE} emails
+     * unless the request gives a limit. The response carries {@code nextCursor} when more
+     * emails follow. An empty first page gets the listing's empty status instead.
+     *
+     * @param jsonRequest the request holding the optional limit and cursor
+     * @param status      status for a page of results
+     * @param emptyStatus status when there is nothing to list
+     * @param fetch       fetches the page for a cursor and limit
+     * @param toEntry     builds the JSON entry for one email
+     */
+    private void sendPage(JsonObject jsonRequest, String status, String emptyStatus,
+                          BiFunction<Integer, Integer, Page<Email>> fetch,
+                          Function<Email, JsonObject> toEntry) {
+        Integer cursor;
+        int limit;
+        try {
+            cursor = jsonRequest.has(EmailUtils.FIELD_CURSOR)
+                    ? jsonRequest.get(EmailUtils.FIELD_CURSOR).getAsInt() : null;
+            limit = jsonRequest.has(EmailUtils.FIELD_LIMIT)
+                    ? jsonRequest.get(EmailUtils.FIELD_LIMIT).getAsInt() : EmailUtils.DEFAULT_PAGE_SIZE;
+        } catch (NumberFormatException | IllegalStateException | UnsupportedOperationException e) {
+            sendErrorResponse("Invalid limit or cursor");
+            return;
+        }
+        if (limit <= 0) {
+            sendErrorResponse("Invalid limit or cursor");
+            return;
+        }
+
+        Integer from = cursor;
+        int pageSize = Math.min(limit, EmailUtils.MAX_PAGE_SIZE);
+        Page<Email> page = timed(() -> fetch.apply(from, pageSize));
+        JsonObject response = new JsonObject();
+        if (page.getItems().isEmpty() && cursor == null) {
+            response.addProperty(EmailUtils.FIELD_STATUS, emptyStatus);
+            sendJsonResponse(response);
+            return;
+        }
+
+        response.addProperty(EmailUtils.FIELD_STATUS, status);
+        if (page.getNextCursor() != null) {
+            response.addProperty(EmailUtils.FIELD_NEXT_CURSOR, page.getNextCursor());
+        }
+        sendJsonListResponse(response, page.getItems(), toEntry);
+    }
+
+    /**
+     * Builds the list entry for a received email.
+     */
+    private JsonObject inboxEntry(Email email) {
+        JsonObject emailNode = new JsonObject();
+        emailNode.addProperty("id", email.getId());
+        emailNode.addProperty(EmailUtils.FIELD_SENDER, email.getSender());
+        emailNode.addProperty(EmailUtils.FIELD_SUBJECT, email.getSubject());
+        emailNode.addProperty(EmailUtils.FIELD_TIMESTAMP, email.getTimestamp().format(DATE_FORMATTER));
+        return emailNode;
+    }
+
+    /**
+     * Builds the list entry for a sent email.
+     */
+    private JsonObject sentEntry(Email email) {
+        JsonObject emailNode = new JsonObject();
+        emailNode.addProperty("id", email.getId());
+        emailNode.addProperty(EmailUtils.FIELD_RECIPIENT, String.join(", ", email.getRecipients()));
+        emailNode.addProperty(EmailUtils.FIELD_SUBJECT, email.getSubject());
+        emailNode.addProperty(EmailUtils.FIELD_TIMESTAMP, email.getTimestamp().format(DATE_FORMATTER));
+        return emailNode;
+    }
+
+    /**
+     * Builds the sent list entry including which recipients have read the email.
+     */
+    private JsonObject sentEntryWithViewStatus(Email email) {
+        JsonObject emailNode = sentEntry(email);
+        if (email.getRecipients().size() > 0) {
+            JsonObject viewedStatusNode = new JsonObject();
+            for (String recipient : email.getRecipients()) {
+                viewedStatusNode.addProperty(recipient,
+                        emailManager.hasRecipientViewedEmail(email, recipient));
+            }
+            emailNode.add("viewedByRecipients", viewedStatusNode);
+        }
+        return emailNode;
+    }
+
+    private void sendBusyResponse(long retryAfter) {
+        JsonObject response = new JsonObject();
+        response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_BUSY);
+        response.addProperty(EmailUtils.FIELD_RETRY_AFTER, retryAfter);
+        response.addProperty("message", "Server busy, try again later");
+        sendJsonResponse(response);
+    }
+
     private void sendErrorResponse(String message) {
         JsonObject response = new JsonObject();
         response.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_ERROR);
@@ -475,20 +1108,50 @@ public class ClientHandler implements Runnable {
     }
 
     private void sendJsonResponse(JsonObject jsonResponse) {
-        String response = gson.toJson(jsonResponse);
-        networkLayer.send(response);
-        LOGGER.info("Sent response: " + response);
+        if (requestId != null) {
+            jsonResponse.add(EmailUtils.FIELD_REQUEST_ID, requestId);
+        }
+        responseStatus = jsonResponse.get(EmailUtils.FIELD_STATUS).getAsString();
+        long start = System.nanoTime();
+        codec.send(batch != null ? batch : out, jsonResponse);
+        serializeNanos += System.nanoTime() - start;
     }
 
-    private void cleanup() {
-        if (authenticatedUser != null) {
-            activeClients.remove(authenticatedUser);
+    /**
+     * Sends a response whose {@code emails} array holds one entry per item, letting the codec
+     * stream the entries instead of building the whole listing first.
+     */
+    private <T> void sendJsonListResponse(JsonObject envelope, Iterable<T> items,
+                                          Function<? super T, JsonObject> toEntry) {
+        sendJsonListResponse(envelope, EmailUtils.FIELD_EMAILS, items, toEntry);
+    }
+
+    /**
+     * Sends a response whose array under the given field holds one entry per item.
+     */
+    private <T> void sendJsonListResponse(JsonObject envelope, String arrayField, Iterable<T> items,
+                                          Function<? super T, JsonObject> toEntry) {
+        if (requestId != null) {
+            envelope.add(EmailUtils.FIELD_REQUEST_ID, requestId);
+        }
+        responseStatus = envelope.get(EmailUtils.FIELD_STATUS).getAsString();
+        long start = System.nanoTime();
+        codec.sendList(batch != null ? batch : out, envelope, arrayField, items, toEntry);
+        serializeNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Ends the session: drops the user from the active clients and closes the connection.
+     */
+    void cleanup() {
+        // A newer session of the same user may have replaced this one; leave it registered
+        if (authenticatedUser != null && activeClients.remove(authenticatedUser, this)) {
             LOGGER.info("Removed user from active clients: " + authenticatedUser);
         }
 
         try {
-            if (networkLayer != null) {
-                networkLayer.disconnect();
+            if (channel != null) {
+                channel.close();
             }
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Error disconnecting network layer", e);
@@ -497,4 +1160,100 @@ public class ClientHandler implements Runnable {
         LOGGER.info("Client handler cleaned up");
     }
 
-}
\ No newline at end of file
+    /**
+     * Stands in for the client's channel while a BATCH runs, keeping each entry's response
+     * as text until the combined response goes out. Pushes still use the real channel.
+     */
+    private static final class BatchResponses implements ResponseChannel {
+        private final ResponseChannel channel;
+        private final List<String> responses = new ArrayList<>();
+
+        /**
+         * @param channel the session's real channel, which carries pushes during the batch
+         */
+        BatchResponses(ResponseChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void send(String message) {
+            responses.add(message);
+        }
+
+        @Override
+        public void send(MessageWriter message) {
+            StringWriter out = new StringWriter();
+            try {
+                message.writeTo(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            responses.add(out.toString());
+        }
+
+        @Override
+        public void push(String message) {
+            channel.push(message);
+        }
+
+        @Override
+        public void upgrade(String reply, Framing framing) {
+            // Switching framing mid-batch would garble the combined response
+            throw new IllegalStateException("HELLO cannot run inside a BATCH");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Passes responses on to {@link #channel}, adding up their length as they are written.
+     */
+    private final class MeteredChannel implements ResponseChannel {
+        @Override
+        public void send(String message) {
+            responseChars += message.length();
+            channel.send(message);
+        }
+
+        @Override
+        public void send(MessageWriter message) {
+            channel.send(writer -> message.writeTo(new FilterWriter(writer) {
+                @Override
+                public void write(int c) throws IOException {
+                    super.write(c);
+                    responseChars++;
+                }
+
+                @Override
+                public void write(char[] chars, int off, int len) throws IOException {
+                    super.write(chars, off, len);
+                    responseChars += len;
+                }
+
+                @Override
+                public void write(String str, int off, int len) throws IOException {
+                    super.write(str, off, len);
+                    responseChars += len;
+                }
+            }));
+        }
+
+        @Override
+        public void push(String message) {
+            channel.push(message);
+        }
+
+        @Override
+        public void upgrade(String reply, Framing framing) {
+            responseChars += reply.length();
+            channel.upgrade(reply, framing);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
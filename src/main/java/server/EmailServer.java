@@ -1,15 +1,37 @@
 package server;
 
+import com.google.gson.JsonObject;
+import model.BodyStore;
+import model.Email;
 import model.EmailManager;
+import model.MailJournal;
+import model.PasswordHasher;
 import model.UserManager;
+import persistence.MailStore;
+import persistence.MappedBodyStore;
 import utils.EmailUtils;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
@@ -20,55 +42,309 @@ public class EmailServer {
     private static final Logger LOGGER = Logger.getLogger(EmailServer.class.getName());
 
 
-    private static final int CORE_POOL_SIZE = 10;
     private static final int MAX_POOL_SIZE = 50;
     private static final long KEEP_ALIVE_TIME = 60L;
     private static final int QUEUE_CAPACITY = 100;
 
     private final int port;
+    private final ServerOptions options;
     private final UserManager userManager;
     private final EmailManager emailManager;
+    private final MailStore mailStore;
+    private final MappedBodyStore bodyStore;
     private final Map<String, ClientHandler> activeClients;
+    private final AuthEngine authEngine;
+    private final RequestLog requestLog;
+    private final ServerMetrics metrics;
+    private final AdmissionControl admission;
+    private final ServerContext context;
     private final ExecutorService threadPool;
     private boolean running;
     private ServerSocket serverSocket;
+    private NioEmailServer nioServer;
 
     public EmailServer() {
         this(EmailUtils.PORT);
     }
 
     public EmailServer(int port) {
-        this.port = port;
-        this.userManager = new UserManager();
-        this.emailManager = new EmailManager(userManager);
+        this(withPort(port));
+    }
+
+    public EmailServer(ServerOptions options) {
+        this.options = options;
+        this.port = options.getPort();
+        configurePasswordHashing(options);
+        this.bodyStore = createBodyStore(options);
+        BodyStore bodies = bodyStore == null ? BodyStore.HEAP : bodyStore;
+        if (options.getDataDir() == null) {
+            this.mailStore = null;
+            this.userManager = new UserManager();
+            this.emailManager = new EmailManager(userManager, MailJournal.NONE, bodies, options.getMailShards());
+            emailManager.bootstrapEmails();
+        } else {
+            this.mailStore = new MailStore(Paths.get(options.getDataDir()), options.getFsync(),
+                    options.getSnapshotEvery());
+            this.userManager = new UserManager(mailStore);
+            this.emailManager = new EmailManager(userManager, mailStore, bodies, options.getMailShards());
+            openMailStore();
+        }
         this.activeClients = new ConcurrentHashMap<>();
+        emailManager.setDeliveryListener(this::pushNewMail);
+        this.authEngine = new AuthEngine(options.getAuthThreads());
+        this.requestLog = new RequestLog(options.getLogSample());
+        this.metrics = new ServerMetrics();
+        this.threadPool = createExecutor(options.getExecutor());
+        this.admission = new AdmissionControl(maxConnections(options, threadPool), options.getMaxExpensive());
+        this.context = new ServerContext(emailManager, userManager, activeClients,
+                createCodec(options.getCodec()), authEngine, createSessionTokens(options), new LoginThrottle(),
+                requestLog, metrics, admission, options.getOperators());
+
+        registerGauges();
+
+        this.running = false;
+    }
+
+    /**
+     * Adds the gauges for server state to the metrics and publishes them over JMX.
+     */
+    private void registerGauges() {
+        metrics.gauge("activeClients", activeClients::size);
+        if (threadPool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) threadPool;
+            metrics.gauge("executorQueue", () -> pool.getQueue().size());
+            metrics.gauge("executorActive", pool::getActiveCount);
+        }
+        metrics.gauge("authQueue", authEngine::getQueueDepth);
+        metrics.gauge("authRejected", authEngine::getRejected);
+        metrics.gauge("requestLogDropped", requestLog::getDropped);
+        metrics.gauge("connections", admission::getConnections);
+        metrics.gauge("rejectedConnections", admission::getRejectedConnections);
+        metrics.gauge("shedRequests", admission::getShedRequests);
+        metrics.gauge("expensiveRunning", admission::getExpensiveRunning);
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(ServerMetrics.OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // Another server in this JVM, e.g. in tests; the newest one is shown
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Cannot publish server metrics over JMX", e);
+        }
+    }
+
+    private void unregisterGauges() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(ServerMetrics.OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, "Cannot remove server metrics from JMX", e);
+        }
+    }
+
+    /**
+     * Picks the password hashing cost for this machine before any user is hashed.
+     */
+    private static void configurePasswordHashing(ServerOptions options) {
+        PasswordHasher.Algorithm algorithm = options.getPasswordHash();
+        long start = System.nanoTime();
+        int cost = PasswordHasher.calibrate(algorithm, options.getHashTargetMs());
+        LOGGER.info("Calibrated " + algorithm + " to cost " + cost + " for ~" + options.getHashTargetMs()
+                + " ms per login in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        PasswordHasher.configure(algorithm, cost);
+    }
+
+    /**
+     * Opens the memory-mapped body store if requested. Its segments live next to the mail log,
+     * or in a temporary directory when the server runs in memory.
+     *
+     * @return the store, or null to keep bodies on the heap
+     */
+    private static MappedBodyStore createBodyStore(ServerOptions options) {
+        if (options.getBodyStore() != ServerOptions.BodyStorage.MAPPED) {
+            return null;
+        }
+        try {
+            Path directory = options.getDataDir() != null
+                    ? Paths.get(options.getDataDir(), "bodies")
+                    : Files.createTempDirectory("mailify-bodies");
+            LOGGER.info("Keeping message bodies in memory-mapped segments in " + directory);
+            return new MappedBodyStore(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open body store", e);
+        }
+    }
+
+    /**
+     * Restores users and mail from the data directory; a new, empty store gets the sample data.
+     */
+    private void openMailStore() {
+        try {
+            if (!mailStore.recover(userManager, emailManager)) {
+                userManager.bootstrapUsers();
+                emailManager.bootstrapEmails();
+            }
+            LOGGER.info("Persisting mail in " + options.getDataDir() + " (fsync " + options.getFsync() + ")");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open mail store in " + options.getDataDir(), e);
+        }
+    }
+
+    /**
+     * Tells connected recipients about a delivered email; sessions that have not subscribed
+     * ignore it.
+     */
+    private void pushNewMail(Email email) {
+        for (String recipient : new LinkedHashSet<>(email.getRecipients())) {
+            ClientHandler handler = activeClients.get(recipient);
+            if (handler != null) {
+                handler.notifyNewMail(recipient, email);
+            }
+        }
+    }
+
+    /**
+     * Creates the session token signer. With a data directory its key is kept there, so clients
+     * can resume their sessions after a restart.
+     */
+    private static SessionTokens createSessionTokens(ServerOptions options) {
+        Duration timeToLive = Duration.ofHours(options.getSessionTtlHours());
+        if (options.getDataDir() == null) {
+            return new SessionTokens(timeToLive);
+        }
+        try {
+            return SessionTokens.open(Paths.get(options.getDataDir()), timeToLive);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open session keys in " + options.getDataDir(), e);
+        }
+    }
 
-        this.threadPool = new ThreadPoolExecutor(
-                CORE_POOL_SIZE,
+    private static ResponseCodec createCodec(ServerOptions.Codec codec) {
+        LOGGER.info("Encoding responses with the " + codec.name().toLowerCase() + " codec");
+        return codec == ServerOptions.Codec.TREE ? new TreeResponseCodec() : new StreamingResponseCodec();
+    }
+
+    /**
+     * Creates the executor for client sessions. Falls back to the fixed pool when virtual
+     * threads were requested but this JVM does not provide them.
+     */
+    private static ExecutorService createExecutor(ServerOptions.ExecutorKind kind) {
+        if (kind == ServerOptions.ExecutorKind.VIRTUAL) {
+            ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+            if (virtualThreads != null) {
+                LOGGER.info("Running client sessions on virtual threads");
+                return virtualThreads;
+            }
+        }
+
+        // Core and maximum size are the same: the pool only grows past its core once the queue
+        // is full, which would leave sessions queued while threads could still be started.
+        // Idle threads still time out. When every thread is busy and the queue is full the
+        // task is rejected, and the caller answers BUSY instead of running it itself.
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                MAX_POOL_SIZE,
                 MAX_POOL_SIZE,
                 KEEP_ALIVE_TIME,
                 TimeUnit.SECONDS,
                 new ArrayBlockingQueue<>(QUEUE_CAPACITY),
-                new ThreadPoolExecutor.CallerRunsPolicy()
+                new ThreadPoolExecutor.AbortPolicy()
         );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
 
-        this.running = false;
+    /**
+     * In blocking mode each session holds a pool thread for its whole life, so the pool's
+     * threads are the real connection limit; admitting more would only park sessions in the
+     * queue with nobody reading their requests.
+     */
+    private static int maxConnections(ServerOptions options, ExecutorService threadPool) {
+        if (options.getMode() == ServerOptions.Mode.BLOCKING && threadPool instanceof ThreadPoolExecutor) {
+            return Math.min(options.getMaxConnections(), ((ThreadPoolExecutor) threadPool).getMaximumPoolSize());
+        }
+        return options.getMaxConnections();
+    }
+
+    /**
+     * @return the reply, with its line ending, for a client turned away at connect
+     */
+    static String busyLine() {
+        JsonObject reply = new JsonObject();
+        reply.addProperty(EmailUtils.FIELD_STATUS, EmailUtils.STATUS_BUSY);
+        reply.addProperty(EmailUtils.FIELD_RETRY_AFTER, AdmissionControl.CONNECTION_RETRY_AFTER_MS);
+        reply.addProperty("message", "Too many connections, try again later");
+        return reply + "\n";
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor()} reflectively, since the
+     * project still compiles for Java 19 where virtual threads are a preview feature.
+     *
+     * @return the executor, or null if virtual threads are unavailable
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            LOGGER.log(Level.WARNING, "Virtual threads are not available on this JVM "
+                    + "(Java 21+, or 19/20 with --enable-preview); using the fixed thread pool", e);
+            return null;
+        }
+    }
+
+    private static ServerOptions withPort(int port) {
+        ServerOptions options = new ServerOptions();
+        options.setPort(port);
+        return options;
     }
 
     public void start() {
         running = true;
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        if (options.getMode() == ServerOptions.Mode.NIO) {
+            startNio();
+        } else {
+            startBlocking();
+        }
+    }
+
+    /**
+     * Accepts connections and runs each client session on its own pool thread.
+     */
+    private void startBlocking() {
+        try (ServerSocket serverSocket = new ServerSocket(port, options.getAcceptBacklog())) {
             this.serverSocket = serverSocket;
             LOGGER.info("Email server started on port " + port);
 
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
+                    if (!admission.tryOpenConnection()) {
+                        rejectConnection(clientSocket);
+                        continue;
+                    }
                     LOGGER.info("New client connection: " + clientSocket.getInetAddress());
 
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, emailManager, userManager, activeClients);
-                    threadPool.submit(clientHandler);
+                    ClientHandler clientHandler = new ClientHandler(clientSocket, context);
+                    try {
+                        threadPool.execute(() -> {
+                            try {
+                                clientHandler.run();
+                            } finally {
+                                admission.connectionClosed();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        admission.connectionClosed();
+                        rejectConnection(clientSocket);
+                    }
                 } catch (IOException e) {
                     if (running) {
                         LOGGER.log(Level.SEVERE, "Error accepting client connection", e);
@@ -82,9 +358,41 @@ public class EmailServer {
         }
     }
 
+    /**
+     * Tells a client over the connection limit to come back later, without tying up a thread.
+     */
+    private static void rejectConnection(Socket clientSocket) {
+        try (clientSocket) {
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(busyLine().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            LOGGER.fine("Rejected connection over the limit: " + clientSocket.getInetAddress());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error rejecting connection", e);
+        }
+    }
+
+    /**
+     * Serves all connections from a few selector threads; the pool only runs complete requests.
+     */
+    private void startNio() {
+        nioServer = new NioEmailServer(port, options.getIoThreads(), options.getAcceptBacklog(), threadPool, context);
+        try {
+            nioServer.start();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error starting server on port " + port, e);
+        } finally {
+            shutdown();
+        }
+    }
+
     public void stop() {
         running = false;
 
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -109,6 +417,23 @@ public class EmailServer {
                 Thread.currentThread().interrupt();
             }
         }
+        authEngine.shutdown();
+        requestLog.close();
+        unregisterGauges();
+        if (mailStore != null) {
+            try {
+                mailStore.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error closing mail store", e);
+            }
+        }
+        if (bodyStore != null) {
+            try {
+                bodyStore.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing body store", e);
+            }
+        }
         LOGGER.info("Server resources cleaned up");
     }
 
@@ -117,7 +442,7 @@ public class EmailServer {
     }
 
     public static void main(String[] args) {
-        EmailServer server = new EmailServer();
+        EmailServer server = new EmailServer(ServerOptions.parse(args));
         server.setupShutdownHook();
         server.start();
     }
@@ -0,0 +1,152 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in log-linear buckets: every power of two is split into
+ * {@value #SUB_BUCKETS} equal buckets, so a percentile read back is at most 12.5% above the
+ * true value whether it is a microsecond or a minute. Recording is two atomic adds, no locks.
+ * <p>
+ * Threads are spread over a few stripes, each a separate run of counters, so request threads
+ * recording the same command rarely touch the same cache line. {@link #snapshot()} adds the
+ * stripes up; snapshots of different histograms can be merged into one.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Values at or above 2^40 ns (about 18 minutes) land in the last bucket. */
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int STRIPES = 4;
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final AtomicLongArray sums = new AtomicLongArray(STRIPES);
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos the latency in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(value));
+        sums.addAndGet(stripe, value);
+    }
+
+    /**
+     * @return the counts recorded so far, added up over all stripes
+     */
+    public Snapshot snapshot() {
+        long[] merged = new long[BUCKETS];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                merged[bucket] += counts.get(stripe * BUCKETS + bucket);
+            }
+        }
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += sums.get(stripe);
+        }
+        return new Snapshot(merged, sum);
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value that falls into a bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * A point-in-time copy of a histogram's counts.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long sum;
+        private final long count;
+
+        private Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            this.sum = sum;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+        }
+
+        /**
+         * @return an empty snapshot, to merge others into
+         */
+        public static Snapshot empty() {
+            return new Snapshot(new long[BUCKETS], 0);
+        }
+
+        /**
+         * @return a snapshot holding both this one's and the other's values
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] merged = counts.clone();
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                merged[bucket] += other.counts[bucket];
+            }
+            return new Snapshot(merged, sum + other.sum);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean in nanoseconds, or 0 if nothing was recorded
+         */
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return a value in nanoseconds at least as large as that share of the recorded values,
+         * or 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    return upperBound(bucket);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        /**
+         * @return the upper bound of the highest bucket in use, in nanoseconds
+         */
+        public long getMax() {
+            return getPercentile(100);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how often LOGIN and REGISTER may run per username and per remote address, so bad
+ * passwords cannot keep every hashing thread busy. Each attempt is charged before any hashing,
+ * which makes turning away a throttled client nearly free.
+ * <p>
+ * Every key has a token bucket of {@code burst} attempts that refills one attempt per
+ * {@code interval}. A bucket is a single {@link AtomicLong} holding the time at which it will be
+ * full again (the "theoretical arrival time"), updated with CAS. Buckets that are full are idle
+ * and get dropped by an occasional sweep, so the maps stay proportional to recent traffic.
+ */
+public class LoginThrottle {
+    private static final int USER_BURST = 5;
+    private static final long USER_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final int ADDRESS_BURST = 20;
+    private static final long ADDRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Buckets users;
+    private final Buckets addresses;
+    private final LongSupplier clock;
+    private final AtomicLong lastSweep;
+
+    public LoginThrottle() {
+        this(USER_BURST, USER_INTERVAL_NANOS, ADDRESS_BURST, ADDRESS_INTERVAL_NANOS, System::nanoTime);
+    }
+
+    LoginThrottle(int userBurst, long userIntervalNanos, int addressBurst, long addressIntervalNanos,
+                  LongSupplier clock) {
+        this.users = new Buckets(userBurst, userIntervalNanos);
+        this.addresses = new Buckets(addressBurst, addressIntervalNanos);
+        this.clock = clock;
+        this.lastSweep = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * Charges one attempt to the address and, if that is allowed, to the username.
+     *
+     * @param username the username the client tries to log in as or register
+     * @param address  the client's remote address, or null if unknown
+     * @return 0 if the attempt may go ahead, otherwise milliseconds until it would be allowed
+     */
+    public long tryAcquire(String username, String address) {
+        long now = clock.getAsLong();
+        sweepIfDue(now);
+
+        long waitNanos = address == null ? 0 : addresses.tryAcquire(address, now);
+        if (waitNanos == 0) {
+            waitNanos = users.tryAcquire(username, now);
+        }
+        return waitNanos == 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    /**
+     * @return number of usernames and addresses currently tracked
+     */
+    int size() {
+        return users.buckets.size() + addresses.buckets.size();
+    }
+
+    private void sweepIfDue(long now) {
+        long last = lastSweep.get();
+        if (now - last >= SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, now)) {
+            users.evictIdle(now);
+            addresses.evictIdle(now);
+        }
+    }
+
+    /**
+     * Token buckets for one kind of key.
+     */
+    private static final class Buckets {
+        private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+        private final long intervalNanos;
+        /** How far the arrival time may run ahead of now: the whole burst. */
+        private final long toleranceNanos;
+
+        Buckets(int burst, long intervalNanos) {
+            this.intervalNanos = intervalNanos;
+            this.toleranceNanos = burst * intervalNanos;
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise nanoseconds until one is available
+         */
+        long tryAcquire(String key, long now) {
+            AtomicLong bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+            while (true) {
+                long arrival = bucket.get();
+                long next = Math.max(arrival, now) + intervalNanos;
+                long excess = next - now - toleranceNanos;
+                if (excess > 0) {
+                    return excess;
+                }
+                if (bucket.compareAndSet(arrival, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * Drops buckets that have refilled completely; they behave exactly like a new bucket.
+         * An attempt racing with the removal may be charged to the dropped bucket and so not
+         * count, which only ever errs towards letting a client through.
+         */
+        void evictIdle(long now) {
+            buckets.entrySet().removeIf(entry -> entry.getValue().get() <= now);
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package server;
+
+import network.Framing;
+import network.MessageWriter;
+import network.NetworkLayerJSON;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * State of one non-blocking client connection owned by a {@link NioEmailServer} event loop.
+ * <p>
+ * The selector thread splits incoming bytes into requests, using the same line or length-prefixed
+ * framing as {@link NetworkLayerJSON}, and queues them; a worker then runs them one at
+ * a time through the connection's {@link ClientHandler}, so a session never executes two
+ * requests concurrently and never holds a thread while idle. Responses are written straight
+ * to the socket when possible and otherwise queued until the selector reports it writable.
+ * <p>
+ * Reading pauses while too many requests wait for a worker or too many response bytes wait for
+ * the client, so a client that pipelines without reading cannot make the server buffer without
+ * bound; new-mail pushes to such a client are dropped.
+ * <p>
+ * If the worker pool is saturated and refuses the connection's turn, the waiting requests are
+ * answered BUSY on the spot rather than run, and the connection stays open.
+ */
+class NioConnection implements ResponseChannel {
+    private static final Logger LOGGER = Logger.getLogger(NioConnection.class.getName());
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    /** Reading is paused while this many requests are waiting for a worker. */
+    private static final int MAX_PENDING_REQUESTS = 64;
+    /** Reading is paused once this many response bytes are queued, and resumes below the low mark. */
+    private static final long WRITE_HIGH_WATER = 1024 * 1024;
+    private static final long WRITE_LOW_WATER = 256 * 1024;
+
+    private final SocketChannel socketChannel;
+    private final SelectionKey key;
+    private final Executor workers;
+    private final ClientHandler handler;
+    private final Runnable onClose;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteArrayOutputStream partialMessage = new ByteArrayOutputStream();
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(4);
+    private int frameLength = -1;
+    /** Read by the selector thread; switched by a worker before the HELLO reply goes out. */
+    private volatile Framing inboundFraming = Framing.LINE;
+    private volatile Framing outboundFraming = Framing.LINE;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile Thread drainThread;
+    /** When the current drain turn was handed to the worker pool, and when a worker picked it up. */
+    private volatile long turnSubmittedNanos;
+    private volatile long turnStartedNanos;
+
+    private final Object writeLock = new Object();
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+    /** Bytes left to write in {@link #writeQueue}. */
+    private long queuedBytes = 0;
+    // Why reading is paused; guarded by writeLock so the two causes cannot undo each other
+    private boolean requestsBackedUp = false;
+    private boolean writesBackedUp = false;
+    private boolean inputEnded = false;
+    private boolean awaitingWritable = false;
+    private boolean closeRequested = false;
+    private volatile boolean closed = false;
+    /** Set once the handler has been cleaned up; only touched while draining. */
+    private volatile boolean sessionEnded = false;
+
+    /**
+     * @param onClose runs once when the connection is closed
+     */
+    NioConnection(SocketChannel socketChannel, SelectionKey key, Executor workers,
+                  HandlerFactory handlerFactory, Runnable onClose) {
+        this.socketChannel = socketChannel;
+        this.key = key;
+        this.workers = workers;
+        this.handler = handlerFactory.create(this);
+        this.onClose = onClose;
+    }
+
+    /**
+     * Creates the session handler for a connection.
+     */
+    interface HandlerFactory {
+        ClientHandler create(ResponseChannel channel);
+    }
+
+    /**
+     * Called by the selector thread when the socket has data. Complete messages are queued for a worker.
+     */
+    void onReadable() {
+        int read;
+        try {
+            read = socketChannel.read(readBuffer);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Read failed, closing connection", e);
+            endOfStream();
+            return;
+        }
+        if (read < 0) {
+            endOfStream();
+            return;
+        }
+
+        readBuffer.flip();
+        try {
+            while (readBuffer.hasRemaining()) {
+                if (inboundFraming == Framing.FRAMED) {
+                    readFrame();
+                } else {
+                    readLine();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warning(e.getMessage() + ", closing connection");
+            endOfStream();
+        }
+        readBuffer.clear();
+    }
+
+    private void readLine() throws IOException {
+        byte[] array = readBuffer.array();
+        int start = readBuffer.position();
+        for (int i = start; i < readBuffer.limit(); i++) {
+            if (array[i] == '\n') {
+                partialMessage.write(array, start, i - start);
+                readBuffer.position(i + 1);
+                int length = partialMessage.size();
+                byte[] bytes = partialMessage.toByteArray();
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--;
+                }
+                dispatch(new String(bytes, 0, length, StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        partialMessage.write(array, start, readBuffer.limit() - start);
+        readBuffer.position(readBuffer.limit());
+        if (partialMessage.size() > NetworkLayerJSON.MAX_MESSAGE_BYTES) {
+            throw new IOException("Request exceeds " + NetworkLayerJSON.MAX_MESSAGE_BYTES + " bytes");
+        }
+    }
+
+    private void readFrame() throws IOException {
+        if (frameLength < 0) {
+            while (frameHeader.hasRemaining() && readBuffer.hasRemaining()) {
+                frameHeader.put(readBuffer.get());
+            }
+            if (frameHeader.hasRemaining()) {
+                return;
+            }
+            frameLength = frameHeader.getInt(0);
+            frameHeader.clear();
+            if (frameLength < 0 || frameLength > NetworkLayerJSON.MAX_MESSAGE_BYTES) {
+                throw new IOException("Invalid frame length " + frameLength);
+            }
+        }
+
+        int chunk = Math.min(readBuffer.remaining(), frameLength - partialMessage.size());
+        partialMessage.write(readBuffer.array(), readBuffer.position(), chunk);
+        readBuffer.position(readBuffer.position() + chunk);
+        if (partialMessage.size() == frameLength) {
+            frameLength = -1;
+            dispatch(partialMessage.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void dispatch(String message) {
+        partialMessage.reset();
+        if (pendingRequests.incrementAndGet() >= MAX_PENDING_REQUESTS) {
+            synchronized (writeLock) {
+                requestsBackedUp = true;
+                updateReadInterest();
+            }
+        }
+        submit(new PendingRequest(message, System.nanoTime()));
+    }
+
+    /**
+     * A received request waiting for its turn; remembers when it arrived so the handler can
+     * tell how long it waited for a worker.
+     */
+    private class PendingRequest implements Runnable {
+        private final String message;
+        private final long receivedNanos;
+
+        PendingRequest(String message, long receivedNanos) {
+            this.message = message;
+            this.receivedNanos = receivedNanos;
+        }
+
+        /**
+         * Only the time the drain turn spent in the worker pool's queue counts as waiting. Time
+         * spent behind this connection's own earlier requests does not, so a client pipelining
+         * to an idle server is not turned away by its own backlog.
+         */
+        @Override
+        public void run() {
+            dequeued();
+            long waited = turnStartedNanos - Math.max(receivedNanos, turnSubmittedNanos);
+            handler.handleMessage(message, Math.max(0, waited));
+        }
+
+        void reject() {
+            dequeued();
+            handler.rejectMessage(message);
+        }
+
+        private void dequeued() {
+            if (pendingRequests.decrementAndGet() == MAX_PENDING_REQUESTS / 2) {
+                synchronized (writeLock) {
+                    requestsBackedUp = false;
+                    updateReadInterest();
+                }
+            }
+        }
+    }
+
+    private void endOfStream() {
+        synchronized (writeLock) {
+            inputEnded = true;
+            updateReadInterest();
+        }
+        submit(this::endSession);
+    }
+
+    /**
+     * Reads only while nothing holds reading back. Caller must hold the write lock.
+     */
+    private void updateReadInterest() {
+        setInterest(SelectionKey.OP_READ, !inputEnded && !requestsBackedUp && !writesBackedUp);
+    }
+
+    /**
+     * Queues a task behind the connection's earlier tasks and makes sure a worker is draining them.
+     */
+    private void submit(Runnable task) {
+        tasks.add(task);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        while (draining.compareAndSet(false, true)) {
+            try {
+                turnSubmittedNanos = System.nanoTime();
+                workers.execute(this::drain);
+                return;
+            } catch (RejectedExecutionException e) {
+                LOGGER.fine("Worker pool saturated, answering queued requests BUSY");
+                rejectQueued();
+                draining.set(false);
+                if (tasks.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Empties the queue on the calling thread after the worker pool refused it: requests are
+     * answered BUSY without running, the rest (ending the session) still runs. Must only be
+     * called while holding the drain flag, so no worker is using the handler meanwhile.
+     */
+    private void rejectQueued() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            if (sessionEnded) {
+                tasks.clear();
+                break;
+            }
+            try {
+                if (task instanceof PendingRequest) {
+                    ((PendingRequest) task).reject();
+                } else {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Unexpected error rejecting request", e);
+            }
+        }
+        flushWrites();
+    }
+
+    private void drain() {
+        turnStartedNanos = System.nanoTime();
+        drainThread = Thread.currentThread();
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            if (sessionEnded) {
+                tasks.clear();
+                break;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Unexpected error handling request", e);
+            }
+            if (!handler.isSessionActive()) {
+                endSession();
+            }
+            // Responses to pipelined requests are held back until the queue runs dry
+            if (tasks.isEmpty()) {
+                flushWrites();
+            }
+        }
+        drainThread = null;
+        flushWrites();
+        draining.set(false);
+        if (!tasks.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Runs the handler's cleanup exactly once; must only be called while draining.
+     */
+    private void endSession() {
+        if (!sessionEnded) {
+            sessionEnded = true;
+            tasks.clear();
+            handler.cleanup();
+        }
+    }
+
+    /**
+     * Queues a response. It is written straight away unless more pipelined requests of this
+     * connection are waiting, in which case the whole batch goes out in one gathering write.
+     */
+    @Override
+    public void send(String message) {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer;
+        if (outboundFraming == Framing.FRAMED) {
+            buffer = ByteBuffer.allocate(4 + payload.length);
+            buffer.putInt(payload.length).put(payload).flip();
+        } else {
+            buffer = ByteBuffer.allocate(payload.length + 1);
+            buffer.put(payload).put((byte) '\n').flip();
+        }
+        enqueue(buffer);
+    }
+
+    /**
+     * Each message is queued as one buffer under the write lock, so a push from another
+     * thread lands between responses. Dropped while the client is not keeping up with its
+     * responses; it catches up with SYNC.
+     */
+    @Override
+    public void push(String message) {
+        synchronized (writeLock) {
+            if (writesBackedUp) {
+                LOGGER.fine("Client is not reading, dropping push");
+                return;
+            }
+            send(message);
+        }
+    }
+
+    /**
+     * Streams a response into a single byte buffer that is queued as-is, without an
+     * intermediate {@code String}.
+     */
+    @Override
+    public void send(MessageWriter message) {
+        MessageBuffer bytes = new MessageBuffer();
+        boolean framed = outboundFraming == Framing.FRAMED;
+        try {
+            if (framed) {
+                bytes.write(new byte[4]);
+            }
+            Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+            message.writeTo(writer);
+            writer.flush();
+            if (!framed) {
+                bytes.write('\n');
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error serializing response", e);
+            return;
+        }
+
+        ByteBuffer buffer = bytes.asByteBuffer();
+        if (framed) {
+            buffer.putInt(0, buffer.remaining() - 4);
+        }
+        enqueue(buffer);
+    }
+
+    private void enqueue(ByteBuffer buffer) {
+        synchronized (writeLock) {
+            if (closed || closeRequested) {
+                return;
+            }
+            writeQueue.add(buffer);
+            queuedBytes += buffer.remaining();
+            if (!writesBackedUp && queuedBytes > WRITE_HIGH_WATER) {
+                writesBackedUp = true;
+                updateReadInterest();
+            }
+            if (Thread.currentThread() != drainThread || tasks.isEmpty()) {
+                flushWrites();
+            }
+        }
+    }
+
+    /**
+     * Byte sink whose contents can be wrapped without the copy {@code toByteArray()} makes.
+     */
+    private static class MessageBuffer extends ByteArrayOutputStream {
+        MessageBuffer() {
+            super(1024);
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Writes queued responses unless the selector is already waiting to do so.
+     */
+    private void flushWrites() {
+        synchronized (writeLock) {
+            if (!awaitingWritable && !closed) {
+                writeQueued();
+            }
+        }
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes, registering for OP_WRITE if some is left.
+     * Caller must hold the write lock.
+     */
+    private void writeQueued() {
+        try {
+            while (!writeQueue.isEmpty()) {
+                queuedBytes -= socketChannel.write(writeQueue.toArray(new ByteBuffer[0]));
+                if (writesBackedUp && queuedBytes < WRITE_LOW_WATER) {
+                    writesBackedUp = false;
+                    updateReadInterest();
+                }
+                while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                    writeQueue.poll();
+                }
+                if (!writeQueue.isEmpty()) {
+                    awaitingWritable = true;
+                    setInterest(SelectionKey.OP_WRITE, true);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Write failed, closing connection", e);
+            closeNow();
+            return;
+        }
+        if (closeRequested) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Switches inbound framing before the reply is written, so the selector thread is already
+     * decoding the new framing when the client, having seen the reply, starts using it.
+     */
+    @Override
+    public void upgrade(String reply, Framing framing) {
+        inboundFraming = framing;
+        synchronized (writeLock) {
+            send(reply);
+            outboundFraming = framing;
+        }
+    }
+
+    /**
+     * Called by the selector thread when queued responses can make progress.
+     */
+    void onWritable() {
+        synchronized (writeLock) {
+            awaitingWritable = false;
+            setInterest(SelectionKey.OP_WRITE, false);
+            writeQueued();
+        }
+    }
+
+    /**
+     * Closes the connection once every queued response has been written.
+     */
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            closeRequested = true;
+            if (!awaitingWritable) {
+                writeQueued();
+            }
+        }
+    }
+
+    /**
+     * Drops the connection immediately, discarding unsent responses.
+     */
+    void closeNow() {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeQueue.clear();
+            queuedBytes = 0;
+        }
+        key.cancel();
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing channel", e);
+        }
+        onClose.run();
+        submit(this::endSession);
+    }
+
+    private void setInterest(int op, boolean enabled) {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            if (enabled) {
+                key.interestOpsOr(op);
+            } else {
+                key.interestOpsAnd(~op);
+            }
+            key.selector().wakeup();
+        } catch (java.nio.channels.CancelledKeyException ignored) {
+            // connection closed concurrently
+        }
+    }
+}
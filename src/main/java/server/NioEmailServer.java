@@ -0,0 +1,214 @@
+package server;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector-based front end for the email server.
+ * <p>
+ * The calling thread accepts connections and hands them round-robin to a small, fixed set of
+ * event loops. Each loop multiplexes its connections on one {@link Selector}, so an idle client
+ * costs a socket and a few buffers instead of a parked thread. Only complete requests reach the
+ * worker pool, where they run through the same {@link ClientHandler} command dispatch as the
+ * blocking mode. Connections beyond the {@link AdmissionControl} limit get a BUSY line and are
+ * closed straight from the accept loop.
+ */
+public class NioEmailServer {
+    private static final Logger LOGGER = Logger.getLogger(NioEmailServer.class.getName());
+
+    private final int port;
+    private final int ioThreads;
+    private final int acceptBacklog;
+    private final ExecutorService workers;
+    private final ServerContext context;
+
+    private volatile boolean running;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+
+    public NioEmailServer(int port, int ioThreads, int acceptBacklog, ExecutorService workers,
+                          ServerContext context) {
+        this.port = port;
+        this.ioThreads = ioThreads;
+        this.acceptBacklog = acceptBacklog;
+        this.workers = workers;
+        this.context = context;
+    }
+
+    /**
+     * Starts the event loops and accepts connections until {@link #stop()} is called.
+     *
+     * @throws IOException if the listening socket or a selector cannot be opened
+     */
+    public void start() throws IOException {
+        running = true;
+        eventLoops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(port), acceptBacklog);
+            LOGGER.info("NIO email server started on port " + port + " with " + ioThreads + " event loops");
+
+            int next = 0;
+            while (running) {
+                try {
+                    SocketChannel clientChannel = serverChannel.accept();
+                    clientChannel.configureBlocking(false);
+                    if (!context.getAdmission().tryOpenConnection()) {
+                        rejectConnection(clientChannel);
+                        continue;
+                    }
+                    LOGGER.info("New client connection: " + clientChannel.getRemoteAddress());
+
+                    eventLoops[next].register(clientChannel);
+                    next = (next + 1) % eventLoops.length;
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    if (running) {
+                        LOGGER.log(Level.SEVERE, "Error accepting client connection", e);
+                    }
+                }
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Tells a client over the connection limit to come back later and closes its connection.
+     * A fresh socket's send buffer always takes the short reply, so this never blocks.
+     */
+    private static void rejectConnection(SocketChannel channel) {
+        try (channel) {
+            channel.write(ByteBuffer.wrap(EmailServer.busyLine().getBytes(StandardCharsets.UTF_8)));
+            LOGGER.fine("Rejected connection over the limit: " + channel.getRemoteAddress());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error rejecting connection", e);
+        }
+    }
+
+    /**
+     * Stops accepting, closes every connection and ends the event loops.
+     */
+    public void stop() {
+        running = false;
+
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error closing server channel", e);
+        }
+
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * One selector thread and the connections registered with it.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerNewChannels();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (CancelledKeyException e) {
+                            // Closed by a worker while we were looking at it
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Event loop failed", e);
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    String remoteAddress = channel.socket().getInetAddress().getHostAddress();
+                    key.attach(new NioConnection(channel, key, workers, responseChannel ->
+                            new ClientHandler(responseChannel, remoteAddress, context),
+                            context.getAdmission()::connectionClosed));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not register client connection", e);
+                    context.getAdmission().connectionClosed();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // already failing
+                    }
+                }
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).closeNow();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing selector", e);
+            }
+        }
+    }
+}
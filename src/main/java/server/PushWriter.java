@@ -0,0 +1,106 @@
+package server;
+
+import network.NetworkLayerJSON;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends unsolicited messages, such as NEW_MAIL notices, to one blocking connection without the
+ * delivering thread ever writing to that client's socket. Messages are queued per connection and
+ * written by a shared pool of daemon threads, one task per connection at a time.
+ * <p>
+ * A client that stops reading can let at most {@link #MAX_QUEUED} messages pile up; the next one
+ * disconnects it, which also frees a writer stuck on its full socket. Clients that reconnect catch
+ * up on what they missed with SYNC.
+ */
+class PushWriter {
+    private static final Logger LOGGER = Logger.getLogger(PushWriter.class.getName());
+
+    static final int MAX_QUEUED = 64;
+
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "push-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final NetworkLayerJSON networkLayer;
+    private final Socket socket;
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    /**
+     * @param networkLayer the connection's network layer, which serializes pushes with responses
+     * @param socket       the connection's socket, closed if the client falls too far behind
+     */
+    PushWriter(NetworkLayerJSON networkLayer, Socket socket) {
+        this.networkLayer = networkLayer;
+        this.socket = socket;
+    }
+
+    /**
+     * Queues a message and returns at once.
+     *
+     * @param message the message, without line terminator or length header
+     */
+    void push(String message) {
+        if (closed) {
+            return;
+        }
+        if (queued.incrementAndGet() > MAX_QUEUED) {
+            LOGGER.warning("Client stopped reading notifications, disconnecting " + socket.getInetAddress());
+            close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing socket", e);
+            }
+            return;
+        }
+        queue.add(message);
+        schedule();
+    }
+
+    /**
+     * Drops queued messages and stops writing; called when the session ends.
+     */
+    void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    private void schedule() {
+        if (writing.compareAndSet(false, true)) {
+            WRITERS.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            String message;
+            while (!closed && (message = queue.poll()) != null) {
+                queued.decrementAndGet();
+                networkLayer.send(message);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error pushing to client", e);
+            close();
+        } finally {
+            writing.set(false);
+        }
+        if (!closed && !queue.isEmpty()) {
+            schedule();
+        }
+    }
+}
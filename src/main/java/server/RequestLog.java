@@ -0,0 +1,192 @@
+package server;
+
+import utils.EmailUtils;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs one structured line per request (command, user, request and response size, latency and
+ * response status) without ever touching the payloads, so neither passwords nor mailbox contents
+ * reach the log and a large listing costs the same to log as a small one.
+ * <p>
+ * Request threads only build a small entry and place it in a fixed-size ring; a single daemon
+ * thread formats the entries and hands them to {@code java.util.logging}. When the ring is full
+ * the entry is dropped and counted rather than making the request wait. Successful responses to
+ * the high-volume data commands are sampled, one in {@code sampleEvery}; everything else, and
+ * every failure, is always logged.
+ */
+public class RequestLog {
+    private static final Logger LOGGER = Logger.getLogger(RequestLog.class.getName());
+
+    /** Commands that make up most of the traffic; their successes are sampled. */
+    private static final Set<String> SAMPLED = Set.of(EmailUtils.SEND, EmailUtils.READ,
+            EmailUtils.LIST_INBOX, EmailUtils.SEARCH_INBOX, EmailUtils.LIST_SENT,
+            EmailUtils.SEARCH_SENT, EmailUtils.SYNC, EmailUtils.BATCH);
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int MAX_FIELD_LENGTH = 64;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int sampleEvery;
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    /** Next slot a producer claims. */
+    private final AtomicLong tail = new AtomicLong();
+    /** Next slot the writer reads; only the writer thread advances it. */
+    private volatile long head;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+    private final Thread writer;
+
+    /**
+     * @param sampleEvery log one in this many successful high-volume requests; 1 logs them all
+     */
+    public RequestLog(int sampleEvery) {
+        this(sampleEvery, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param sampleEvery log one in this many successful high-volume requests; 1 logs them all
+     * @param capacity    entries the ring holds before new ones are dropped; rounded up to a power of two
+     */
+    RequestLog(int sampleEvery, int capacity) {
+        this.sampleEvery = sampleEvery;
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.writer = new Thread(this::writeLoop, "request-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Records a finished request. Never blocks.
+     *
+     * @param command       the command, or null if the request could not be parsed
+     * @param user          the authenticated user, or null
+     * @param requestChars  length of the raw request
+     * @param responseChars length of everything sent in reply
+     * @param latencyNanos  time from receiving the request to the response being handed off
+     * @param status        status of the response, or null if none was sent
+     */
+    public void record(String command, String user, int requestChars, long responseChars,
+                       long latencyNanos, String status) {
+        if (closed || !LOGGER.isLoggable(Level.INFO) || !isSampled(command, status)) {
+            return;
+        }
+        Entry entry = new Entry(command, user, requestChars, responseChars, latencyNanos, status);
+        while (true) {
+            long slot = tail.get();
+            if (slot - head >= ring.length()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(slot, slot + 1)) {
+                ring.set((int) (slot & mask), entry);
+                return;
+            }
+        }
+    }
+
+    private boolean isSampled(String command, String status) {
+        if (sampleEvery <= 1 || command == null || !SAMPLED.contains(command) || isFailure(status)) {
+            return true;
+        }
+        return ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+    }
+
+    static boolean isFailure(String status) {
+        return status == null || status.equals(EmailUtils.STATUS_ERROR) || status.equals(EmailUtils.STATUS_BUSY)
+                || status.endsWith("_FAILURE");
+    }
+
+    /**
+     * @return entries dropped so far because the ring was full
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the writer thread after it has logged everything recorded so far.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        long reportedDrops = 0;
+        while (true) {
+            long slot = head;
+            int index = (int) (slot & mask);
+            Entry entry = ring.get(index);
+            if (entry == null) {
+                // Either the ring is empty or a producer has claimed the slot but not filled it yet
+                if (closed && slot == tail.get()) {
+                    break;
+                }
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    LOGGER.warning("Request log full, dropped " + (drops - reportedDrops) + " entries");
+                    reportedDrops = drops;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            ring.set(index, null);
+            head = slot + 1;
+            LOGGER.info(entry.format());
+        }
+    }
+
+    private static final class Entry {
+        private final String command;
+        private final String user;
+        private final int requestChars;
+        private final long responseChars;
+        private final long latencyNanos;
+        private final String status;
+
+        Entry(String command, String user, int requestChars, long responseChars, long latencyNanos, String status) {
+            this.command = command;
+            this.user = user;
+            this.requestChars = requestChars;
+            this.responseChars = responseChars;
+            this.latencyNanos = latencyNanos;
+            this.status = status;
+        }
+
+        String format() {
+            return "command=" + clean(command)
+                    + " user=" + clean(user)
+                    + " status=" + (status == null ? "-" : status)
+                    + " request=" + requestChars
+                    + " response=" + responseChars
+                    + " latencyUs=" + TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+        }
+
+        /**
+         * Client-supplied text is cut short and stripped of anything that could fake a log line.
+         */
+        private static String clean(String value) {
+            if (value == null || value.isEmpty()) {
+                return "-";
+            }
+            String text = value.length() > MAX_FIELD_LENGTH ? value.substring(0, MAX_FIELD_LENGTH) : value;
+            return text.replaceAll("[^\\w.@-]", "?");
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package server;
+
+import network.Framing;
+import network.MessageWriter;
+
+import java.io.IOException;
+
+/**
+ * Outbound side of a client session. Lets {@link ClientHandler} write responses
+ * without knowing whether the connection is served by a blocking socket or a selector.
+ */
+interface ResponseChannel {
+    /**
+     * Sends one serialized message to the client.
+     *
+     * @param message the message, without line terminator or length header
+     */
+    void send(String message);
+
+    /**
+     * Streams one message to the client without materializing it as a string.
+     *
+     * @param message writes the message text
+     */
+    void send(MessageWriter message);
+
+    /**
+     * Sends an unsolicited message, such as a new-mail notification, from any thread.
+     * It goes out between whole responses, never in the middle of one.
+     *
+     * @param message the message, without line terminator or length header
+     */
+    void push(String message);
+
+    /**
+     * Sends the handshake reply in the current framing and then switches both directions
+     * of the connection to the given framing.
+     *
+     * @param reply   the HELLO reply
+     * @param framing the framing for all later messages
+     */
+    void upgrade(String reply, Framing framing);
+
+    /**
+     * Releases the underlying connection.
+     */
+    void close() throws IOException;
+}
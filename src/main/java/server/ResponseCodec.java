@@ -0,0 +1,33 @@
+package server;
+
+import com.google.gson.JsonObject;
+
+import java.util.function.Function;
+
+/**
+ * Turns response objects into bytes on a client's {@link ResponseChannel}.
+ * Selected once at startup; see {@link ServerOptions#getCodec()}.
+ */
+public interface ResponseCodec {
+    /**
+     * Sends a small response that has already been built as a JSON object.
+     *
+     * @param channel  the client's channel
+     * @param response the complete response
+     */
+    void send(ResponseChannel channel, JsonObject response);
+
+    /**
+     * Sends a response made of the fields in {@code envelope} plus one array field holding
+     * an entry per item. Entries are built one at a time, so a codec can write each entry
+     * as soon as it exists instead of holding the whole listing in memory.
+     *
+     * @param channel    the client's channel
+     * @param envelope   the fields other than the array, such as the status
+     * @param arrayField name of the array field
+     * @param items      the items to list
+     * @param toEntry    builds the JSON entry for one item
+     */
+    <T> void sendList(ResponseChannel channel, JsonObject envelope, String arrayField,
+                      Iterable<T> items, Function<? super T, JsonObject> toEntry);
+}
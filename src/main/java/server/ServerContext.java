@@ -0,0 +1,89 @@
+package server;
+
+import model.EmailManager;
+import model.UserManager;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Server-wide services shared by every {@link ClientHandler}, created once by {@link EmailServer}.
+ */
+public class ServerContext {
+    private final EmailManager emailManager;
+    private final UserManager userManager;
+    private final Map<String, ClientHandler> activeClients;
+    private final ResponseCodec codec;
+    private final AuthEngine authEngine;
+    private final SessionTokens sessionTokens;
+    private final LoginThrottle loginThrottle;
+    private final RequestLog requestLog;
+    private final ServerMetrics metrics;
+    private final AdmissionControl admission;
+    private final Set<String> operators;
+
+    public ServerContext(EmailManager emailManager, UserManager userManager,
+                         Map<String, ClientHandler> activeClients, ResponseCodec codec,
+                         AuthEngine authEngine, SessionTokens sessionTokens, LoginThrottle loginThrottle,
+                         RequestLog requestLog, ServerMetrics metrics, AdmissionControl admission,
+                         Set<String> operators) {
+        this.emailManager = emailManager;
+        this.userManager = userManager;
+        this.activeClients = activeClients;
+        this.codec = codec;
+        this.authEngine = authEngine;
+        this.sessionTokens = sessionTokens;
+        this.loginThrottle = loginThrottle;
+        this.requestLog = requestLog;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.operators = operators;
+    }
+
+    public EmailManager getEmailManager() {
+        return emailManager;
+    }
+
+    public UserManager getUserManager() {
+        return userManager;
+    }
+
+    public Map<String, ClientHandler> getActiveClients() {
+        return activeClients;
+    }
+
+    public ResponseCodec getCodec() {
+        return codec;
+    }
+
+    public AuthEngine getAuthEngine() {
+        return authEngine;
+    }
+
+    public SessionTokens getSessionTokens() {
+        return sessionTokens;
+    }
+
+    public LoginThrottle getLoginThrottle() {
+        return loginThrottle;
+    }
+
+    public RequestLog getRequestLog() {
+        return requestLog;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    /**
+     * @return users allowed to run server-wide commands such as STATS
+     */
+    public Set<String> getOperators() {
+        return operators;
+    }
+}
@@ -0,0 +1,214 @@
+package server;
+
+import com.google.gson.JsonObject;
+import utils.EmailUtils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Request counters and latency histograms per command, plus gauges for server state such as
+ * active clients and queue depths. Recording only touches {@link LongAdder}s and striped
+ * histogram counters, so it costs no locks on the request path.
+ * <p>
+ * Each request's time is split into phases: parsing the JSON, dispatching (everything in the
+ * handler not covered by the other phases), the calls into the mail and user managers, and
+ * serializing and writing the response. Read it through the STATS command or over JMX.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    static final String OBJECT_NAME = "mailify:type=ServerMetrics";
+
+    /**
+     * Where a request spends its time.
+     */
+    public enum Phase {
+        PARSE, DISPATCH, MANAGER, SERIALIZE
+    }
+
+    /** Requests whose command is missing or unknown are counted under this name. */
+    static final String OTHER = "OTHER";
+
+    private static final String[] COMMANDS = {EmailUtils.HELLO, EmailUtils.LOGIN, EmailUtils.REGISTER,
+            EmailUtils.RESUME, EmailUtils.SUBSCRIBE, EmailUtils.SYNC, EmailUtils.SEND, EmailUtils.LIST_INBOX,
+            EmailUtils.SEARCH_INBOX, EmailUtils.LIST_SENT, EmailUtils.SEARCH_SENT, EmailUtils.READ,
+            EmailUtils.BATCH, EmailUtils.STATS, EmailUtils.LOGOUT, EmailUtils.EXIT, OTHER};
+
+    private final long startNanos = System.nanoTime();
+    /** Fixed when created, so client-chosen command names cannot grow it. */
+    private final Map<String, CommandMetrics> commands;
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public ServerMetrics() {
+        Map<String, CommandMetrics> byCommand = new LinkedHashMap<>();
+        for (String command : COMMANDS) {
+            byCommand.put(command, new CommandMetrics());
+        }
+        this.commands = Collections.unmodifiableMap(byCommand);
+    }
+
+    /**
+     * Records one finished request.
+     *
+     * @param command the request's command; null or unknown commands count as {@value #OTHER}
+     * @param failed  whether the response was an error or failure status
+     * @param phases  nanoseconds spent in each {@link Phase}, in declaration order
+     */
+    public void record(String command, boolean failed, long... phases) {
+        CommandMetrics metrics = command == null ? null : commands.get(command);
+        if (metrics == null) {
+            metrics = commands.get(OTHER);
+        }
+        metrics.requests.increment();
+        if (failed) {
+            metrics.errors.increment();
+        }
+        long total = 0;
+        for (int i = 0; i < phases.length; i++) {
+            metrics.phases[i].record(phases[i]);
+            total += phases[i];
+        }
+        metrics.total.record(total);
+    }
+
+    /**
+     * Adds a value that is read whenever the metrics are.
+     *
+     * @param name  the gauge's name
+     * @param value reads the current value; must be cheap and thread-safe
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return everything recorded so far, for the STATS response; commands never used are left out
+     */
+    JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("uptimeMs", getUptimeMillis());
+        json.addProperty("requests", getRequestCount());
+        json.addProperty("errors", getErrorCount());
+        json.add("latencyUs", latencyJson(totalLatency()));
+
+        JsonObject gaugeNode = new JsonObject();
+        getGauges().forEach(gaugeNode::addProperty);
+        json.add("gauges", gaugeNode);
+
+        JsonObject commandsNode = new JsonObject();
+        for (Map.Entry<String, CommandMetrics> entry : commands.entrySet()) {
+            CommandMetrics metrics = entry.getValue();
+            long requests = metrics.requests.sum();
+            if (requests == 0) {
+                continue;
+            }
+            JsonObject commandNode = new JsonObject();
+            commandNode.addProperty("count", requests);
+            commandNode.addProperty("errors", metrics.errors.sum());
+            JsonObject latencyNode = new JsonObject();
+            latencyNode.add("total", latencyJson(metrics.total.snapshot()));
+            for (Phase phase : Phase.values()) {
+                latencyNode.add(phase.name().toLowerCase(), latencyJson(metrics.phases[phase.ordinal()].snapshot()));
+            }
+            commandNode.add("latencyUs", latencyNode);
+            commandsNode.add(entry.getKey(), commandNode);
+        }
+        json.add("commands", commandsNode);
+        return json;
+    }
+
+    private static JsonObject latencyJson(LatencyHistogram.Snapshot snapshot) {
+        JsonObject node = new JsonObject();
+        node.addProperty("mean", micros(snapshot.getMean()));
+        node.addProperty("p50", micros(snapshot.getPercentile(50)));
+        node.addProperty("p99", micros(snapshot.getPercentile(99)));
+        node.addProperty("max", micros(snapshot.getMax()));
+        return node;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * @return the end-to-end latencies of all commands together
+     */
+    LatencyHistogram.Snapshot totalLatency() {
+        LatencyHistogram.Snapshot merged = LatencyHistogram.Snapshot.empty();
+        for (CommandMetrics metrics : commands.values()) {
+            merged = merged.merge(metrics.total.snapshot());
+        }
+        return merged;
+    }
+
+    @Override
+    public long getUptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getRequestCount() {
+        return commands.values().stream().mapToLong(metrics -> metrics.requests.sum()).sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return commands.values().stream().mapToLong(metrics -> metrics.errors.sum()).sum();
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        return perCommand(metrics -> metrics.requests.sum());
+    }
+
+    @Override
+    public Map<String, Long> getP50Micros() {
+        return perCommand(metrics -> micros(metrics.total.snapshot().getPercentile(50)));
+    }
+
+    @Override
+    public Map<String, Long> getP99Micros() {
+        return perCommand(metrics -> micros(metrics.total.snapshot().getPercentile(99)));
+    }
+
+    @Override
+    public Map<String, Long> getMaxMicros() {
+        return perCommand(metrics -> micros(metrics.total.snapshot().getMax()));
+    }
+
+    private Map<String, Long> perCommand(ToLongFunction<CommandMetrics> value) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        commands.forEach((command, metrics) -> {
+            if (metrics.requests.sum() > 0) {
+                values.put(command, value.applyAsLong(metrics));
+            }
+        });
+        return values;
+    }
+
+    private static final class CommandMetrics {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+        CommandMetrics() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * Management view of {@link ServerMetrics}, registered with the platform MBean server as
+ * {@value ServerMetrics#OBJECT_NAME}. Latencies are end-to-end per command, in microseconds.
+ */
+public interface ServerMetricsMXBean {
+    long getUptimeMillis();
+
+    long getRequestCount();
+
+    long getErrorCount();
+
+    /**
+     * @return current value of every gauge, such as active clients and queue depths
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * @return requests handled so far per command
+     */
+    Map<String, Long> getRequestCounts();
+
+    Map<String, Long> getP50Micros();
+
+    Map<String, Long> getP99Micros();
+
+    Map<String, Long> getMaxMicros();
+}
@@ -0,0 +1,185 @@
+package server;
+
+import lombok.Data;
+import model.EmailManager;
+import model.PasswordHasher;
+import persistence.FsyncPolicy;
+import utils.EmailUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Startup options for the email server, parsed from the command line.
+ * Every option has a default so the server can be started without arguments.
+ */
+@Data
+public class ServerOptions {
+    /**
+     * How client connections are served.
+     */
+    public enum Mode {
+        /** One pooled thread per connection, blocking on the socket. */
+        BLOCKING,
+        /** A few selector threads multiplex all connections; workers only run complete requests. */
+        NIO
+    }
+
+    /**
+     * What runs client sessions (blocking mode) or requests (NIO mode).
+     */
+    public enum ExecutorKind {
+        /** Bounded pool of platform threads. */
+        POOL,
+        /** A new virtual thread per task; needs a JVM with virtual threads enabled. */
+        VIRTUAL
+    }
+
+    /**
+     * How responses are serialized onto the connection.
+     */
+    public enum Codec {
+        /** Builds the full JSON tree and its string before writing. */
+        TREE,
+        /** Writes list entries straight to the connection as they are produced. */
+        STREAMING
+    }
+
+    /**
+     * Where message bodies are kept.
+     */
+    public enum BodyStorage {
+        /** As strings inside each email. */
+        HEAP,
+        /** In memory-mapped segment files; emails keep only a handle and decode on read. */
+        MAPPED
+    }
+
+    private int port = EmailUtils.PORT;
+    private Mode mode = Mode.BLOCKING;
+    private ExecutorKind executor = ExecutorKind.POOL;
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private Codec codec = Codec.STREAMING;
+    /** Threads that hash and verify passwords, kept apart from the request threads. */
+    private int authThreads = Runtime.getRuntime().availableProcessors();
+    /** How long a session token can be used to RESUME. */
+    private int sessionTtlHours = 24;
+    /** Directory for the mail log and snapshots; null keeps everything in memory. */
+    private String dataDir;
+    private FsyncPolicy fsync = FsyncPolicy.ALWAYS;
+    /** Number of logged changes between snapshots. */
+    private int snapshotEvery = 10_000;
+    private BodyStorage bodyStore = BodyStorage.HEAP;
+    /** Algorithm for new password hashes; older hashes are upgraded on login. */
+    private PasswordHasher.Algorithm passwordHash = PasswordHasher.Algorithm.PBKDF2;
+    /** Verification time the hashing cost is calibrated to at startup; 0 keeps the minimum cost. */
+    private int hashTargetMs = 50;
+    /** Successful high-volume requests are logged one in this many; 1 logs every request. */
+    private int logSample = 100;
+    /** Connections served at once; in blocking mode also capped by the session threads. */
+    private int maxConnections = 10_000;
+    /** Connections the OS may hold waiting for accept before refusing more. */
+    private int acceptBacklog = 128;
+    /** Logins, sends, searches and batches allowed to run at once; more are answered BUSY. */
+    private int maxExpensive = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    /** Shards emails are split into by sender; more shards let more sends run in parallel. */
+    private int mailShards = EmailManager.DEFAULT_SHARDS;
+    /** Users allowed to run STATS; nobody by default, since the JMX MBean serves operators. */
+    private Set<String> operators = Collections.emptySet();
+
+    /**
+     * Parses options of the form {@code --name=value}. Unknown options are rejected.
+     *
+     * @param args the command line arguments
+     * @return the parsed options
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    public static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+
+            switch (name) {
+                case "port":
+                    options.setPort(Integer.parseInt(value));
+                    break;
+                case "mode":
+                    options.setMode(Mode.valueOf(value.toUpperCase()));
+                    break;
+                case "executor":
+                    options.setExecutor(ExecutorKind.valueOf(value.toUpperCase()));
+                    break;
+                case "io-threads":
+                    options.setIoThreads(positive(name, Integer.parseInt(value)));
+                    break;
+                case "auth-threads":
+                    options.setAuthThreads(positive(name, Integer.parseInt(value)));
+                    break;
+                case "session-ttl-hours":
+                    options.setSessionTtlHours(positive(name, Integer.parseInt(value)));
+                    break;
+                case "codec":
+                    options.setCodec(Codec.valueOf(value.toUpperCase()));
+                    break;
+                case "data-dir":
+                    options.setDataDir(value);
+                    break;
+                case "fsync":
+                    options.setFsync(FsyncPolicy.valueOf(value.toUpperCase()));
+                    break;
+                case "snapshot-every":
+                    options.setSnapshotEvery(positive(name, Integer.parseInt(value)));
+                    break;
+                case "body-store":
+                    options.setBodyStore(BodyStorage.valueOf(value.toUpperCase()));
+                    break;
+                case "password-hash":
+                    options.setPasswordHash(PasswordHasher.Algorithm.valueOf(value.toUpperCase()));
+                    break;
+                case "hash-target-ms":
+                    options.setHashTargetMs(Integer.parseInt(value));
+                    if (options.getHashTargetMs() < 0) {
+                        throw new IllegalArgumentException("--" + name + " must not be negative");
+                    }
+                    break;
+                case "log-sample":
+                    options.setLogSample(positive(name, Integer.parseInt(value)));
+                    break;
+                case "max-connections":
+                    options.setMaxConnections(positive(name, Integer.parseInt(value)));
+                    break;
+                case "accept-backlog":
+                    options.setAcceptBacklog(positive(name, Integer.parseInt(value)));
+                    break;
+                case "max-expensive":
+                    options.setMaxExpensive(positive(name, Integer.parseInt(value)));
+                    break;
+                case "mail-shards":
+                    options.setMailShards(positive(name, Integer.parseInt(value)));
+                    break;
+                case "operators":
+                    Set<String> operators = new LinkedHashSet<>(Arrays.asList(value.split(",")));
+                    operators.remove("");
+                    options.setOperators(operators);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return options;
+    }
+
+    private static int positive(String name, int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("--" + name + " must be positive");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,217 @@
+package server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Issues and checks signed session tokens, so a client that reconnects can RESUME its session
+ * instead of logging in again. Checking a token is one HMAC and a map lookup, where a login costs
+ * a full password verification.
+ * <p>
+ * A token reads {@code v1.<username>.<expiry>.<nonce>.<signature>}, every part base64url except
+ * the expiry (epoch seconds). The signature is HMAC-SHA256 over everything before it. LOGOUT
+ * revokes a token by its nonce until it would have expired anyway.
+ * <p>
+ * With a directory the signing key and the revocations are kept there, so tokens stay valid
+ * across a restart; without one the key is random and every restart ends all sessions.
+ */
+public class SessionTokens {
+    private static final Logger LOGGER = Logger.getLogger(SessionTokens.class.getName());
+
+    private static final String VERSION = "v1";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 16;
+    private static final String KEY_FILE = "session.key";
+    private static final String REVOKED_FILE = "revoked-sessions";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec key;
+    private final Duration timeToLive;
+    private final Path revokedFile;
+    /** Nonce of each revoked token, mapped to its expiry in epoch seconds. */
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+    /** Mac instances are not thread-safe, so each thread keeps its own. */
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * Creates tokens signed with a random key that only this process knows.
+     *
+     * @param timeToLive how long a token stays valid
+     */
+    public SessionTokens(Duration timeToLive) {
+        this(randomKey(), timeToLive, null);
+    }
+
+    private SessionTokens(byte[] key, Duration timeToLive, Path revokedFile) {
+        this.key = new SecretKeySpec(key, MAC_ALGORITHM);
+        this.timeToLive = timeToLive;
+        this.revokedFile = revokedFile;
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(this.key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+            }
+        });
+    }
+
+    /**
+     * Opens tokens whose key and revocations live in a directory, creating the key on first use.
+     *
+     * @param directory  where to keep the key and revocations
+     * @param timeToLive how long a token stays valid
+     * @return the tokens
+     * @throws IOException if the files cannot be read or created
+     */
+    public static SessionTokens open(Path directory, Duration timeToLive) throws IOException {
+        Files.createDirectories(directory);
+        Path keyFile = directory.resolve(KEY_FILE);
+        byte[] key;
+        if (Files.exists(keyFile)) {
+            key = Files.readAllBytes(keyFile);
+        } else {
+            key = randomKey();
+            Path tmp = directory.resolve(KEY_FILE + ".tmp");
+            Files.write(tmp, key);
+            Files.move(tmp, keyFile, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        SessionTokens tokens = new SessionTokens(key, timeToLive, directory.resolve(REVOKED_FILE));
+        tokens.loadRevocations();
+        return tokens;
+    }
+
+    private static byte[] randomKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        RANDOM.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Issues a new token for a user.
+     *
+     * @param username the authenticated user
+     * @return the token
+     */
+    public String issue(String username) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        long expiry = System.currentTimeMillis() / 1000 + timeToLive.getSeconds();
+        String payload = VERSION + "." + ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8))
+                + "." + expiry + "." + ENCODER.encodeToString(nonce);
+        return payload + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /**
+     * Checks a token's signature, expiry and revocation.
+     *
+     * @param token the token presented by a client
+     * @return the username the token was issued to, or null if it is not valid
+     */
+    public String validate(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 5 || !VERSION.equals(parts[0])) {
+            return null;
+        }
+        try {
+            String payload = token.substring(0, token.lastIndexOf('.'));
+            if (!MessageDigest.isEqual(sign(payload), DECODER.decode(parts[4]))) {
+                return null;
+            }
+            if (Long.parseLong(parts[2]) < System.currentTimeMillis() / 1000 || revoked.containsKey(parts[3])) {
+                return null;
+            }
+            return new String(DECODER.decode(parts[1]), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Revokes a token so it can no longer be used to resume a session.
+     * Tokens that do not validate are ignored.
+     *
+     * @param token the token to revoke
+     */
+    public void revoke(String token) {
+        if (validate(token) == null) {
+            return;
+        }
+        String[] parts = token.split("\\.");
+        long expiry = Long.parseLong(parts[2]);
+        revoked.put(parts[3], expiry);
+        if (revokedFile != null) {
+            synchronized (this) {
+                try (Writer writer = Files.newBufferedWriter(revokedFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    writer.write(parts[3] + " " + expiry + "\n");
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Cannot record revoked session; it stays revoked until restart", e);
+                }
+            }
+        }
+        pruneExpired();
+    }
+
+    private byte[] sign(String payload) {
+        return macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void pruneExpired() {
+        long now = System.currentTimeMillis() / 1000;
+        revoked.values().removeIf(expiry -> expiry < now);
+    }
+
+    /**
+     * Reads the revocations that have not expired yet and rewrites the file with only those.
+     */
+    private void loadRevocations() throws IOException {
+        if (!Files.exists(revokedFile)) {
+            return;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        List<String> kept = new ArrayList<>();
+        for (String line : Files.readAllLines(revokedFile, StandardCharsets.UTF_8)) {
+            String[] parts = line.split(" ");
+            if (parts.length == 2) {
+                try {
+                    long expiry = Long.parseLong(parts[1]);
+                    if (expiry >= now) {
+                        revoked.put(parts[0], expiry);
+                        kept.add(line);
+                    }
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Skipping malformed revocation: " + line);
+                }
+            }
+        }
+        Path tmp = revokedFile.resolveSibling(REVOKED_FILE + ".tmp");
+        Files.write(tmp, kept, StandardCharsets.UTF_8);
+        Files.move(tmp, revokedFile, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Writes responses with a Gson {@link JsonWriter} straight into the channel's output, one list
+ * entry at a time. A large inbox listing then costs one small tree per entry instead of a tree,
+ * a string and an encoded copy of the whole listing.
+ */
+public class StreamingResponseCodec implements ResponseCodec {
+    private static final Gson gson = new Gson();
+
+    @Override
+    public void send(ResponseChannel channel, JsonObject response) {
+        channel.send(out -> {
+            JsonWriter writer = gson.newJsonWriter(out);
+            gson.toJson(response, writer);
+            writer.flush();
+        });
+    }
+
+    @Override
+    public <T> void sendList(ResponseChannel channel, JsonObject envelope, String arrayField,
+                             Iterable<T> items, Function<? super T, JsonObject> toEntry) {
+        channel.send(out -> {
+            JsonWriter writer = gson.newJsonWriter(out);
+            writer.beginObject();
+            for (Map.Entry<String, JsonElement> field : envelope.entrySet()) {
+                writer.name(field.getKey());
+                gson.toJson(field.getValue(), writer);
+            }
+            writer.name(arrayField).beginArray();
+            for (T item : items) {
+                gson.toJson(toEntry.apply(item), writer);
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.flush();
+        });
+    }
+}
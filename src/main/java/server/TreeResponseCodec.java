@@ -0,0 +1,31 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.function.Function;
+
+/**
+ * The original serialization path: the whole response is built as a Gson tree, converted to
+ * a {@code String} and then encoded by the channel. Kept for byte-for-byte compatibility.
+ */
+public class TreeResponseCodec implements ResponseCodec {
+    private static final Gson gson = new Gson();
+
+    @Override
+    public void send(ResponseChannel channel, JsonObject response) {
+        channel.send(gson.toJson(response));
+    }
+
+    @Override
+    public <T> void sendList(ResponseChannel channel, JsonObject envelope, String arrayField,
+                             Iterable<T> items, Function<? super T, JsonObject> toEntry) {
+        JsonArray array = new JsonArray();
+        for (T item : items) {
+            array.add(toEntry.apply(item));
+        }
+        envelope.add(arrayField, array);
+        send(channel, envelope);
+    }
+}
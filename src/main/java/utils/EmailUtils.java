@@ -5,15 +5,26 @@ public class EmailUtils {
     public static final String HOSTNAME = "localhost";
     public static final int PORT        = 12345;
 
+    // PAGINATION
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE     = 500;
+    public static final int MAX_BATCH_SIZE    = 100;
+
     // JSON COMMANDS
+    public static final String HELLO           = "HELLO";
     public static final String LOGIN           = "LOGIN";
     public static final String REGISTER        = "REGISTER";
+    public static final String RESUME          = "RESUME";
+    public static final String SUBSCRIBE       = "SUBSCRIBE";
+    public static final String SYNC            = "SYNC";
     public static final String SEND            = "SEND";
     public static final String LIST_INBOX      = "LIST_INBOX";
     public static final String SEARCH_INBOX    = "SEARCH_INBOX";
     public static final String LIST_SENT       = "LIST_SENT";
     public static final String SEARCH_SENT     = "SEARCH_SENT";
     public static final String READ            = "READ";
+    public static final String BATCH           = "BATCH";
+    public static final String STATS           = "STATS";
     public static final String LOGOUT          = "LOGOUT";
     public static final String EXIT            = "EXIT";
 
@@ -23,6 +34,17 @@ public class EmailUtils {
     public static final String STATUS_LOGIN_FAILURE        = "LOGIN_FAILURE";
     public static final String STATUS_REGISTERED           = "REGISTERED";
     public static final String STATUS_REGISTER_FAILURE     = "REGISTER_FAILURE";
+    public static final String STATUS_RESUMED              = "RESUMED";
+    public static final String STATUS_RESUME_FAILURE       = "RESUME_FAILURE";
+    public static final String STATUS_THROTTLED            = "THROTTLED";
+    // Overloaded; the request was not run and may be retried after retryAfterMs
+    public static final String STATUS_BUSY                 = "BUSY";
+    public static final String STATUS_SUBSCRIBED           = "SUBSCRIBED";
+    public static final String STATUS_SYNC                 = "SYNC";
+    public static final String STATUS_BATCH                = "BATCH";
+    public static final String STATUS_STATS                = "STATS";
+    // Pushed without a request to SUBSCRIBEd sessions; carries no requestId
+    public static final String STATUS_NEW_MAIL             = "NEW_MAIL";
     public static final String STATUS_SENT                 = "SENT";
     public static final String STATUS_SEND_FAILURE         = "SEND_FAILURE";
     public static final String STATUS_INBOX                = "INBOX";
@@ -37,6 +59,7 @@ public class EmailUtils {
     public static final String STATUS_LOGOUT_SUCCESS       = "LOGOUT_SUCCESS";
     public static final String STATUS_GOODBYE              = "GOODBYE";
     public static final String STATUS_ERROR                = "ERROR";
+    public static final String STATUS_HELLO                = "HELLO";
 
     // COMMON FIELDS
     public static final String FIELD_COMMAND      = "command";
@@ -44,6 +67,8 @@ public class EmailUtils {
     public static final String FIELD_ERROR        = "error";
     public static final String FIELD_USERNAME     = "username";
     public static final String FIELD_PASSWORD     = "password";
+    public static final String FIELD_TOKEN        = "token";
+    public static final String FIELD_RETRY_AFTER  = "retryAfterMs";
     public static final String FIELD_RECIPIENT    = "recipient";
     public static final String FIELD_SENDER       = "sender";
     public static final String FIELD_SUBJECT      = "subject";
@@ -52,4 +77,22 @@ public class EmailUtils {
     public static final String FIELD_EMAILS       = "emails";
     public static final String FIELD_EMAIL        = "email";
     public static final String FIELD_ID           = "id";
+    public static final String FIELD_FRAMING      = "framing";
+    public static final String FIELD_TERM         = "term";
+    public static final String FIELD_LIMIT        = "limit";
+    public static final String FIELD_CURSOR       = "cursor";
+    public static final String FIELD_NEXT_CURSOR  = "nextCursor";
+    // SYNC: a change log is identified by its epoch, a position in it by its version
+    public static final String FIELD_EPOCH        = "epoch";
+    public static final String FIELD_VERSION      = "version";
+    public static final String FIELD_CHANGES      = "changes";
+    public static final String FIELD_CHANGE       = "change";
+    public static final String FIELD_READER       = "reader";
+    public static final String FIELD_MORE         = "more";
+    public static final String FIELD_RESET        = "reset";
+    // BATCH: the entries to run, and their responses in the same order
+    public static final String FIELD_REQUESTS     = "requests";
+    public static final String FIELD_RESPONSES    = "responses";
+    // Client-chosen correlation ID echoed in the response; "id" is already the email ID
+    public static final String FIELD_REQUEST_ID   = "requestId";
 }
\ No newline at end of file
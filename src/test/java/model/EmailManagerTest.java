@@ -4,10 +4,13 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 class EmailManagerTest {
     private UserManager userManager;
@@ -300,4 +303,283 @@ class EmailManagerTest {
         assertTrue(viewStatus.containsKey("testUser2"), "View status should include recipient");
         assertTrue(viewStatus.get("testUser2"), "Recipient should have viewed status true");
     }
-}
\ No newline at end of file
+
+    @Test
+    void testMailboxesAreOrderedById() {
+        Email first = emailManager.sendEmail("testUser3", "testUser2", "Ordering First", "first");
+        Email second = emailManager.sendEmail("testUser3", "testUser2", "Ordering Second", "second");
+
+        assertTrue(first.getId() > 0, "Sent email should carry its ID");
+        assertTrue(second.getId() > first.getId(), "Later emails should get higher IDs");
+
+        // Inbox listing is in ascending ID order and ends with the newest email
+        List<Email> inbox = emailManager.listInbox("testUser2");
+        for (int i = 1; i < inbox.size(); i++) {
+            assertTrue(inbox.get(i - 1).getId() < inbox.get(i).getId(), "Inbox should be ordered by ID");
+        }
+        assertEquals(second.getId(), inbox.get(inbox.size() - 1).getId());
+
+        // The per-user ID map only holds mail the user sent or received
+        Map<Integer, Email> emailsWithIds = emailManager.getEmailIdsForUser("testUser3");
+        assertEquals(first, emailsWithIds.get(first.getId()));
+        assertEquals(second, emailsWithIds.get(second.getId()));
+        for (Email email : emailsWithIds.values()) {
+            assertTrue(email.getSender().equals("testUser3") || email.getRecipients().contains("testUser3"));
+        }
+    }
+
+    @Test
+    void testSearchInboxPhrase() {
+        emailManager.sendEmail("testUser1", "testUser3", "Quarterly planning", "The budget review is on Friday");
+        emailManager.sendEmail("testUser2", "testUser3", "Review", "Friday we look at the budget");
+
+        // Separate words match both emails
+        assertEquals(2, emailManager.searchInbox("testUser3", "budget friday").size());
+
+        // A quoted phrase only matches the email with the words next to each other
+        List<Email> phraseResults = emailManager.searchInbox("testUser3", "\"budget review\"");
+        assertEquals(1, phraseResults.size(), "Phrase should match one email");
+        assertEquals("Quarterly planning", phraseResults.get(0).getSubject());
+
+        // The last word of a query matches as a prefix
+        assertEquals(1, emailManager.searchInbox("testUser3", "quarter").size());
+    }
+
+    @Test
+    void testListInboxPages() {
+        for (int i = 1; i <= 5; i++) {
+            emailManager.sendEmail("testUser1", "testUser3", "Page Test " + i, "page body " + i);
+        }
+        int total = emailManager.listInbox("testUser3").size();
+
+        // Walk the inbox two emails at a time, newest first
+        List<Email> collected = new ArrayList<>();
+        Integer cursor = null;
+        do {
+            Page<Email> page = emailManager.listInbox("testUser3", cursor, 2);
+            assertTrue(page.getItems().size() <= 2, "Page should not exceed the limit");
+            collected.addAll(page.getItems());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        assertEquals(total, collected.size(), "Pages should cover the whole inbox");
+        assertEquals("Page Test 5", collected.get(0).getSubject(), "First page should start with the newest email");
+        for (int i = 1; i < collected.size(); i++) {
+            assertTrue(collected.get(i - 1).getId() > collected.get(i).getId(), "Pages should be newest first");
+        }
+
+        // Search results are paged the same way
+        Page<Email> searchPage = emailManager.searchInbox("testUser3", "page", null, 3);
+        assertEquals(3, searchPage.getItems().size());
+        assertNotNull(searchPage.getNextCursor());
+        Page<Email> lastPage = emailManager.searchInbox("testUser3", "page", searchPage.getNextCursor(), 3);
+        assertEquals(2, lastPage.getItems().size());
+        assertNull(lastPage.getNextCursor());
+    }
+
+    @Test
+    void testConcurrentDeliveryKeepsMailboxesOrdered() throws InterruptedException {
+        int threads = 4;
+        int perThread = 600;
+        int before = emailManager.listInbox("testUser3").size();
+
+        Thread[] senders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            String sender = t % 2 == 0 ? "testUser1" : "testUser2";
+            senders[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    emailManager.sendEmail(sender, Arrays.asList("testUser3", "testUser1"), "Load", "concurrent");
+                }
+            });
+            senders[t].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        // Every email arrived, spread over several chunks, still in ascending ID order
+        List<Email> inbox = emailManager.listInbox("testUser3");
+        assertEquals(before + threads * perThread, inbox.size());
+        for (int i = 1; i < inbox.size(); i++) {
+            assertTrue(inbox.get(i - 1).getId() < inbox.get(i).getId(), "Inbox should stay ordered by ID");
+        }
+        Email last = inbox.get(inbox.size() - 1);
+        assertTrue(emailManager.getEmailById(last.getId(), "testUser3").isPresent());
+    }
+
+    @Test
+    void testDeliveryListenerSeesNewEmailsOnly() {
+        List<Email> delivered = new ArrayList<>();
+        emailManager.setDeliveryListener(delivered::add);
+
+        Email sent = emailManager.sendEmail("testUser1", "testUser2", "Ping", "Are you there?");
+        assertNull(emailManager.sendEmail("testUser1", "nobody", "Lost", "Never delivered"));
+
+        assertEquals(1, delivered.size());
+        assertSame(sent, delivered.get(0));
+        assertTrue(emailManager.listInbox("testUser2").contains(sent), "The listener runs after delivery");
+    }
+
+    @Test
+    void testChangeLogRecordsDeliveriesAndReads() {
+        ChangeLog bobLog = emailManager.getChangeLog("testUser2");
+        ChangeLog aliceLog = emailManager.getChangeLog("testUser1");
+        long bobSeen = bobLog.getVersion();
+        long aliceSeen = aliceLog.getVersion();
+        assertTrue(bobLog.since(bobSeen, 10).isEmpty(), "Nothing new after the latest version");
+
+        Email email = emailManager.sendEmail("testUser1", "testUser2", "Sync me", "Body");
+        emailManager.getEmailById(email.getId(), "testUser2");
+        emailManager.getEmailById(email.getId(), "testUser2");
+
+        List<Change> bobChanges = bobLog.since(bobSeen, 10);
+        assertEquals(2, bobChanges.size(), "Reading twice records one change");
+        assertEquals(Change.Kind.INBOX, bobChanges.get(0).getKind());
+        assertSame(email, bobChanges.get(0).getEmail());
+        assertEquals(Change.Kind.READ, bobChanges.get(1).getKind());
+        assertEquals("testUser2", bobChanges.get(1).getReader());
+        assertEquals(bobSeen + 2, bobLog.getVersion());
+
+        List<Change> aliceChanges = aliceLog.since(aliceSeen, 10);
+        assertEquals(2, aliceChanges.size());
+        assertEquals(Change.Kind.SENT, aliceChanges.get(0).getKind());
+        assertEquals(Change.Kind.READ, aliceChanges.get(1).getKind(), "The sender sees the read receipt");
+
+        assertEquals(1, aliceLog.since(aliceSeen, 1).size(), "The limit applies");
+    }
+
+    @Test
+    void testSendEmailsDeliversValidDraftsInOrder() {
+        List<Email> delivered = new ArrayList<>();
+        emailManager.setDeliveryListener(delivered::add);
+        int inboxBefore = emailManager.listInbox("testUser2").size();
+
+        List<Email> results = emailManager.sendEmails("testUser1", Arrays.asList(
+                draft("First", "testUser2"),
+                draft("Lost", "testUser2", "nobody"),
+                draft("Second", "testUser2", "testUser3")));
+
+        assertEquals(3, results.size());
+        assertNull(results.get(1), "A draft with an unknown recipient is not sent");
+        Email first = results.get(0);
+        Email second = results.get(2);
+        assertEquals("testUser1", first.getSender());
+        assertEquals("Second", second.getSubject());
+        assertEquals("Body of Second", second.getBody());
+        assertTrue(second.getId() > first.getId(), "IDs follow the order of the drafts");
+
+        List<Email> inbox = emailManager.listInbox("testUser2");
+        assertEquals(inboxBefore + 2, inbox.size());
+        assertTrue(emailManager.listInbox("testUser3").contains(second));
+        assertTrue(emailManager.listSent("testUser1").containsAll(Arrays.asList(first, second)));
+        assertEquals(Arrays.asList(first, second), delivered);
+    }
+
+    @Test
+    void testShardedDeliveryReachesEveryRecipientInOrder() throws InterruptedException {
+        UserManager users = new UserManager();
+        EmailManager sharded = new EmailManager(users, MailJournal.NONE, BodyStore.HEAP, 4);
+        List<String> names = Arrays.asList("shardA", "shardB", "shardC", "shardD", "shardE");
+        for (String name : names) {
+            users.register(name, "hash");
+        }
+        int perThread = 300;
+
+        Thread[] senders = new Thread[names.size()];
+        for (int t = 0; t < senders.length; t++) {
+            String sender = names.get(t);
+            List<String> recipients = new ArrayList<>(names);
+            recipients.remove(sender);
+            senders[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    sharded.sendEmail(sender, recipients, "Fan out", "to everyone else");
+                }
+            });
+            senders[t].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        // IDs come from several shards but never collide, and every mailbox is still in ascending order
+        Set<Integer> ids = new HashSet<>();
+        for (Email email : sharded.getAllEmails()) {
+            assertTrue(ids.add(email.getId()), "IDs should be unique across shards");
+        }
+        assertEquals(names.size() * perThread, ids.size());
+        for (String user : names) {
+            List<Email> inbox = sharded.listInbox(user);
+            assertEquals((names.size() - 1) * perThread, inbox.size(), "Every email should reach every recipient");
+            for (int i = 1; i < inbox.size(); i++) {
+                assertTrue(inbox.get(i - 1).getId() < inbox.get(i).getId(), "Inbox should stay ordered by ID");
+            }
+            Email last = inbox.get(inbox.size() - 1);
+            assertEquals(last, sharded.getEmailById(last.getId(), user).orElse(null));
+        }
+    }
+
+    @Test
+    void testShardsSkipPastRestoredIds() {
+        EmailManager sharded = new EmailManager(new UserManager(), MailJournal.NONE, BodyStore.HEAP, 3);
+        Email restored = new Email();
+        restored.setId(40);
+        restored.setSender("testUser1");
+        restored.setRecipients(new ArrayList<>(List.of("testUser2")));
+        restored.setSubject("Before restart");
+        restored.setBody("old");
+        sharded.restoreEmail(restored);
+
+        Email fromOtherShard = sharded.sendEmail("testUser3", "testUser2", "After restart", "new");
+        Email fromSameSender = sharded.sendEmail("testUser1", "testUser3", "After restart", "new");
+
+        assertTrue(fromOtherShard.getId() > 40, "A new email sorts after the mail already in the inbox");
+        assertNotEquals(40, fromSameSender.getId());
+        assertEquals(Arrays.asList(restored, fromOtherShard), sharded.listInbox("testUser2"));
+        assertEquals(restored, sharded.getEmailById(40, "testUser2").orElse(null));
+        assertEquals(3, sharded.getAllEmails().size());
+    }
+
+    @Test
+    void testEmailsAreJournaledBeforeTheyAreVisible() {
+        UserManager users = new UserManager();
+        List<String> visibleWhenJournaled = new ArrayList<>();
+        EmailManager[] manager = new EmailManager[1];
+        MailJournal journal = new MailJournal() {
+            @Override
+            public void userRegistered(String username, String passwordHash) {
+            }
+
+            @Override
+            public void passwordChanged(String username, String passwordHash) {
+            }
+
+            @Override
+            public void emailSent(Email email) {
+                if (manager[0].listInbox("testUser2").contains(email)) {
+                    visibleWhenJournaled.add("inbox");
+                }
+                if (manager[0].getEmailById(email.getId(), "testUser2").isPresent()) {
+                    visibleWhenJournaled.add("read");
+                }
+            }
+
+            @Override
+            public void emailViewed(String username, int emailId) {
+            }
+        };
+        manager[0] = new EmailManager(users, journal, BodyStore.HEAP);
+
+        Email email = manager[0].sendEmail("testUser1", "testUser2", "Journaled", "first");
+
+        assertTrue(visibleWhenJournaled.isEmpty(), "Nobody can read an email before it is journaled");
+        assertTrue(manager[0].getEmailById(email.getId(), "testUser2").isPresent());
+    }
+
+    private static Email draft(String subject, String... recipients) {
+        Email draft = new Email();
+        draft.setRecipients(Arrays.asList(recipients));
+        draft.setSubject(subject);
+        draft.setBody("Body of " + subject);
+        return draft;
+    }
+}
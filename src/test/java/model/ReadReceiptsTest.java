@@ -0,0 +1,41 @@
+package model;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class ReadReceiptsTest {
+
+    @Test
+    void testMarkAndCheck() {
+        ReadReceipts receipts = new ReadReceipts();
+
+        assertFalse(receipts.contains(1));
+        assertTrue(receipts.add(1), "First mark should report a change");
+        assertFalse(receipts.add(1), "Marking twice should not report a change");
+        assertTrue(receipts.contains(1));
+        assertFalse(receipts.contains(2));
+        assertFalse(receipts.contains(-1));
+    }
+
+    @Test
+    void testSparseIdsAcrossPages() {
+        ReadReceipts receipts = new ReadReceipts();
+        int far = ReadReceipts.IDS_PER_PAGE * 50 + 63;
+
+        receipts.add(far);
+        receipts.add(64);
+        receipts.add(63);
+
+        assertTrue(receipts.contains(far));
+        assertFalse(receipts.contains(far - 1));
+        assertFalse(receipts.contains(ReadReceipts.IDS_PER_PAGE * 80), "IDs beyond any page should be unread");
+
+        List<Integer> ids = new ArrayList<>();
+        receipts.forEach(ids::add);
+        assertEquals(Arrays.asList(63, 64, far), ids, "IDs should be listed in ascending order");
+    }
+}
@@ -4,6 +4,12 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Base64;
+
 class UserManagerTest {
     private UserManager userManager;
 
@@ -109,4 +115,56 @@ class UserManagerTest {
         assertEquals(newUsername, newUser.getUsername());
     }
 
-}
\ No newline at end of file
+    @Test
+    void testRegistrationIsRolledBackWhenTheJournalFails() {
+        UserManager journaled = new UserManager(new MailJournal() {
+            @Override
+            public void userRegistered(String username, String passwordHash) {
+                throw new UncheckedIOException(new IOException("disk full"));
+            }
+
+            @Override
+            public void passwordChanged(String username, String passwordHash) {
+            }
+
+            @Override
+            public void emailSent(Email email) {
+            }
+
+            @Override
+            public void emailViewed(String username, int emailId) {
+            }
+        });
+
+        assertThrows(UncheckedIOException.class, () -> journaled.register("newUser", "hash"));
+        assertFalse(journaled.userExists("newUser"));
+        assertTrue(journaled.getUsers().isEmpty());
+    }
+
+    @Test
+    void testOutdatedHashIsUpgradedOnLogin() throws Exception {
+        // A hash in the original salt:hash format, 10000 iterations
+        byte[] salt = new byte[16];
+        PBEKeySpec spec = new PBEKeySpec("secret".toCharArray(), salt, 10000, 256);
+        byte[] hash = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        String legacy = Base64.getEncoder().encodeToString(salt) + ":" + Base64.getEncoder().encodeToString(hash);
+        assertTrue(userManager.register("legacyUser", legacy));
+
+        PasswordHasher.Algorithm previousAlgorithm = PasswordHasher.getAlgorithm();
+        int previousCost = PasswordHasher.getCost();
+        PasswordHasher.configure(PasswordHasher.Algorithm.PBKDF2, 12000);
+        try {
+            assertFalse(userManager.authenticate("legacyUser", "wrong"));
+            assertEquals(legacy, userManager.getUserByUsername("legacyUser").getPasswordHash(),
+                    "A failed login must not touch the hash");
+
+            assertTrue(userManager.authenticate("legacyUser", "secret"));
+            String upgraded = userManager.getUserByUsername("legacyUser").getPasswordHash();
+            assertTrue(upgraded.startsWith("$pbkdf2-sha256$12000$"), upgraded);
+            assertFalse(PasswordHasher.needsRehash(upgraded));
+            assertTrue(userManager.authenticate("legacyUser", "secret"));
+        } finally {
+            PasswordHasher.configure(previousAlgorithm, previousCost);
+        }
+    }
+}
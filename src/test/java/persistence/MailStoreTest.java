@@ -0,0 +1,159 @@
+package persistence;
+
+import model.Email;
+import model.EmailManager;
+import model.PasswordHasher;
+import model.UserManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+class MailStoreTest {
+    private Path directory;
+    private MailStore store;
+    private UserManager userManager;
+    private EmailManager emailManager;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("mailstore-test");
+        open();
+        userManager.register("alice", "hash-a");
+        userManager.register("bob", "hash-b");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void open() throws IOException {
+        store = new MailStore(directory, FsyncPolicy.ALWAYS, 1_000);
+        userManager = new UserManager(store);
+        emailManager = new EmailManager(userManager, store);
+        store.recover(userManager, emailManager);
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        open();
+    }
+
+    @Test
+    void testRecoverFromLog() throws IOException {
+        Email first = emailManager.sendEmail("alice", "bob", "Hello", "First message");
+        emailManager.sendEmail("bob", Arrays.asList("alice", "bob"), "Reply", "Second message");
+        emailManager.getEmailById(first.getId(), "bob");
+
+        reopen();
+
+        assertTrue(userManager.userExists("alice"));
+        assertEquals("hash-b", userManager.getUserByUsername("bob").getPasswordHash());
+
+        List<Email> inbox = emailManager.listInbox("bob");
+        assertEquals(2, inbox.size(), "Both emails to bob should be restored");
+        assertEquals("Hello", inbox.get(0).getSubject());
+        assertEquals(first.getTimestamp(), inbox.get(0).getTimestamp());
+        assertEquals(1, emailManager.listSent("alice").size());
+        assertTrue(emailManager.hasRecipientViewedEmail(inbox.get(0), "bob"), "Read receipt should be restored");
+
+        // New emails continue after the recovered IDs
+        Email next = emailManager.sendEmail("alice", "bob", "Later", "Third message");
+        assertTrue(next.getId() > inbox.get(1).getId());
+    }
+
+    @Test
+    void testRecoverFromSnapshotAndNewerLog() throws IOException {
+        emailManager.sendEmail("alice", "bob", "Before snapshot", "one");
+        store.snapshot();
+        emailManager.sendEmail("alice", "bob", "After snapshot", "two");
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.filter(p -> p.getFileName().toString().startsWith("snapshot-")).count());
+        }
+
+        reopen();
+
+        List<Email> inbox = emailManager.listInbox("bob");
+        assertEquals(2, inbox.size());
+        assertEquals("Before snapshot", inbox.get(0).getSubject());
+        assertEquals("After snapshot", inbox.get(1).getSubject());
+        assertTrue(userManager.userExists("alice"), "Users should come back from the snapshot");
+    }
+
+    @Test
+    void testUpgradedPasswordHashIsRestored() throws IOException {
+        userManager.register("carol", PasswordHasher.hashPassword("secret"));
+        PasswordHasher.configure(PasswordHasher.Algorithm.PBKDF2, 11000);
+        try {
+            assertTrue(userManager.authenticate("carol", "secret"));
+            String upgraded = userManager.getUserByUsername("carol").getPasswordHash();
+
+            reopen();
+
+            assertEquals(upgraded, userManager.getUserByUsername("carol").getPasswordHash());
+        } finally {
+            PasswordHasher.configure(PasswordHasher.Algorithm.PBKDF2, 10000);
+        }
+    }
+
+    @Test
+    void testSendDuringRegistrationIsNotLost() throws IOException {
+        // Try to mail carol at the moment her registration is being written to the log
+        Email[] early = new Email[1];
+        store.close();
+        store = new MailStore(directory, FsyncPolicy.ALWAYS, 1_000) {
+            @Override
+            public void userRegistered(String username, String passwordHash) {
+                early[0] = emailManager.sendEmail("alice", username, "Too early", "before REGISTER");
+                super.userRegistered(username, passwordHash);
+            }
+        };
+        userManager = new UserManager(store);
+        emailManager = new EmailManager(userManager, store);
+        store.recover(userManager, emailManager);
+
+        assertTrue(userManager.register("carol", "hash-c"));
+        assertNull(early[0], "carol must not be visible before her REGISTER record is logged");
+        Email welcome = emailManager.sendEmail("alice", "carol", "Welcome", "after REGISTER");
+
+        reopen();
+
+        List<Email> inbox = emailManager.listInbox("carol");
+        assertEquals(1, inbox.size(), "Mail sent to a new user must survive a restart");
+        assertEquals(welcome.getId(), inbox.get(0).getId());
+    }
+
+    @Test
+    void testTornRecordIsIgnored() throws IOException {
+        emailManager.sendEmail("alice", "bob", "Complete", "kept");
+        store.close();
+
+        // Simulate a crash in the middle of writing the next record
+        Path lastSegment;
+        try (Stream<Path> files = Files.list(directory)) {
+            lastSegment = files.filter(p -> p.getFileName().toString().startsWith("wal-"))
+                    .max(Comparator.naturalOrder()).orElseThrow();
+        }
+        Files.write(lastSegment, new byte[]{0, 0, 0, 42, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        open();
+
+        List<Email> inbox = emailManager.listInbox("bob");
+        assertEquals(1, inbox.size());
+        assertEquals("Complete", inbox.get(0).getSubject());
+    }
+}
@@ -0,0 +1,58 @@
+package persistence;
+
+import model.Email;
+import model.EmailManager;
+import model.MailJournal;
+import model.MessageBody;
+import model.UserManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+class MappedBodyStoreTest {
+    private Path directory;
+    private MappedBodyStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("bodystore-test");
+        store = new MappedBodyStore(directory);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        store.close();
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    void testBodiesRoundTrip() {
+        MessageBody plain = store.store("Hello testUser2");
+        MessageBody unicode = store.store("Gr\u00fc\u00dfe \u2014 \u65e5\u672c\u8a9e \ud83d\udce7");
+        MessageBody empty = store.store("");
+
+        assertEquals("Hello testUser2", plain.text());
+        assertEquals("Gr\u00fc\u00dfe \u2014 \u65e5\u672c\u8a9e \ud83d\udce7", unicode.text());
+        assertEquals("", empty.text());
+        assertNull(store.store(null));
+    }
+
+    @Test
+    void testEmailManagerDecodesOnRead() {
+        UserManager userManager = new UserManager();
+        EmailManager emailManager = new EmailManager(userManager, MailJournal.NONE, store);
+
+        Email sent = emailManager.sendEmail("testUser1", "testUser2", "Mapped", "Body kept off the heap");
+        assertEquals(1, emailManager.searchInbox("testUser2", "heap").size(), "Body should still be searchable");
+
+        Optional<Email> read = emailManager.getEmailById(sent.getId(), "testUser2");
+        assertTrue(read.isPresent());
+        assertEquals("Body kept off the heap", read.get().getBody());
+    }
+}
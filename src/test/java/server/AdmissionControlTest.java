@@ -0,0 +1,65 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import utils.EmailUtils;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+
+class AdmissionControlTest {
+    private static final long READ_BUDGET = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long EXPENSIVE_BUDGET = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final AdmissionControl admission = new AdmissionControl(2, 2, READ_BUDGET, EXPENSIVE_BUDGET);
+
+    @Test
+    void testConnectionLimit() {
+        assertTrue(admission.tryOpenConnection());
+        assertTrue(admission.tryOpenConnection());
+        assertFalse(admission.tryOpenConnection());
+        assertEquals(1, admission.getRejectedConnections());
+
+        admission.connectionClosed();
+        assertTrue(admission.tryOpenConnection(), "A closed connection frees its place");
+        assertEquals(2, admission.getConnections());
+    }
+
+    @Test
+    void testExpensiveCommandsAreShedBeforeReads() {
+        long waited = TimeUnit.MILLISECONDS.toNanos(200);
+        assertTrue(admission.tryAdmit(EmailUtils.SEND, waited) > 0);
+        assertTrue(admission.tryAdmit(EmailUtils.LOGIN, waited) > 0);
+        assertEquals(0, admission.tryAdmit(EmailUtils.LIST_INBOX, waited));
+        assertEquals(0, admission.tryAdmit(EmailUtils.READ, waited));
+
+        long longWait = TimeUnit.SECONDS.toNanos(1);
+        assertTrue(admission.tryAdmit(EmailUtils.READ, longWait) > 0);
+        assertEquals(0, admission.tryAdmit(EmailUtils.LOGOUT, longWait), "Session control is never shed");
+        assertEquals(0, admission.tryAdmit(null, longWait));
+        assertEquals(3, admission.getShedRequests());
+    }
+
+    @Test
+    void testExpensiveCommandsShareAConcurrencyLimit() {
+        assertEquals(0, admission.tryAdmit(EmailUtils.SEND, 0));
+        assertEquals(0, admission.tryAdmit(EmailUtils.SEARCH_INBOX, 0));
+        assertTrue(admission.tryAdmit(EmailUtils.BATCH, 0) > 0);
+        assertEquals(0, admission.tryAdmit(EmailUtils.READ, 0), "Reads do not count against the limit");
+        assertEquals(2, admission.getExpensiveRunning());
+
+        admission.finished(EmailUtils.SEND);
+        admission.finished(EmailUtils.READ);
+        assertEquals(1, admission.getExpensiveRunning());
+        assertEquals(0, admission.tryAdmit(EmailUtils.BATCH, 0));
+    }
+
+    @Test
+    void testRetryHintGrowsWithQueueDelay() {
+        long floorHint = admission.rejected();
+        long shortHint = admission.tryAdmit(EmailUtils.SEND, TimeUnit.MILLISECONDS.toNanos(60));
+        long longHint = admission.tryAdmit(EmailUtils.SEND, TimeUnit.SECONDS.toNanos(2));
+        assertTrue(floorHint >= 100 && floorHint <= 150, "Short delays get the minimum hint plus jitter");
+        assertTrue(shortHint >= 120 && shortHint <= 180, "Twice the delay plus up to half again");
+        assertTrue(longHint >= 4000 && longHint <= 6000);
+    }
+}
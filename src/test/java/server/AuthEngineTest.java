@@ -0,0 +1,85 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class AuthEngineTest {
+    private AuthEngine engine;
+
+    @AfterEach
+    void tearDown() {
+        engine.shutdown();
+    }
+
+    @Test
+    void testSaturatedEngineRejectsInsteadOfBlocking() throws InterruptedException {
+        engine = new AuthEngine(1, 1, TimeUnit.SECONDS.toNanos(5));
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger results = new AtomicInteger();
+
+        // One task occupies the only thread, a second fills the queue
+        Thread busy = new Thread(() -> results.addAndGet(engine.call(() -> {
+            running.countDown();
+            release.await();
+            return 1;
+        })));
+        busy.start();
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        Thread queued = new Thread(() -> results.addAndGet(engine.call(() -> 2)));
+        queued.start();
+        while (engine.getQueueDepth() < 1) {
+            Thread.sleep(1);
+        }
+
+        assertTimeoutPreemptively(Duration.ofSeconds(1), () ->
+                assertThrows(RejectedExecutionException.class, () -> engine.call(() -> 3)),
+                "A full engine turns callers away at once");
+        assertEquals(1, engine.getRejected());
+
+        release.countDown();
+        busy.join();
+        queued.join();
+        assertEquals(3, results.get(), "Tasks that were accepted still run");
+        assertEquals(2, engine.getCompleted());
+    }
+
+    @Test
+    void testSlowTaskTimesOutAndIsInterrupted() throws InterruptedException {
+        engine = new AuthEngine(1, 1, TimeUnit.MILLISECONDS.toNanos(50));
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        RejectedExecutionException e = assertThrows(RejectedExecutionException.class, () -> engine.call(() -> {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException stopped) {
+                interrupted.countDown();
+            }
+            return false;
+        }));
+        assertEquals("Authentication timed out", e.getMessage());
+        assertEquals(1, engine.getRejected());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS), "The timed out task is cancelled");
+
+        assertTrue(engine.call(() -> true), "The thread is free again afterwards");
+    }
+
+    @Test
+    void testTaskExceptionsReachTheCaller() {
+        engine = new AuthEngine(1);
+        assertThrows(IllegalArgumentException.class, () -> engine.call(() -> {
+            throw new IllegalArgumentException("bad hash");
+        }));
+        assertThrows(IllegalStateException.class, () -> engine.call(() -> {
+            throw new Exception("checked");
+        }));
+        assertEquals(0, engine.getRejected(), "Failures are not counted as rejections");
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+
+class LatencyHistogramTest {
+
+    @Test
+    void testBucketsCoverEveryValueWithinTheirBounds() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123_456_789, TimeUnit.MINUTES.toNanos(5)};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket < LatencyHistogram.BUCKETS, "Bucket in range for " + value);
+            assertTrue(LatencyHistogram.upperBound(bucket) >= value, "Upper bound covers " + value);
+            assertTrue(bucket == 0 || LatencyHistogram.upperBound(bucket - 1) < value, "Lowest bucket for " + value);
+            assertTrue(LatencyHistogram.upperBound(bucket) <= value + value / 8, "Within 12.5% for " + value);
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500_500, snapshot.getMean());
+        assertWithin(500_000, snapshot.getPercentile(50));
+        assertWithin(990_000, snapshot.getPercentile(99));
+        assertWithin(1_000_000, snapshot.getMax());
+        assertEquals(0, LatencyHistogram.Snapshot.empty().getPercentile(99));
+    }
+
+    @Test
+    void testSnapshotsMerge() {
+        LatencyHistogram fast = new LatencyHistogram();
+        LatencyHistogram slow = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            fast.record(1000);
+        }
+        slow.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        LatencyHistogram.Snapshot merged = fast.snapshot().merge(slow.snapshot());
+        assertEquals(100, merged.getCount());
+        assertWithin(1000, merged.getPercentile(99));
+        assertWithin(TimeUnit.MILLISECONDS.toNanos(50), merged.getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 8,
+                "Expected about " + expected + " but was " + actual);
+    }
+}
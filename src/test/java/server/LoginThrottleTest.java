@@ -0,0 +1,45 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class LoginThrottleTest {
+    private final AtomicLong now = new AtomicLong();
+    private final LoginThrottle throttle = new LoginThrottle(3, TimeUnit.SECONDS.toNanos(1),
+            10, TimeUnit.MILLISECONDS.toNanos(100), now::get);
+
+    @Test
+    void testUsernameBurstThenRefill() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, throttle.tryAcquire("alice", "10.0.0." + i));
+        }
+        long retryAfter = throttle.tryAcquire("alice", "10.0.0.9");
+        assertEquals(1000, retryAfter, "The fourth attempt has to wait for one refill");
+        assertEquals(0, throttle.tryAcquire("bob", "10.0.0.9"), "Other users are not affected");
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(retryAfter));
+        assertEquals(0, throttle.tryAcquire("alice", "10.0.0.9"));
+    }
+
+    @Test
+    void testAddressLimitSpansUsernames() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, throttle.tryAcquire("user" + i, "10.0.0.1"));
+        }
+        assertTrue(throttle.tryAcquire("user10", "10.0.0.1") > 0);
+        assertEquals(0, throttle.tryAcquire("user10", "10.0.0.2"));
+    }
+
+    @Test
+    void testIdleBucketsAreEvicted() {
+        throttle.tryAcquire("alice", "10.0.0.1");
+        assertEquals(2, throttle.size());
+
+        now.addAndGet(TimeUnit.MINUTES.toNanos(2));
+        throttle.tryAcquire("bob", "10.0.0.2");
+        assertEquals(2, throttle.size(), "Only the buckets just used should remain");
+    }
+}
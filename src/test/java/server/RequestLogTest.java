@@ -0,0 +1,107 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.EmailUtils;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+class RequestLogTest {
+    private final Logger logger = Logger.getLogger(RequestLog.class.getName());
+    private final List<String> lines = new CopyOnWriteArrayList<>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            lines.add(record.getMessage());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @BeforeEach
+    void setUp() {
+        logger.addHandler(handler);
+    }
+
+    @AfterEach
+    void tearDown() {
+        logger.removeHandler(handler);
+    }
+
+    @Test
+    void testEntriesAreStructuredAndCleaned() {
+        RequestLog log = new RequestLog(1);
+        log.record(EmailUtils.LOGIN, "bob\ncommand=EXIT", 60, 25, 1_500_000, EmailUtils.STATUS_LOGIN_SUCCESS);
+        log.record(null, null, 3, 50, 2_000, EmailUtils.STATUS_ERROR);
+        log.close();
+
+        assertEquals(2, lines.size());
+        assertEquals("command=LOGIN user=bob?command?EXIT status=LOGIN_SUCCESS request=60 response=25 latencyUs=1500",
+                lines.get(0), "Client text cannot start a new field or line");
+        assertTrue(lines.get(1).startsWith("command=- user=- status=ERROR"));
+    }
+
+    @Test
+    void testOnlySuccessfulHighVolumeRequestsAreSampled() {
+        RequestLog log = new RequestLog(Integer.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            log.record(EmailUtils.LIST_INBOX, "alice", 30, 4000, 1000, EmailUtils.STATUS_INBOX);
+        }
+        log.record(EmailUtils.LIST_INBOX, "alice", 30, 40, 1000, EmailUtils.STATUS_ERROR);
+        log.record(EmailUtils.SEND, "alice", 30, 40, 1000, EmailUtils.STATUS_SEND_FAILURE);
+        log.record(EmailUtils.LOGOUT, "alice", 30, 40, 1000, EmailUtils.STATUS_LOGOUT_SUCCESS);
+        log.close();
+
+        assertEquals(3, lines.size());
+    }
+
+    @Test
+    void testFullRingDropsInsteadOfBlocking() throws InterruptedException {
+        // Hold the handler so the writer thread cannot drain the ring
+        Object gate = new Object();
+        Handler slow = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                synchronized (gate) {
+                    lines.add(record.getMessage());
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        logger.removeHandler(handler);
+        logger.addHandler(slow);
+        try {
+            RequestLog log;
+            synchronized (gate) {
+                log = new RequestLog(1, 4);
+                for (int i = 0; i < 20; i++) {
+                    log.record(EmailUtils.LOGIN, "user" + i, 1, 1, 1, EmailUtils.STATUS_LOGIN_SUCCESS);
+                }
+                assertTrue(log.getDropped() >= 20 - 4 - 1, "At most the ring and the entry in hand are kept");
+            }
+            log.close();
+            assertEquals(20 - log.getDropped(), lines.stream().filter(l -> l.startsWith("command=")).count());
+        } finally {
+            logger.removeHandler(slow);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package server;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+import utils.EmailUtils;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class ServerMetricsTest {
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    @Test
+    void testRequestsAreCountedPerCommandAndPhase() {
+        metrics.record(EmailUtils.LIST_INBOX, false, 10_000, 20_000, 300_000, 40_000);
+        metrics.record(EmailUtils.LIST_INBOX, true, 10_000, 20_000, 0, 5_000);
+        metrics.record("DROP_TABLES", true, 1_000, 0, 0, 1_000);
+
+        assertEquals(3, metrics.getRequestCount());
+        assertEquals(2, metrics.getErrorCount());
+        assertEquals(2, (long) metrics.getRequestCounts().get(EmailUtils.LIST_INBOX));
+        assertEquals(1, (long) metrics.getRequestCounts().get(ServerMetrics.OTHER), "Unknown commands are pooled");
+        assertFalse(metrics.getRequestCounts().containsKey(EmailUtils.SEND), "Unused commands are left out");
+
+        JsonObject inbox = metrics.toJson().getAsJsonObject("commands").getAsJsonObject(EmailUtils.LIST_INBOX);
+        assertEquals(1, inbox.get("errors").getAsLong());
+        JsonObject latency = inbox.getAsJsonObject("latencyUs");
+        long manager = latency.getAsJsonObject("manager").get("max").getAsLong();
+        assertTrue(manager >= 300 && manager <= 340);
+        assertTrue(latency.getAsJsonObject("total").get("max").getAsLong() >= 370);
+    }
+
+    @Test
+    void testGaugesAreReadWhenQueried() {
+        AtomicLong clients = new AtomicLong();
+        metrics.gauge("activeClients", clients::get);
+        clients.set(7);
+
+        assertEquals(7, (long) metrics.getGauges().get("activeClients"));
+        assertEquals(7, metrics.toJson().getAsJsonObject("gauges").get("activeClients").getAsLong());
+    }
+}
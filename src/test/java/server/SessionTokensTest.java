@@ -0,0 +1,61 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+class SessionTokensTest {
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("session-test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void testIssuedTokenValidates() {
+        SessionTokens tokens = new SessionTokens(Duration.ofHours(1));
+        String token = tokens.issue("alice");
+
+        assertEquals("alice", tokens.validate(token));
+        String forged = token.replace(".YWxpY2U.", ".bWFsbG9yeQ.");
+        assertNotEquals(token, forged);
+        assertNull(tokens.validate(forged), "Changing the user must break the signature");
+        assertNull(tokens.validate("not a token"));
+        assertNull(new SessionTokens(Duration.ofHours(1)).validate(token), "Another key must not accept it");
+    }
+
+    @Test
+    void testExpiredTokenIsRejected() {
+        SessionTokens tokens = new SessionTokens(Duration.ofSeconds(-1));
+        assertNull(tokens.validate(tokens.issue("alice")));
+    }
+
+    @Test
+    void testRevocationSurvivesRestart() throws IOException {
+        SessionTokens tokens = SessionTokens.open(directory, Duration.ofHours(1));
+        String kept = tokens.issue("alice");
+        String revoked = tokens.issue("bob");
+        tokens.revoke(revoked);
+        assertNull(tokens.validate(revoked));
+
+        SessionTokens reopened = SessionTokens.open(directory, Duration.ofHours(1));
+        assertEquals("alice", reopened.validate(kept), "The key should be reused after a restart");
+        assertNull(reopened.validate(revoked));
+    }
+}